@@ -1,5 +1,7 @@
 package ch.epfl.biop;
 
+import ch.epfl.biop.atlas.aligner.AlignerExecutorService;
+import ch.epfl.biop.atlas.aligner.MultiSlicePositioner;
 
 import oshi.SystemInfo;
 import oshi.hardware.CentralProcessor;
@@ -19,8 +21,20 @@ public class ResourcesMonitor extends JPanel {
     final JButton gcButton;
     Thread monitor;
 
+    final JLabel cpuTasksLabel;
+    final JLabel registrationTasksLabel;
+    final JLabel registrationSchedulerLabel;
+    final JLabel atlasPlaneCacheLabel;
+
     public ResourcesMonitor() {
-        this.setLayout(new GridLayout(8, 1));
+        this(null);
+    }
+
+    /**
+     * @param executor if not null, the state of the pools of this executor is also monitored
+     */
+    public ResourcesMonitor(AlignerExecutorService executor) {
+        this.setLayout(new GridLayout(10, 1));
 
         cpuLabelSystem = new JLabel("CPU Usage - System (%)");
         cpuBarSystem = new JProgressBar();
@@ -30,12 +44,24 @@ public class ResourcesMonitor extends JPanel {
 
         gcButton = new JButton("Trigger GC");
 
+        cpuTasksLabel = new JLabel("");
+        registrationTasksLabel = new JLabel("");
+        registrationSchedulerLabel = new JLabel("");
+        atlasPlaneCacheLabel = new JLabel("");
+
         this.add(cpuLabelSystem);
         this.add(cpuBarSystem);
         this.add(memLabel);
         this.add(memBar);
         this.add(gcButton);
 
+        if (executor!=null) {
+            this.add(cpuTasksLabel);
+            this.add(registrationTasksLabel);
+            this.add(registrationSchedulerLabel);
+            this.add(atlasPlaneCacheLabel);
+        }
+
         gcButton.addActionListener(e -> System.gc());
 
          monitor = new Thread(() -> {
@@ -56,6 +82,15 @@ public class ResourcesMonitor extends JPanel {
 
                 memLabel.setText("Mem (" + ((int) usedMemMb) + " Mb / " + ((int) memTotalMb) + " Mb)");
                 memBar.setValue((int) (usedMemMb / memTotalMb * 100));
+
+                if (executor!=null) {
+                    cpuTasksLabel.setText("CPU Tasks (" + executor.getCpuActiveThreads() + " / " + executor.getCpuPoolSize()
+                            + " running, " + executor.getCpuQueueDepth() + " queued)");
+                    registrationTasksLabel.setText("Registration Tasks (" + executor.getRegistrationActiveThreads() + " / " + executor.getRegistrationPoolSize()
+                            + " running, " + executor.getRegistrationQueueDepth() + " queued)");
+                    registrationSchedulerLabel.setText(MultiSlicePositioner.registrationScheduler.toString());
+                    atlasPlaneCacheLabel.setText(MultiSlicePositioner.atlasPlaneCache.toString());
+                }
             }
         });
 
@@ -0,0 +1,130 @@
+package ch.epfl.biop;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Records the duration of each stage of ABBA startup (atlas loading, bdv window creation...),
+ * and the time until the aligner is ready to be used.
+ *
+ * Stages can run concurrently : each stage stores its own start time and duration, relative to
+ * the last call to {@link StartupProfiler#reset()}. Each stage is logged when it ends, and the whole
+ * report is logged when {@link StartupProfiler#markInteractive()} is called.
+ */
+
+public class StartupProfiler {
+
+    public static class Stage {
+
+        public final String name;
+
+        public final String thread;
+
+        // Relative to the profiler origin
+        public final long startMs;
+
+        public final long durationMs;
+
+        Stage(String name, String thread, long startMs, long durationMs) {
+            this.name = name;
+            this.thread = thread;
+            this.startMs = startMs;
+            this.durationMs = durationMs;
+        }
+
+        @Override
+        public String toString() {
+            return name+" : "+durationMs+" ms (started at "+startMs+" ms, thread "+thread+")";
+        }
+    }
+
+    private static final List<Stage> stages = new ArrayList<>();
+
+    private static volatile long origin = System.nanoTime();
+
+    private static volatile long timeToInteractiveMs = -1;
+
+    /**
+     * Starts a new profiling session : previous stages are cleared
+     */
+    public static synchronized void reset() {
+        stages.clear();
+        origin = System.nanoTime();
+        timeToInteractiveMs = -1;
+    }
+
+    /**
+     * @return current time, to be given to {@link StartupProfiler#record(String, long)} at the end of a stage
+     */
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a stage which started at startNanos and ends now
+     * @param name name of the stage
+     * @param startNanos start of the stage, as returned by {@link StartupProfiler#now()}
+     */
+    public static void record(String name, long startNanos) {
+        long end = System.nanoTime();
+        Stage stage = new Stage(name, Thread.currentThread().getName(),
+                (startNanos-origin)/1_000_000, (end-startNanos)/1_000_000);
+        synchronized (StartupProfiler.class) {
+            stages.add(stage);
+        }
+        System.out.println("[ABBA startup] "+stage);
+    }
+
+    public static <T> T time(String name, Callable<T> task) throws Exception {
+        long start = now();
+        try {
+            return task.call();
+        } finally {
+            record(name, start);
+        }
+    }
+
+    public static void time(String name, Runnable task) {
+        long start = now();
+        try {
+            task.run();
+        } finally {
+            record(name, start);
+        }
+    }
+
+    /**
+     * Marks the end of startup : the aligner can be used. Logs all stages.
+     */
+    public static void markInteractive() {
+        timeToInteractiveMs = (System.nanoTime()-origin)/1_000_000;
+        System.out.println(getReport());
+    }
+
+    /**
+     * @return time between the last reset and the end of startup, in ms, or -1 if startup is not finished
+     */
+    public static long getTimeToInteractiveMs() {
+        return timeToInteractiveMs;
+    }
+
+    /**
+     * @return a copy of the stages recorded since the last reset, in the order they ended
+     */
+    public static synchronized List<Stage> getStages() {
+        return new ArrayList<>(stages);
+    }
+
+    public static synchronized String getReport() {
+        StringBuilder report = new StringBuilder("ABBA startup stages :\n");
+        for (Stage stage : stages) {
+            report.append("\t").append(stage).append("\n");
+        }
+        if (timeToInteractiveMs>=0) {
+            report.append("Time to interactive : ").append(timeToInteractiveMs).append(" ms");
+        }
+        return report.toString();
+    }
+
+}
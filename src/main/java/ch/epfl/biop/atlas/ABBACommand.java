@@ -1,6 +1,7 @@
 package ch.epfl.biop.atlas;
 
 import ch.epfl.biop.ABBAHelper;
+import ch.epfl.biop.StartupProfiler;
 import ch.epfl.biop.atlas.BiopAtlas;
 import ch.epfl.biop.atlas.aligner.commands.SacMultiSacsPositionerCommand;
 import ch.epfl.biop.atlas.aligner.commands.SlicerAdjusterInteractiveCommand;
@@ -56,10 +57,13 @@ public class ABBACommand implements Command {
     @Override
     public void run() {
         try {
+            StartupProfiler.reset();
+            long start = StartupProfiler.now();
             BiopAtlas ba = (BiopAtlas) cs.run(AllenBrainAdultMouseAtlasCCF2017.class, true,
                     "mapUrl", mapUrl,//xmlDatasetFile.toURI().toURL().toString(),
                             "ontologyUrl", ontologyUrl //jsonFile.toURI().toURL().toString()
                     ).get().getOutput("ba");
+            StartupProfiler.record("Atlas", start);
 
             if (elastixExeFile!=null && elastixExeFile.exists()) {
                 Elastix.setExePath(elastixExeFile);
@@ -71,7 +75,9 @@ public class ABBACommand implements Command {
                 BiopWrappersCheck.isTransformixSet();
             }
 
+            start = StartupProfiler.now();
             CommandModule cm = cs.run(SacMultiSacsPositionerCommand.class, true, "ba", ba).get();
+            StartupProfiler.record("Aligner", start);
 
             mp = (MultiSlicePositioner) (cm.getOutput("mp"));
 
@@ -82,6 +88,8 @@ public class ABBACommand implements Command {
                     "reslicedAtlas", mp.getReslicedAtlas(),
                     "lockAngles", false);
 
+            StartupProfiler.markInteractive();
+
             if (storeAsGlobalSettings) {
                 ABBAHelper.ABBASettings settings = new ABBAHelper.ABBASettings();
                 settings.pathToABBAAtlas = mapUrl;
@@ -0,0 +1,91 @@
+package ch.epfl.biop.atlas;
+
+import ch.epfl.biop.ABBAHelper;
+import ch.epfl.biop.atlas.aligner.AlignerPipeline;
+import ch.epfl.biop.atlas.aligner.MultiSlicePositioner;
+import ch.epfl.biop.atlas.aligner.ReslicedAtlas;
+import ch.epfl.biop.atlas.aligner.commands.SacMultiSacsPositionerCommand;
+import ch.epfl.biop.atlas.allen.adultmousebrain.AllenBrainAdultMouseAtlasCCF2017;
+import ch.epfl.biop.wrappers.BiopWrappersCheck;
+import ch.epfl.biop.wrappers.elastix.Elastix;
+import ch.epfl.biop.wrappers.transformix.Transformix;
+import com.google.gson.JsonObject;
+import org.scijava.Context;
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.command.CommandService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+
+/**
+ * Allen Brain BIOP Aligner without any window : runs a batch pipeline described in a json file,
+ * see {@link AlignerPipeline}. Can be run on a headless Fiji, for instance:
+ *
+ * ImageJ-linux64 --headless --run "ABBA - Run Pipeline (Headless)" "pipelineFile='/data/pipeline.json'"
+ */
+
+@Plugin(type = Command.class, menuPath = "Plugins>BIOP>Atlas>ABBA - Run Pipeline (Headless)")
+public class ABBAPipelineCommand implements Command {
+
+    @Parameter
+    CommandService cs;
+
+    @Parameter
+    Context context;
+
+    @Parameter(label = "Pipeline file (json)")
+    File pipelineFile;
+
+    @Parameter(label = "URL path to allen brain map data, leave empty for automated downloading and caching (3Go)", persist = false, required = false)
+    String mapUrl = ABBAHelper.getMapUrl();
+
+    @Parameter(label = "URL path to allen brain ontology data, leave empty for automated downloading and caching", persist = false, required = false)
+    String ontologyUrl = ABBAHelper.getOntologyUrl();
+
+    @Parameter(label = "Select the executable file 'elastix.exe' or 'elastix.sh'", required = false)
+    File elastixExeFile = ABBAHelper.getElastixExeFile();
+
+    @Parameter(label = "Select the executable file 'transformix.exe' or 'transformix.sh'", required = false)
+    File transformixExeFile = ABBAHelper.getTransformixExeFile();
+
+    @Parameter(type = ItemIO.OUTPUT)
+    boolean success;
+
+    @Override
+    public void run() {
+        try {
+            JsonObject pipeline = AlignerPipeline.read(pipelineFile);
+
+            BiopAtlas ba = (BiopAtlas) cs.run(AllenBrainAdultMouseAtlasCCF2017.class, true,
+                    "mapUrl", mapUrl,
+                    "ontologyUrl", ontologyUrl
+            ).get().getOutput("ba");
+
+            if (elastixExeFile!=null && elastixExeFile.exists()) {
+                Elastix.setExePath(elastixExeFile);
+                BiopWrappersCheck.isElastixSet();
+            }
+
+            if (transformixExeFile!=null && transformixExeFile.exists()) {
+                Transformix.setExePath(transformixExeFile);
+                BiopWrappersCheck.isTransformixSet();
+            }
+
+            ReslicedAtlas ra = new ReslicedAtlas(ba);
+            ra.setSlicingTransformAndResolution(
+                    SacMultiSacsPositionerCommand.getSlicingTransform(AlignerPipeline.getSlicingMode(pipeline)), 0.01);
+
+            MultiSlicePositioner mp = new MultiSlicePositioner(ba, ra, context);
+
+            success = new AlignerPipeline(mp, pipeline).run();
+
+            mp.getExecutor().shutdown();
+        } catch (Exception e) {
+            e.printStackTrace();
+            success = false;
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+package ch.epfl.biop.atlas;
+
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.view.Views;
+
+/**
+ * Atlas channel whose value is a function of the position in the atlas, like
+ * the coordinates or the left / right hemisphere indicator.
+ *
+ * Subclasses compute the value directly from the sampled position, without
+ * going through a generic function object for each voxel. Because the value is known
+ * analytically, these channels do not need to be displayed : the aligner evaluates them
+ * with {@link #evaluate(double[])} only when a position is queried.
+ *
+ * The source is defined in the atlas physical space : its source transform is the identity.
+ *
+ * @param <T> pixel type of the channel
+ */
+
+public abstract class AnalyticalAtlasSource<T extends NumericType<T>> implements Source<T> {
+
+    final Interval interval;
+
+    final T type;
+
+    final String name;
+
+    public AnalyticalAtlasSource(Interval interval, T type, String name) {
+        this.interval = interval;
+        this.type = type;
+        this.name = name;
+    }
+
+    /**
+     * @param atlasPosition position in the atlas physical space
+     * @return the value of the channel at this position
+     */
+    public abstract double evaluate(double[] atlasPosition);
+
+    /**
+     * @return a real random accessible which computes the channel value at each sampled position
+     */
+    protected abstract RealRandomAccessible<T> getRealRandomAccessible();
+
+    @Override
+    public boolean isPresent(int t) {
+        return true;
+    }
+
+    @Override
+    public RandomAccessibleInterval<T> getSource(int t, int level) {
+        return Views.interval(Views.raster(getRealRandomAccessible()), interval);
+    }
+
+    @Override
+    public RealRandomAccessible<T> getInterpolatedSource(int t, int level, Interpolation method) {
+        // The value is exact at any position : no interpolation needed
+        return getRealRandomAccessible();
+    }
+
+    @Override
+    public void getSourceTransform(int t, int level, AffineTransform3D transform) {
+        transform.identity();
+    }
+
+    @Override
+    public T getType() {
+        return type;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public VoxelDimensions getVoxelDimensions() {
+        return new FinalVoxelDimensions("mm", 1, 1, 1);
+    }
+
+    @Override
+    public int getNumMipmapLevels() {
+        return 1;
+    }
+}
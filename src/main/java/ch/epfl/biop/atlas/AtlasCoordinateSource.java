@@ -0,0 +1,89 @@
+package ch.epfl.biop.atlas;
+
+import net.imglib2.Interval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Atlas channel whose value is the atlas coordinate along one axis
+ */
+
+public class AtlasCoordinateSource extends AnalyticalAtlasSource<FloatType> {
+
+    final int axis;
+
+    final RealRandomAccessible<FloatType> rra;
+
+    /**
+     * @param axis 0, 1 or 2 for x, y or z
+     * @param interval extent of the channel, in atlas physical units
+     * @param name name of the source
+     */
+    public AtlasCoordinateSource(int axis, Interval interval, String name) {
+        super(interval, new FloatType(), name);
+        this.axis = axis;
+        this.rra = new RealRandomAccessible<FloatType>() {
+            @Override
+            public RealRandomAccess<FloatType> realRandomAccess() {
+                return new CoordinateAccess(axis);
+            }
+
+            @Override
+            public RealRandomAccess<FloatType> realRandomAccess(RealInterval interval) {
+                return realRandomAccess();
+            }
+
+            @Override
+            public int numDimensions() {
+                return 3;
+            }
+        };
+    }
+
+    public int getAxis() {
+        return axis;
+    }
+
+    @Override
+    public double evaluate(double[] atlasPosition) {
+        return atlasPosition[axis];
+    }
+
+    @Override
+    protected RealRandomAccessible<FloatType> getRealRandomAccessible() {
+        return rra;
+    }
+
+    static final class CoordinateAccess extends RealPoint implements RealRandomAccess<FloatType> {
+
+        final int axis;
+
+        final FloatType value = new FloatType();
+
+        CoordinateAccess(int axis) {
+            super(3);
+            this.axis = axis;
+        }
+
+        @Override
+        public FloatType get() {
+            value.set((float) position[axis]);
+            return value;
+        }
+
+        @Override
+        public CoordinateAccess copy() {
+            CoordinateAccess copy = new CoordinateAccess(axis);
+            copy.setPosition(this);
+            return copy;
+        }
+
+        @Override
+        public CoordinateAccess copyRealRandomAccess() {
+            return copy();
+        }
+    }
+}
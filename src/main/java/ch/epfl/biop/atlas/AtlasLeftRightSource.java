@@ -0,0 +1,90 @@
+package ch.epfl.biop.atlas;
+
+import net.imglib2.Interval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Atlas channel which indicates the hemisphere : 255 on the right side of the
+ * mid plane, 0 on the left side. The mid plane is perpendicular to the z axis.
+ */
+
+public class AtlasLeftRightSource extends AnalyticalAtlasSource<UnsignedShortType> {
+
+    public final static int RIGHT = 255;
+
+    public final static int LEFT = 0;
+
+    final double midPlaneZ;
+
+    final RealRandomAccessible<UnsignedShortType> rra;
+
+    /**
+     * @param midPlaneZ z coordinate of the mid plane, in atlas physical units
+     * @param interval extent of the channel, in atlas physical units
+     * @param name name of the source
+     */
+    public AtlasLeftRightSource(double midPlaneZ, Interval interval, String name) {
+        super(interval, new UnsignedShortType(), name);
+        this.midPlaneZ = midPlaneZ;
+        this.rra = new RealRandomAccessible<UnsignedShortType>() {
+            @Override
+            public RealRandomAccess<UnsignedShortType> realRandomAccess() {
+                return new LeftRightAccess(midPlaneZ);
+            }
+
+            @Override
+            public RealRandomAccess<UnsignedShortType> realRandomAccess(RealInterval interval) {
+                return realRandomAccess();
+            }
+
+            @Override
+            public int numDimensions() {
+                return 3;
+            }
+        };
+    }
+
+    @Override
+    public double evaluate(double[] atlasPosition) {
+        return atlasPosition[2]>midPlaneZ ? RIGHT : LEFT;
+    }
+
+    @Override
+    protected RealRandomAccessible<UnsignedShortType> getRealRandomAccessible() {
+        return rra;
+    }
+
+    static final class LeftRightAccess extends RealPoint implements RealRandomAccess<UnsignedShortType> {
+
+        final double midPlaneZ;
+
+        final UnsignedShortType value = new UnsignedShortType();
+
+        LeftRightAccess(double midPlaneZ) {
+            super(3);
+            this.midPlaneZ = midPlaneZ;
+        }
+
+        @Override
+        public UnsignedShortType get() {
+            value.set(position[2]>midPlaneZ ? RIGHT : LEFT);
+            return value;
+        }
+
+        @Override
+        public LeftRightAccess copy() {
+            LeftRightAccess copy = new LeftRightAccess(midPlaneZ);
+            copy.setPosition(this);
+            return copy;
+        }
+
+        @Override
+        public LeftRightAccess copyRealRandomAccess() {
+            return copy();
+        }
+    }
+}
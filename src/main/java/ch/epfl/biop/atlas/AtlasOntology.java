@@ -18,6 +18,16 @@ public interface AtlasOntology {
 	List<Integer> getAllChildren(int id);
 	List<Integer> getAllParents(int id);
 	Integer getParent(int id);
+
+	/**
+	 * @param ancestorId structure id
+	 * @param id structure id
+	 * @return true if ancestorId is a strict ancestor of id
+	 */
+	default boolean isAncestor(int ancestorId, int id) {
+		List<Integer> parents = getAllParents(id);
+		return (parents!=null)&&(parents.contains(ancestorId));
+	}
 	List<Integer> getChildren(int id);
 	List<String> getKeys(String key);
 	Map<String, String> getProperties(int id);
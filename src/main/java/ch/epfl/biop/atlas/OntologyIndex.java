@@ -0,0 +1,386 @@
+package ch.epfl.biop.atlas;
+
+import java.util.*;
+
+/**
+ * Immutable, array based index of an atlas ontology tree, built once the ontology is loaded.
+ *
+ * Structures are stored in depth first pre-order : the dense index of a structure is its
+ * rank in this order, and all the descendants of a structure are stored right after it, in the range
+ * [index, subtreeEnd[index]). Ancestor / descendant tests are thus interval tests, in constant time,
+ * and descendants or leaves are listed without recursion. Children are stored in compressed
+ * rows (CSR) : the children of structure i are childrenIndices[childrenStart[i] .. childrenStart[i+1]).
+ *
+ * Structure ids are mapped to dense indexes through an open addressing int table, and
+ * identifiers (name, acronym, id as string) are mapped to ids through a perfect hash table.
+ */
+
+public final class OntologyIndex {
+
+    public final static int NOT_FOUND = Integer.MIN_VALUE;
+
+    // Dense index to structure id, in pre-order
+    final int[] ids;
+
+    final IntIntTable idToIndex;
+
+    // Parent id, as stored in the ontology (NOT_FOUND for the root)
+    final int[] parentIds;
+
+    final int[] childrenStart;
+
+    final int[] childrenIndices;
+
+    final int[] subtreeEnd;
+
+    final int[] originalIds;
+
+    final String[] names;
+
+    final String[] acronyms;
+
+    final StringPerfectHash identifiers;
+
+    /**
+     * @param rootId id of the root of the ontology
+     * @param idToChildrenIds children ids of each structure, the order of the children is kept
+     * @param idToParentId parent id of each structure
+     * @param idToOriginalId original id of each structure, see {@link AtlasOntology#getOriginalId(int)}
+     * @param idToName name of each structure
+     * @param idToAcronym acronym of each structure
+     * @param identifierToId pooled identifiers (name, acronym, id as string...) to structure id
+     */
+    public OntologyIndex(int rootId,
+                         Map<Integer, List<Integer>> idToChildrenIds,
+                         Map<Integer, Integer> idToParentId,
+                         Map<Integer, Integer> idToOriginalId,
+                         Map<Integer, String> idToName,
+                         Map<Integer, String> idToAcronym,
+                         Map<String, Integer> identifierToId) {
+
+        // Collects all structures in pre-order, starting from the root, then from any structure not reached
+        List<Integer> roots = new ArrayList<>();
+        roots.add(rootId);
+        idToChildrenIds.keySet().stream().sorted().forEach(roots::add);
+
+        int nMax = idToChildrenIds.size()+1;
+        int[] preOrder = new int[nMax];
+        IntIntTable visited = new IntIntTable(nMax);
+        int n = 0;
+        Deque<Integer> stack = new ArrayDeque<>();
+        for (int root : roots) {
+            if ((visited.get(root)!=NOT_FOUND)||(!idToChildrenIds.containsKey(root))) continue;
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                int id = stack.pop();
+                if (visited.get(id)!=NOT_FOUND) continue;
+                visited.put(id, n);
+                preOrder[n++] = id;
+                List<Integer> children = idToChildrenIds.get(id);
+                if (children!=null) {
+                    for (int i = children.size()-1; i>=0; i--) {
+                        if (idToChildrenIds.containsKey(children.get(i))) stack.push(children.get(i));
+                    }
+                }
+            }
+        }
+
+        ids = Arrays.copyOf(preOrder, n);
+        idToIndex = visited;
+
+        // Children in compressed rows
+        childrenStart = new int[n+1];
+        for (int i = 0; i<n; i++) {
+            List<Integer> children = idToChildrenIds.get(ids[i]);
+            int nChildren = 0;
+            if (children!=null) {
+                for (int child : children) if (idToIndex.get(child)!=NOT_FOUND) nChildren++;
+            }
+            childrenStart[i+1] = childrenStart[i]+nChildren;
+        }
+        childrenIndices = new int[childrenStart[n]];
+        for (int i = 0; i<n; i++) {
+            List<Integer> children = idToChildrenIds.get(ids[i]);
+            int k = childrenStart[i];
+            if (children!=null) {
+                for (int child : children) {
+                    int index = idToIndex.get(child);
+                    if (index!=NOT_FOUND) childrenIndices[k++] = index;
+                }
+            }
+        }
+
+        // End of each subtree : children have larger pre-order indexes than their parent
+        subtreeEnd = new int[n];
+        for (int i = n-1; i>=0; i--) {
+            int end = i+1;
+            for (int k = childrenStart[i]; k<childrenStart[i+1]; k++) {
+                end = Math.max(end, subtreeEnd[childrenIndices[k]]);
+            }
+            subtreeEnd[i] = end;
+        }
+
+        parentIds = new int[n];
+        originalIds = new int[n];
+        names = new String[n];
+        acronyms = new String[n];
+        for (int i = 0; i<n; i++) {
+            Integer parentId = idToParentId.get(ids[i]);
+            parentIds[i] = parentId==null ? NOT_FOUND : parentId;
+            Integer originalId = idToOriginalId.get(ids[i]);
+            originalIds[i] = originalId==null ? ids[i] : originalId;
+            names[i] = idToName.get(ids[i]);
+            acronyms[i] = idToAcronym.get(ids[i]);
+        }
+
+        identifiers = new StringPerfectHash(identifierToId);
+    }
+
+    /**
+     * @param id structure id
+     * @return true if this structure is in the index
+     */
+    public boolean contains(int id) {
+        return idToIndex.get(id)!=NOT_FOUND;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * @param id structure id
+     * @return parent id of the structure, or {@link #NOT_FOUND}
+     */
+    public int getParent(int id) {
+        int index = idToIndex.get(id);
+        return index==NOT_FOUND ? NOT_FOUND : parentIds[index];
+    }
+
+    /**
+     * @param id structure id
+     * @return original id of the structure, or {@link #NOT_FOUND}
+     */
+    public int getOriginalId(int id) {
+        int index = idToIndex.get(id);
+        return index==NOT_FOUND ? NOT_FOUND : originalIds[index];
+    }
+
+    public String getName(int id) {
+        int index = idToIndex.get(id);
+        return index==NOT_FOUND ? null : names[index];
+    }
+
+    public String getAcronym(int id) {
+        int index = idToIndex.get(id);
+        return index==NOT_FOUND ? null : acronyms[index];
+    }
+
+    /**
+     * @param identifier name, acronym or id as string, as stored in the pooled identifiers
+     * @return the structure id, or {@link #NOT_FOUND}
+     */
+    public int getIdFromIdentifier(String identifier) {
+        return identifiers.get(identifier);
+    }
+
+    /**
+     * Constant time
+     * @param ancestorId structure id
+     * @param id structure id
+     * @return true if ancestorId is a strict ancestor of id in the tree
+     */
+    public boolean isAncestor(int ancestorId, int id) {
+        int a = idToIndex.get(ancestorId);
+        int d = idToIndex.get(id);
+        if ((a==NOT_FOUND)||(d==NOT_FOUND)) return false;
+        return (a<d)&&(d<subtreeEnd[a]);
+    }
+
+    /**
+     * @param id structure id
+     * @return all parent ids, following the parent ids from the structure up to the root, the structure excluded
+     */
+    public ArrayList<Integer> getAllParents(int id) {
+        ArrayList<Integer> parents = new ArrayList<>();
+        int current = getParent(id);
+        // Bounded by the depth of the tree, in case of a loop in the parent ids
+        for (int depth = 0; (current!=NOT_FOUND)&&(depth<=ids.length); depth++) {
+            if (current!=id) parents.add(current);
+            int index = idToIndex.get(current);
+            if (index==NOT_FOUND) break;
+            current = parentIds[index];
+        }
+        return parents;
+    }
+
+    /**
+     * @param id structure id
+     * @return all descendant ids, in pre-order, the structure excluded
+     */
+    public ArrayList<Integer> getAllChildren(int id) {
+        int index = idToIndex.get(id);
+        if (index==NOT_FOUND) return new ArrayList<>();
+        ArrayList<Integer> children = new ArrayList<>(subtreeEnd[index]-index-1);
+        for (int i = index+1; i<subtreeEnd[index]; i++) {
+            children.add(ids[i]);
+        }
+        return children;
+    }
+
+    /**
+     * @param id structure id
+     * @return all descendant leaves ids, in pre-order, or the structure itself if it is a leaf
+     */
+    public ArrayList<Integer> getAllLeaves(int id) {
+        int index = idToIndex.get(id);
+        ArrayList<Integer> leaves = new ArrayList<>();
+        if (index==NOT_FOUND) return leaves;
+        for (int i = index; i<subtreeEnd[index]; i++) {
+            if (childrenStart[i]==childrenStart[i+1]) leaves.add(ids[i]);
+        }
+        return leaves;
+    }
+
+    /**
+     * @param id structure id
+     * @return direct children ids
+     */
+    public int[] getChildren(int id) {
+        int index = idToIndex.get(id);
+        if (index==NOT_FOUND) return new int[0];
+        int[] children = new int[childrenStart[index+1]-childrenStart[index]];
+        for (int k = 0; k<children.length; k++) {
+            children[k] = ids[childrenIndices[childrenStart[index]+k]];
+        }
+        return children;
+    }
+
+    /**
+     * @return all ids of the index, in pre-order
+     */
+    public int[] getAllIds() {
+        return ids.clone();
+    }
+
+    /**
+     * Open addressing int to int table, linear probing
+     */
+    static final class IntIntTable {
+
+        final int[] keys;
+        final int[] values; // value+1, 0 means empty slot
+        final int mask;
+
+        IntIntTable(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity)*2-1)*2;
+            keys = new int[size];
+            values = new int[size];
+            mask = size-1;
+        }
+
+        void put(int key, int value) {
+            int slot = mix(key) & mask;
+            while ((values[slot]!=0)&&(keys[slot]!=key)) slot = (slot+1) & mask;
+            keys[slot] = key;
+            values[slot] = value+1;
+        }
+
+        int get(int key) {
+            int slot = mix(key) & mask;
+            while (values[slot]!=0) {
+                if (keys[slot]==key) return values[slot]-1;
+                slot = (slot+1) & mask;
+            }
+            return NOT_FOUND;
+        }
+
+        static int mix(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * Two level perfect hash table of strings (Fredman, Komlós, Szemerédi) : each first level
+     * bucket of m keys gets a collision free second level table of m² slots, with its own seed.
+     * A lookup computes two hashes and compares a single key.
+     */
+    static final class StringPerfectHash {
+
+        final int nBuckets;
+        final int[] bucketOffset;
+        final int[] bucketSize;
+        final int[] bucketSeed;
+        final String[] keys;
+        final int[] values;
+
+        StringPerfectHash(Map<String, Integer> map) {
+            String[] allKeys = map.keySet().toArray(new String[0]);
+            nBuckets = Math.max(1, allKeys.length);
+            List<List<String>> buckets = new ArrayList<>(nBuckets);
+            for (int b = 0; b<nBuckets; b++) buckets.add(new ArrayList<>());
+            for (String key : allKeys) {
+                buckets.get(Math.floorMod(hash(key, 0), nBuckets)).add(key);
+            }
+            bucketOffset = new int[nBuckets];
+            bucketSize = new int[nBuckets];
+            bucketSeed = new int[nBuckets];
+            int total = 0;
+            for (int b = 0; b<nBuckets; b++) {
+                int m = buckets.get(b).size();
+                bucketOffset[b] = total;
+                bucketSize[b] = m*m;
+                total += m*m;
+            }
+            keys = new String[total];
+            values = new int[total];
+            for (int b = 0; b<nBuckets; b++) {
+                List<String> bucket = buckets.get(b);
+                if (bucket.isEmpty()) continue;
+                int size = bucketSize[b];
+                int seed = 1;
+                boolean[] used = new boolean[size];
+                while (true) {
+                    Arrays.fill(used, false);
+                    boolean collision = false;
+                    for (String key : bucket) {
+                        int slot = Math.floorMod(hash(key, seed), size);
+                        if (used[slot]) { collision = true; break; }
+                        used[slot] = true;
+                    }
+                    if (!collision) break;
+                    seed++;
+                    if (seed==(1<<20)) throw new IllegalStateException("Could not build perfect hash for "+bucket);
+                }
+                bucketSeed[b] = seed;
+                for (String key : bucket) {
+                    int slot = bucketOffset[b]+Math.floorMod(hash(key, seed), size);
+                    keys[slot] = key;
+                    values[slot] = map.get(key);
+                }
+            }
+        }
+
+        int get(String key) {
+            if (key==null) return NOT_FOUND;
+            int b = Math.floorMod(hash(key, 0), nBuckets);
+            int size = bucketSize[b];
+            if (size==0) return NOT_FOUND;
+            int slot = bucketOffset[b]+Math.floorMod(hash(key, bucketSeed[b]), size);
+            return key.equals(keys[slot]) ? values[slot] : NOT_FOUND;
+        }
+
+        // Seeded FNV-1a on the chars, followed by a final avalanche
+        static int hash(String key, int seed) {
+            int h = 0x811C9DC5 ^ (seed * 0x9E3779B9);
+            for (int i = 0; i<key.length(); i++) {
+                h = (h ^ key.charAt(i)) * 0x01000193;
+            }
+            h ^= h >>> 16;
+            h *= 0x85EBCA6B;
+            h ^= h >>> 13;
+            return h;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package ch.epfl.biop.atlas.aligner;
+
+import ij.Prefs;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors used by the actions of a {@link MultiSlicePositioner}
+ *
+ * Each {@link SliceSources} chains its actions asynchronously. Instead of using
+ * the common ForkJoinPool (shared with the rest of Fiji), the actions are executed
+ * in one of the two bounded pools owned by this object:
+ * - a cpu pool : for short computations (slice creation, resampling, roi extraction...)
+ * - a registration pool : for blocking tasks (registrations, waiting for a server)
+ *
+ * A third single threaded executor is used to serialize writes to the disk (exports)
+ *
+ * The size of each pool can be set from {@link ch.epfl.biop.atlas.aligner.commands.ABBASettingsCommand},
+ * and is stored in the IJ preferences.
+ */
+
+public class AlignerExecutorService {
+
+    public static String keyPrefix = AlignerExecutorService.class.getName()+".";
+
+    final private ThreadPoolExecutor cpuExecutor;
+
+    final private ThreadPoolExecutor registrationExecutor;
+
+    final private ThreadPoolExecutor ioExecutor;
+
+    public AlignerExecutorService() {
+        this(getDefaultCpuPoolSize(), getDefaultRegistrationPoolSize());
+    }
+
+    public AlignerExecutorService(int nCpuThreads, int nRegistrationThreads) {
+        nCpuThreads = Math.max(1, nCpuThreads);
+        nRegistrationThreads = Math.max(1, nRegistrationThreads);
+        cpuExecutor = createPool(nCpuThreads, "ABBA-cpu");
+        registrationExecutor = createPool(nRegistrationThreads, "ABBA-registration");
+        ioExecutor = createPool(1, "ABBA-io");
+    }
+
+    private static ThreadPoolExecutor createPool(int nThreads, String poolName) {
+        // Fixed number of threads, unbounded queue : tasks are never rejected, they wait
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(nThreads, nThreads,
+                30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new NamedDaemonThreadFactory(poolName));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return executor for short, cpu bound, tasks
+     */
+    public ExecutorService getCpuExecutor() {
+        return cpuExecutor;
+    }
+
+    /**
+     * @return executor for long, blocking, tasks (registrations)
+     */
+    public ExecutorService getRegistrationExecutor() {
+        return registrationExecutor;
+    }
+
+    /**
+     * @return single threaded executor, for tasks which should be executed one at a time (file writing)
+     */
+    public ExecutorService getIoExecutor() {
+        return ioExecutor;
+    }
+
+    /**
+     * @param action action to be executed
+     * @return the executor where this action should be run
+     */
+    public ExecutorService getExecutorFor(CancelableAction action) {
+        if (action instanceof RegisterSlice) {
+            return registrationExecutor;
+        } else {
+            return cpuExecutor;
+        }
+    }
+
+    /**
+     * Changes the number of threads of each pool. Takes effect immediately
+     * for idle threads, and as soon as running tasks are finished otherwise
+     * @param nCpuThreads number of threads for cpu bound tasks
+     * @param nRegistrationThreads number of threads for registration tasks
+     */
+    public void setPoolSizes(int nCpuThreads, int nRegistrationThreads) {
+        resize(cpuExecutor, Math.max(1, nCpuThreads));
+        resize(registrationExecutor, Math.max(1, nRegistrationThreads));
+    }
+
+    private static void resize(ThreadPoolExecutor executor, int nThreads) {
+        // Order matters : core pool size can't be above maximum pool size
+        if (nThreads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(nThreads);
+            executor.setCorePoolSize(nThreads);
+        } else {
+            executor.setCorePoolSize(nThreads);
+            executor.setMaximumPoolSize(nThreads);
+        }
+    }
+
+    // ------------------- Gauges
+
+    public int getCpuPoolSize() {
+        return cpuExecutor.getMaximumPoolSize();
+    }
+
+    public int getCpuActiveThreads() {
+        return cpuExecutor.getActiveCount();
+    }
+
+    public int getCpuQueueDepth() {
+        return cpuExecutor.getQueue().size();
+    }
+
+    public int getRegistrationPoolSize() {
+        return registrationExecutor.getMaximumPoolSize();
+    }
+
+    public int getRegistrationActiveThreads() {
+        return registrationExecutor.getActiveCount();
+    }
+
+    public int getRegistrationQueueDepth() {
+        return registrationExecutor.getQueue().size();
+    }
+
+    public String toString() {
+        return "CPU : "+getCpuActiveThreads()+"/"+getCpuPoolSize()+" active, "+getCpuQueueDepth()+" queued - "
+              +"Registration : "+getRegistrationActiveThreads()+"/"+getRegistrationPoolSize()+" active, "+getRegistrationQueueDepth()+" queued";
+    }
+
+    /**
+     * Stops accepting new tasks. Already submitted tasks are still executed.
+     */
+    public void shutdown() {
+        cpuExecutor.shutdown();
+        registrationExecutor.shutdown();
+        ioExecutor.shutdown();
+    }
+
+    // ------------------- Preferences
+
+    public static int getDefaultCpuPoolSize() {
+        return (int) Prefs.get(keyPrefix+"nCpuThreads", Runtime.getRuntime().availableProcessors());
+    }
+
+    public static int getDefaultRegistrationPoolSize() {
+        return (int) Prefs.get(keyPrefix+"nRegistrationThreads", Runtime.getRuntime().availableProcessors());
+    }
+
+    public static void setDefaultPoolSizes(int nCpuThreads, int nRegistrationThreads) {
+        Prefs.set(keyPrefix+"nCpuThreads", Math.max(1, nCpuThreads));
+        Prefs.set(keyPrefix+"nRegistrationThreads", Math.max(1, nRegistrationThreads));
+    }
+
+    static class NamedDaemonThreadFactory implements ThreadFactory {
+
+        final String poolName;
+
+        final AtomicInteger threadNumber = new AtomicInteger(0);
+
+        NamedDaemonThreadFactory(String poolName) {
+            this.poolName = poolName;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, poolName+"-"+threadNumber.getAndIncrement());
+            t.setDaemon(true); // Should not prevent Fiji from closing
+            return t;
+        }
+    }
+
+}
@@ -0,0 +1,240 @@
+package ch.epfl.biop.atlas.aligner;
+
+import ch.epfl.biop.atlas.aligner.commands.ImportQuPathProjectCommand;
+import ch.epfl.biop.atlas.aligner.sourcepreprocessors.SourcesChannelsSelect;
+import ch.epfl.biop.atlas.plugin.IABBARegistrationPlugin;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.scijava.command.CommandService;
+import org.scijava.plugin.PluginInfo;
+import org.scijava.plugin.PluginService;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Batch processing of slices, described by a json file, which runs on a headless
+ * {@link MultiSlicePositioner} (no bigdataviewer window, no Swing dialog).
+ *
+ * The pipeline contains the slicing of the atlas and a list of steps, which are executed in order:
+ * <pre>
+ * {
+ *   "slicingMode": "coronal",
+ *   "rotateX": 0,
+ *   "rotateY": 0,
+ *   "steps": [
+ *     {"type": "importQuPathProject", "file": "/data/project.qpproj", "initialPosition": 0, "increment": 0.08},
+ *     {"type": "register", "registration": "Elastix2DAffineRegistration", "atlasChannel": 0, "sliceChannel": 0},
+ *     {"type": "register", "registration": "Elastix2DSplineRegistration", "atlasChannel": 0, "sliceChannel": 0,
+ *          "parameters": {"nbControlPointsX": 10}},
+ *     {"type": "exportRegionsToQuPath", "erasePrevious": true},
+ *     {"type": "saveState", "file": "/data/state.json", "overwrite": true}
+ *   ]
+ * }
+ * </pre>
+ *
+ * Available steps :
+ * - importQuPathProject : file, initialPosition (mm), increment (mm) ; the imported slices are selected
+ * - loadState : file
+ * - select : optional indices (in slicing axis order), all slices if absent
+ * - deselect : deselects all slices
+ * - roi : px, py, sx, sy, the region used for registrations, in physical units
+ * - register : registration (class name or simple class name of a {@link IABBARegistrationPlugin}),
+ *              atlasChannel, sliceChannel, optional parameters of the registration
+ * - exportRegionsToFile : directory, naming ("name", "acronym", "id"), erasePrevious
+ * - exportRegionsToQuPath : erasePrevious
+ * - saveState : file, overwrite
+ * - wait : waits for the end of all tasks
+ *
+ * Steps are only enqueued in the slices: the slices are processed in parallel in the
+ * executors of the aligner, see {@link AlignerExecutorService}. The pipeline waits for
+ * all the tasks to be done at the end.
+ */
+
+public class AlignerPipeline {
+
+    final MultiSlicePositioner mp;
+
+    final JsonObject pipeline;
+
+    final AtomicInteger nErrors = new AtomicInteger();
+
+    /**
+     * @param mp a headless aligner, see {@link MultiSlicePositioner#MultiSlicePositioner(ch.epfl.biop.atlas.BiopAtlas, ReslicedAtlas, org.scijava.Context)}
+     * @param pipeline json description of the pipeline
+     */
+    public AlignerPipeline(MultiSlicePositioner mp, JsonObject pipeline) {
+        this.mp = mp;
+        this.pipeline = pipeline;
+    }
+
+    public static JsonObject read(File pipelineFile) throws IOException {
+        try (Reader reader = new FileReader(pipelineFile)) {
+            return new Gson().fromJson(reader, JsonObject.class);
+        }
+    }
+
+    /**
+     * @param pipeline json description of the pipeline
+     * @return the slicing mode of the atlas ("coronal", "sagittal" or "vertical"), coronal by default
+     */
+    public static String getSlicingMode(JsonObject pipeline) {
+        return pipeline.has("slicingMode") ? pipeline.get("slicingMode").getAsString() : "coronal";
+    }
+
+    /**
+     * Blocking : runs all the steps of the pipeline and waits for all the tasks to be done
+     * @return true if no error has been reported by the aligner during the pipeline
+     */
+    public boolean run() {
+        mp.nonBlockingErrorMessageForUser = (title, message) -> reportError(title+" : "+message);
+        mp.errorMessageForUser = (title, message) -> reportError(title+" : "+message);
+        mp.errlog = (message) -> reportError(message);
+
+        if (pipeline.has("rotateX")) mp.getReslicedAtlas().setRotateX(pipeline.get("rotateX").getAsDouble());
+        if (pipeline.has("rotateY")) mp.getReslicedAtlas().setRotateY(pipeline.get("rotateY").getAsDouble());
+
+        JsonArray steps = pipeline.has("steps") ? pipeline.getAsJsonArray("steps") : new JsonArray();
+        for (int i = 0; i<steps.size(); i++) {
+            JsonObject step = steps.get(i).getAsJsonObject();
+            String type = step.get("type").getAsString();
+            mp.log.accept("Pipeline step "+(i+1)+"/"+steps.size()+" : "+type);
+            try {
+                runStep(type, step);
+            } catch (Exception e) {
+                reportError("Step "+type+" failed : "+e.getMessage());
+                e.printStackTrace();
+                break;
+            }
+        }
+
+        mp.waitForTasks();
+        mp.log.accept("Pipeline done, "+nErrors.get()+" error(s)");
+        return nErrors.get()==0;
+    }
+
+    public int getNumberOfErrors() {
+        return nErrors.get();
+    }
+
+    private void reportError(String message) {
+        nErrors.incrementAndGet();
+        System.err.println("Pipeline error : "+message);
+    }
+
+    private void runStep(String type, JsonObject step) throws Exception {
+        switch (type) {
+            case "importQuPathProject":
+                mp.scijavaCtx.getService(CommandService.class).run(ImportQuPathProjectCommand.class, true,
+                        "mp", mp,
+                        "quPathProject", new File(getString(step, "file")),
+                        "sliceAxisInitial", getDouble(step, "initialPosition", 0),
+                        "incrementBetweenSlices", getDouble(step, "increment", 0.1)).get();
+                break;
+            case "loadState":
+                mp.loadState(new File(getString(step, "file")));
+                break;
+            case "select":
+                List<SliceSources> slices = mp.getSortedSlices();
+                if (step.has("indices")) {
+                    mp.deselectSlice(slices);
+                    for (JsonElement index : step.getAsJsonArray("indices")) {
+                        mp.selectSlice(slices.get(index.getAsInt()));
+                    }
+                } else {
+                    mp.selectSlice(slices);
+                }
+                break;
+            case "deselect":
+                mp.deselectSlice(mp.getSortedSlices());
+                break;
+            case "roi":
+                mp.setROI(getDouble(step, "px", mp.roiPX), getDouble(step, "py", mp.roiPY),
+                        getDouble(step, "sx", mp.roiSX), getDouble(step, "sy", mp.roiSY));
+                break;
+            case "register":
+                register(step);
+                break;
+            case "exportRegionsToFile":
+                mp.exportSelectedSlicesRegionsToFile(
+                        step.has("naming") ? getString(step, "naming") : "name",
+                        new File(getString(step, "directory")),
+                        getBoolean(step, "erasePrevious", true));
+                break;
+            case "exportRegionsToQuPath":
+                mp.exportSelectedSlicesRegionsToQuPathProject(getBoolean(step, "erasePrevious", true));
+                break;
+            case "saveState":
+                mp.saveState(new File(getString(step, "file")), getBoolean(step, "overwrite", false));
+                break;
+            case "wait":
+                mp.waitForTasks();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown pipeline step "+type);
+        }
+    }
+
+    private void register(JsonObject step) {
+        int atlasChannel = (int) getDouble(step, "atlasChannel", 0);
+        int sliceChannel = (int) getDouble(step, "sliceChannel", 0);
+        if (atlasChannel>=mp.getNumberOfAtlasChannels()) {
+            throw new IllegalArgumentException("The atlas has only "+mp.getNumberOfAtlasChannels()+" channels");
+        }
+        if (sliceChannel>=mp.getChannelBoundForSelectedSlices()) {
+            throw new IllegalArgumentException("One selected slice only has "+mp.getChannelBoundForSelectedSlices()+" channel(s)");
+        }
+
+        Map<String, Object> parameters = new HashMap<>();
+        // Nothing can be shown
+        parameters.put("showImagePlusRegistrationResult", false);
+        parameters.put("background_offset_value_moving", 0);
+        parameters.put("background_offset_value_fixed", 0);
+        if (step.has("parameters")) {
+            step.getAsJsonObject("parameters").entrySet()
+                    .forEach(entry -> parameters.put(entry.getKey(), entry.getValue().getAsString()));
+        }
+
+        mp.register(getRegistrationClass(getString(step, "registration")),
+                new SourcesChannelsSelect(atlasChannel),
+                new SourcesChannelsSelect(sliceChannel),
+                parameters);
+    }
+
+    private Class<? extends IABBARegistrationPlugin> getRegistrationClass(String name) {
+        PluginService pluginService = mp.scijavaCtx.getService(PluginService.class);
+        for (PluginInfo<IABBARegistrationPlugin> info : pluginService.getPluginsOfType(IABBARegistrationPlugin.class)) {
+            String className = info.getClassName();
+            if (className.equals(name) || className.endsWith("."+name)) {
+                try {
+                    return info.loadClass();
+                } catch (Exception e) {
+                    throw new IllegalArgumentException("Registration "+name+" cannot be loaded", e);
+                }
+            }
+        }
+        throw new IllegalArgumentException("Unknown registration "+name);
+    }
+
+    private static String getString(JsonObject step, String key) {
+        if (!step.has(key)) throw new IllegalArgumentException("Missing '"+key+"' in step "+step);
+        return step.get(key).getAsString();
+    }
+
+    private static double getDouble(JsonObject step, String key, double defaultValue) {
+        return step.has(key) ? step.get(key).getAsDouble() : defaultValue;
+    }
+
+    private static boolean getBoolean(JsonObject step, String key, boolean defaultValue) {
+        return step.has(key) ? step.get(key).getAsBoolean() : defaultValue;
+    }
+
+}
@@ -0,0 +1,345 @@
+package ch.epfl.biop.atlas.aligner;
+
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.atlas.aligner.sourcepreprocessors.SourcesProcessorHelper;
+import ij.Prefs;
+import net.imglib2.Cursor;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import sc.fiji.bdvpg.sourceandconverter.SourceAndConverterHelper;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Cache of atlas planes rasterized in memory.
+ *
+ * Registrations and label image computation need a raster of the resliced atlas at the
+ * location of a slice. Computing this raster is expensive (the atlas is resliced, then resampled),
+ * and the same plane is often needed several times: an affine registration followed by a
+ * spline registration, a registration done again after an undo, a label image recomputed
+ * after each registration...
+ *
+ * A plane is identified by its location (for the atlas, a {@link PlaneLocation} : which atlas, which slicing,
+ * which position along the slicing axis, which channel and processing) and by the way it is rasterized
+ * (pixel size, interpolation, region of interest px, py, sx, sy).
+ *
+ * The rasters of the slices themselves are also stored in this cache, with a location
+ * defined by each {@link SliceSources} : the memory budget is shared.
+ *
+ * Least recently used planes are removed when the memory budget is exceeded. The budget
+ * is stored in the IJ preferences.
+ */
+
+public class AtlasPlaneCache {
+
+    public static String keyPrefix = AtlasPlaneCache.class.getName()+".";
+
+    private final Map<PlaneKey, CompletableFuture<SourceAndConverter>> planes = new LinkedHashMap<>(16, 0.75f, true); // access order : LRU
+
+    private final Map<PlaneKey, Long> planesSizeInBytes = new LinkedHashMap<>();
+
+    private long memoryUsedInBytes = 0;
+
+    private long memoryBudgetInBytes = getDefaultMemoryBudgetInMb()*1024L*1024L;
+
+    private final AtomicLong hits = new AtomicLong(0);
+
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * Blocking function : returns the plane rasterized in memory, computing it if necessary
+     *
+     * The plane is located at z = 0 : the source should already be translated such that
+     * the slice lies at z = 0
+     *
+     * @param location where the plane is, for instance a {@link PlaneLocation} for the atlas. Needs to
+     *                 implement equals and hashCode
+     * @param sac source to rasterize, matching the location
+     * @param pixelSize size of the pixel, in physical units
+     * @param interpolate true for a linear interpolation, false for nearest neighbor (for labels)
+     * @param px x origin of the region to rasterize
+     * @param py y origin of the region to rasterize
+     * @param sx x size of the region to rasterize
+     * @param sy y size of the region to rasterize
+     * @return the rasterized plane, a single level source, or null if the source could not be rasterized
+     */
+    public SourceAndConverter getPlane(Object location, SourceAndConverter sac,
+                                       double pixelSize, boolean interpolate,
+                                       double px, double py, double sx, double sy) {
+        PlaneKey key = new PlaneKey(location, pixelSize, interpolate, px, py, sx, sy);
+        CompletableFuture<SourceAndConverter> plane;
+        boolean computeHere = false;
+        synchronized (this) {
+            plane = planes.get(key);
+            if (plane == null) {
+                plane = new CompletableFuture<>();
+                planes.put(key, plane);
+                computeHere = true;
+            }
+        }
+        if (computeHere) {
+            misses.incrementAndGet();
+            SourceAndConverter raster = null;
+            try {
+                raster = rasterize(sac, pixelSize, interpolate, px, py, sx, sy);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                if (raster == null) {
+                    planes.remove(key); // Not kept : another attempt may succeed
+                } else {
+                    long size = getSizeInBytes(raster);
+                    planesSizeInBytes.put(key, size);
+                    memoryUsedInBytes += size;
+                    evict(key);
+                }
+            }
+            plane.complete(raster);
+        } else {
+            hits.incrementAndGet();
+        }
+        return plane.join();
+    }
+
+    private void evict(PlaneKey keyToKeep) {
+        Iterator<Map.Entry<PlaneKey, CompletableFuture<SourceAndConverter>>> it = planes.entrySet().iterator();
+        while ((memoryUsedInBytes > memoryBudgetInBytes) && it.hasNext()) {
+            Map.Entry<PlaneKey, CompletableFuture<SourceAndConverter>> entry = it.next();
+            // Planes being computed are not counted yet, and are not removed
+            if ((!entry.getKey().equals(keyToKeep)) && (planesSizeInBytes.containsKey(entry.getKey()))) {
+                memoryUsedInBytes -= planesSizeInBytes.remove(entry.getKey());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes the planes whose location matches the predicate
+     * @param location predicate on the location of the planes to remove
+     */
+    public synchronized void invalidate(Predicate<Object> location) {
+        Iterator<Map.Entry<PlaneKey, CompletableFuture<SourceAndConverter>>> it = planes.entrySet().iterator();
+        while (it.hasNext()) {
+            PlaneKey key = it.next().getKey();
+            if ((planesSizeInBytes.containsKey(key)) && (location.test(key.location))) {
+                memoryUsedInBytes -= planesSizeInBytes.remove(key);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all planes from the cache
+     */
+    public synchronized void clear() {
+        planes.entrySet().removeIf(entry -> planesSizeInBytes.containsKey(entry.getKey()));
+        planesSizeInBytes.clear();
+        memoryUsedInBytes = 0;
+    }
+
+    /**
+     * Sets the memory budget of this cache. This value is stored and used for the next sessions
+     * @param budgetInMb maximal memory used by the planes, in megabytes
+     */
+    public synchronized void setMemoryBudgetInMb(int budgetInMb) {
+        budgetInMb = Math.max(0, budgetInMb);
+        Prefs.set(keyPrefix+"memoryBudgetInMb", budgetInMb);
+        memoryBudgetInBytes = budgetInMb*1024L*1024L;
+        evict(null);
+    }
+
+    public static int getDefaultMemoryBudgetInMb() {
+        return (int) Prefs.get(keyPrefix+"memoryBudgetInMb", 256);
+    }
+
+    // ------------------- Gauges
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public synchronized long getMemoryUsedInBytes() {
+        return memoryUsedInBytes;
+    }
+
+    public synchronized int getNumberOfPlanes() {
+        return planesSizeInBytes.size();
+    }
+
+    public String toString() {
+        return "Atlas planes cache : "+getNumberOfPlanes()+" planes ("+(getMemoryUsedInBytes()/(1024*1024))+" Mb), "
+                +getHitCount()+" hits, "+getMissCount()+" misses";
+    }
+
+    // ------------------- Rasterization
+
+    private static long getSizeInBytes(SourceAndConverter sac) {
+        RandomAccessibleIntervalSource source = (RandomAccessibleIntervalSource) sac.getSpimSource();
+        long nPixels = source.getSource(0,0).size();
+        int bitsPerPixel = ((RealType) source.getType()).getBitsPerPixel();
+        return nPixels*Math.max(1, bitsPerPixel/8);
+    }
+
+    /**
+     * Rasterizes in memory a region of a source, in the plane z = 0
+     * @param sac source to rasterize
+     * @param pixelSize size of the pixel, in physical units
+     * @param interpolate true for a linear interpolation, false for nearest neighbor (for labels)
+     * @param px x origin of the region to rasterize
+     * @param py y origin of the region to rasterize
+     * @param sx x size of the region to rasterize
+     * @param sy y size of the region to rasterize
+     * @return a single level source, or null if the source pixel type is not supported
+     */
+    public static SourceAndConverter rasterize(SourceAndConverter sac,
+                                                double pixelSize, boolean interpolate,
+                                                double px, double py, double sx, double sy) {
+        Source source = sac.getSpimSource();
+        if (!(source.getType() instanceof NativeType) || !(source.getType() instanceof RealType)) {
+            System.err.println("Cannot rasterize atlas source of type "+source.getType().getClass().getSimpleName());
+            return null;
+        }
+
+        int level = SourceAndConverterHelper.bestLevel(sac, 0, pixelSize);
+
+        AffineTransform3D sourceTransform = new AffineTransform3D();
+        source.getSourceTransform(0, level, sourceTransform);
+
+        // Plane pixel coordinates to physical coordinates
+        AffineTransform3D planeTransform = new AffineTransform3D();
+        planeTransform.scale(pixelSize);
+        planeTransform.translate(px, py, 0);
+
+        // Plane pixel coordinates to source voxel coordinates
+        AffineTransform3D pixelToVoxel = sourceTransform.inverse().concatenate(planeTransform);
+
+        long nx = Math.max(1, (long) Math.ceil(sx/pixelSize - 1e-6));
+        long ny = Math.max(1, (long) Math.ceil(sy/pixelSize - 1e-6));
+
+        NativeType type = (NativeType) ((NativeType) source.getType()).createVariable();
+        Img img = new ArrayImgFactory(type).create(nx, ny, 1);
+
+        RealRandomAccess access = source.getInterpolatedSource(0, level,
+                interpolate ? Interpolation.NLINEAR : Interpolation.NEARESTNEIGHBOR).realRandomAccess();
+
+        double[] position = new double[3];
+        Cursor cursor = img.localizingCursor();
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            cursor.localize(position);
+            pixelToVoxel.apply(position, position);
+            access.setPosition(position);
+            ((RealType) cursor.get()).setReal(((RealType) access.get()).getRealDouble());
+        }
+
+        Source planeSource = new RandomAccessibleIntervalSource(img, type, planeTransform, sac.getSpimSource().getName()+"_plane");
+
+        return SourceAndConverterHelper.createSourceAndConverter(planeSource);
+    }
+
+    /**
+     * Where a plane is located in the atlas
+     */
+    public static class PlaneLocation {
+
+        // Not the atlas sources themselves : the cache should not retain them
+        final long atlasIdentity;
+
+        final double[] slicingTransform;
+
+        final double slicingAxisPosition;
+
+        final String processing;
+
+        /**
+         * @param atlasSources resliced atlas sources ({@link ReslicedAtlas#nonExtendedSlicedSources}), these
+         *                     are recreated if the atlas slicing is recomputed
+         * @param slicingTransform transform from the aligner to the atlas coordinates
+         * @param slicingAxisPosition position of the slice along the slicing axis
+         * @param processing description of the channel selection and processing applied to the atlas sources,
+         *                   see {@link SourcesProcessorHelper#getKey}
+         */
+        public PlaneLocation(SourceAndConverter[] atlasSources, AffineTransform3D slicingTransform, double slicingAxisPosition, String processing) {
+            this.atlasIdentity = SourcesProcessorHelper.getId(atlasSources);
+            this.slicingTransform = slicingTransform.getRowPackedCopy();
+            this.slicingAxisPosition = slicingAxisPosition;
+            this.processing = processing;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PlaneLocation)) return false;
+            PlaneLocation that = (PlaneLocation) o;
+            return (atlasIdentity == that.atlasIdentity)
+                    && (Double.compare(that.slicingAxisPosition, slicingAxisPosition) == 0)
+                    && Arrays.equals(slicingTransform, that.slicingTransform)
+                    && processing.equals(that.processing);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(atlasIdentity, Arrays.hashCode(slicingTransform), slicingAxisPosition, processing);
+        }
+    }
+
+    static class PlaneKey {
+
+        final Object location;
+
+        final double pixelSize;
+
+        final boolean interpolate;
+
+        final double px, py, sx, sy;
+
+        PlaneKey(Object location, double pixelSize, boolean interpolate, double px, double py, double sx, double sy) {
+            this.location = location;
+            this.pixelSize = pixelSize;
+            this.interpolate = interpolate;
+            this.px = px;
+            this.py = py;
+            this.sx = sx;
+            this.sy = sy;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PlaneKey)) return false;
+            PlaneKey that = (PlaneKey) o;
+            return location.equals(that.location)
+                    && (Double.compare(that.pixelSize, pixelSize) == 0)
+                    && (interpolate == that.interpolate)
+                    && (Double.compare(that.px, px) == 0)
+                    && (Double.compare(that.py, py) == 0)
+                    && (Double.compare(that.sx, sx) == 0)
+                    && (Double.compare(that.sy, sy) == 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(location, pixelSize, interpolate, px, py, sx, sy);
+        }
+    }
+
+}
@@ -10,6 +10,9 @@ public class ExportSliceRegionsToFile extends CancelableAction {
     File dirOutput;
     boolean erasePreviousFile;
 
+    // Not null if this export is part of a multi slice export
+    RegionsExport export = null;
+
     public ExportSliceRegionsToFile(MultiSlicePositioner mp, SliceSources slice, String namingChoice, File dirOutput, boolean erasePreviousFile) {
         super(mp);
         this.slice = slice;
@@ -20,11 +23,26 @@ public class ExportSliceRegionsToFile extends CancelableAction {
 
     @Override
     public boolean run() { //
-        System.out.println("Exporting slice registration");
-        slice.exportRegionsToFile(namingChoice, dirOutput, erasePreviousFile);
+        if (export==null) {
+            System.out.println("Exporting slice registration");
+            slice.exportRegionsToFile(namingChoice, dirOutput, erasePreviousFile);
+        } else if (export.isCancelled()) {
+            export.skip(slice);
+        } else {
+            try {
+                slice.exportRegionsToFile(export, namingChoice, dirOutput, erasePreviousFile);
+            } catch (Exception e) {
+                export.skip(slice);
+                throw e;
+            }
+        }
         return true;
     }
 
+    public void setRegionsExport(RegionsExport export) {
+        this.export = export;
+    }
+
     public String toString() {
         return "Export";
     }
@@ -7,6 +7,9 @@ public class ExportSliceRegionsToQuPathProject extends CancelableAction {
     final SliceSources slice;
     boolean erasePreviousFile;
 
+    // Not null if this export is part of a multi slice export
+    RegionsExport export = null;
+
     public ExportSliceRegionsToQuPathProject(MultiSlicePositioner mp, SliceSources slice, boolean erasePreviousFile) {
         super(mp);
         this.slice = slice;
@@ -15,11 +18,26 @@ public class ExportSliceRegionsToQuPathProject extends CancelableAction {
 
     @Override
     public boolean run() { //
-        System.out.println("Exporting slice registration");
-        slice.exportToQuPathProject(erasePreviousFile);
+        if (export==null) {
+            System.out.println("Exporting slice registration");
+            slice.exportToQuPathProject(erasePreviousFile);
+        } else if (export.isCancelled()) {
+            export.skip(slice);
+        } else {
+            try {
+                slice.exportToQuPathProject(export, erasePreviousFile);
+            } catch (Exception e) {
+                export.skip(slice);
+                throw e;
+            }
+        }
         return true;
     }
 
+    public void setRegionsExport(RegionsExport export) {
+        this.export = export;
+    }
+
     public String toString() {
         return "Export";
     }
@@ -7,6 +7,9 @@ public class ExportSliceRegionsToRoiManager extends CancelableAction {
     final SliceSources slice;
     String namingChoice;
 
+    // Not null if this export is part of a multi slice export
+    RegionsExport export = null;
+
     public ExportSliceRegionsToRoiManager(MultiSlicePositioner mp, SliceSources slice, String namingChoice) {
         super(mp);
         this.slice = slice;
@@ -15,11 +18,26 @@ public class ExportSliceRegionsToRoiManager extends CancelableAction {
 
     @Override
     public boolean run() { //
-        System.out.println("Exporting slice registration");
-        slice.exportRegionsToROIManager(namingChoice);
+        if (export==null) {
+            System.out.println("Exporting slice registration");
+            slice.exportRegionsToROIManager(namingChoice);
+        } else if (export.isCancelled()) {
+            export.skip(slice);
+        } else {
+            try {
+                slice.exportRegionsToROIManager(export, namingChoice);
+            } catch (Exception e) {
+                export.skip(slice);
+                throw e;
+            }
+        }
         return true;
     }
 
+    public void setRegionsExport(RegionsExport export) {
+        this.export = export;
+    }
+
     public String toString() {
         return "Export";
     }
@@ -0,0 +1,160 @@
+package ch.epfl.biop.atlas.aligner;
+
+import ch.epfl.biop.atlas.BiopAtlas;
+import ch.epfl.biop.java.utilities.roi.ConvertibleRois;
+import ch.epfl.biop.java.utilities.roi.types.CompositeFloatPoly;
+import ch.epfl.biop.java.utilities.roi.types.IJShapeRoiArray;
+import ij.Prefs;
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import ij.io.RoiEncoder;
+import net.imglib2.realtransform.AffineTransform3D;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores on disk the regions extracted from the atlas label image, in order to skip
+ * the label image rasterization and the regions extraction when the same atlas plane
+ * is needed again: another slice at the same location, another export of the same project,
+ * another project sliced with the same angles...
+ *
+ * The regions depend only on the atlas, the slicing of the atlas (angles), the location of
+ * the plane and its sampling (number of pixels and pixel size). A file is stored for each set of these
+ * parameters, with a name computed from their hash.
+ *
+ * Each file contains the atlas regions and the left / right regions, written as gzipped ImageJ rois.
+ *
+ * Can be disabled from the IJ preferences.
+ */
+
+public class LabelImageRoisDiskCache {
+
+    public static String keyPrefix = LabelImageRoisDiskCache.class.getName()+".";
+
+    // Increment if the regions extraction or the file format changes : previous files will be ignored
+    final static int VERSION = 1;
+
+    public static File cacheDir = new File(System.getProperty("user.home"), "cached_atlas"+File.separator+"roi-cache");
+
+    public static boolean isEnabled() {
+        return Prefs.get(keyPrefix+"enabled", true);
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Prefs.set(keyPrefix+"enabled", enabled);
+    }
+
+    /**
+     * @param atlas atlas used
+     * @param alignerToAtlas slicing of the atlas
+     * @param at3D location and sampling of the label image
+     * @param nPixX number of pixels of the label image along X
+     * @param nPixY number of pixels of the label image along Y
+     * @return key identifying the regions of this atlas plane
+     */
+    public static String getKey(BiopAtlas atlas, AffineTransform3D alignerToAtlas, AffineTransform3D at3D, int nPixX, int nPixY) {
+        String description = "v"+VERSION
+                +"|map:"+atlas.map.getDataSource()
+                +"|ontology:"+atlas.ontology.getDataSource()
+                +"|slicing:"+Arrays.toString(alignerToAtlas.getRowPackedCopy())
+                +"|plane:"+Arrays.toString(at3D.getRowPackedCopy())
+                +"|size:"+nPixX+"x"+nPixY;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(description.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Reads the regions from the cache, if they are present
+     * @param key see {@link LabelImageRoisDiskCache#getKey}
+     * @param regions filled with the atlas regions if found
+     * @param leftRight filled with the left and right regions if found
+     * @return true if the regions were found and read
+     */
+    public static boolean load(String key, ConvertibleRois regions, ConvertibleRois leftRight) {
+        if ((!isEnabled())||(key==null)) return false;
+        File f = getFile(key);
+        if (!f.exists()) return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(f))))) {
+            if (in.readInt()!=VERSION) return false;
+            IJShapeRoiArray regionsArray = readRois(in);
+            IJShapeRoiArray leftRightArray = readRois(in);
+            regions.set(regionsArray);
+            leftRight.set(leftRightArray);
+            return true;
+        } catch (Exception e) {
+            // Corrupted or incomplete file : it will be written again
+            System.err.println("Could not read cached regions "+f.getAbsolutePath()+" : "+e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Writes the regions in the cache. The file is written in a temporary file first,
+     * then moved, so that a partially written file is never read.
+     * @param key see {@link LabelImageRoisDiskCache#getKey}
+     * @param regions atlas regions
+     * @param leftRight left and right regions
+     */
+    public static void store(String key, ConvertibleRois regions, ConvertibleRois leftRight) {
+        if ((!isEnabled())||(key==null)) return;
+        try {
+            if (!cacheDir.exists()) {
+                cacheDir.mkdirs();
+            }
+            File f = getFile(key);
+            File tmp = File.createTempFile(key, ".tmp", cacheDir);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))))) {
+                out.writeInt(VERSION);
+                writeRois(out, (IJShapeRoiArray) regions.to(IJShapeRoiArray.class));
+                writeRois(out, (IJShapeRoiArray) leftRight.to(IJShapeRoiArray.class));
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            System.err.println("Could not cache regions : "+e.getMessage());
+        }
+    }
+
+    private static File getFile(String key) {
+        return new File(cacheDir, key+".rois.gz");
+    }
+
+    private static void writeRois(DataOutputStream out, IJShapeRoiArray array) throws IOException {
+        out.writeInt(array.rois.size());
+        for (CompositeFloatPoly poly : array.rois) {
+            byte[] bytes = RoiEncoder.saveAsByteArray(poly.getRoi());
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static IJShapeRoiArray readRois(DataInputStream in) throws IOException {
+        int nRois = in.readInt();
+        List<Roi> rois = new ArrayList<>(nRois);
+        for (int i = 0; i<nRois; i++) {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            rois.add(RoiDecoder.openFromByteArray(bytes));
+        }
+        return new IJShapeRoiArray(rois);
+    }
+
+}
@@ -30,6 +30,11 @@ public class MoveSlice extends CancelableAction {
     }
 
     public boolean run() {
+        if (sliceSource.getSlicingAxisPosition()!=newSlicingAxisPosition) {
+            // Registrations computed in advance for the previous position are obsolete. Not done
+            // while dragging slices : the drag ends with a move, and the slice is back to its position otherwise
+            mp.speculativeRegistrations.drop(sliceSource);
+        }
         sliceSource.setSlicingAxisPosition(newSlicingAxisPosition);
         //mp.log.accept("Moving slice to position " + new DecimalFormat("###.##").format(sliceSource.getSlicingAxisPosition()));
         mp.updateDisplay();
@@ -41,6 +46,9 @@ public class MoveSlice extends CancelableAction {
     }
 
     public boolean cancel() {
+        if (sliceSource.getSlicingAxisPosition()!=oldSlicingAxisPosition) {
+            mp.speculativeRegistrations.drop(sliceSource);
+        }
         sliceSource.setSlicingAxisPosition(oldSlicingAxisPosition);
         //mp.log.accept("Moving slice to position " + new DecimalFormat("###.##").format(sliceSource.getSlicingAxisPosition()));
         mp.updateDisplay();
@@ -46,7 +46,7 @@ public class MultiSliceObserver {
         animatorThread = new Thread(() -> {
             while (animate) {
 
-                if (repaintNeeded) {
+                if (repaintNeeded && !mp.isHeadless()) {
                     mp.getBdvh().getViewerPanel().getDisplay().repaint();
                 }
                 repaintNeeded = false;
@@ -58,6 +58,7 @@ public class MultiSliceObserver {
             }
             //System.out.println("Animator thread stopped");
         });
+        animatorThread.setDaemon(true);
         animatorThread.start();
 
     }
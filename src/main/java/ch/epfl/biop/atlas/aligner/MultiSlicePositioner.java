@@ -4,6 +4,7 @@ import bdv.util.*;
 import bdv.viewer.Interpolation;
 import bdv.viewer.SourceAndConverter;
 import ch.epfl.biop.ResourcesMonitor;
+import ch.epfl.biop.atlas.AnalyticalAtlasSource;
 import ch.epfl.biop.atlas.BiopAtlas;
 import ch.epfl.biop.atlas.aligner.commands.*;
 import ch.epfl.biop.atlas.aligner.serializers.*;
@@ -60,6 +61,7 @@ import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
@@ -94,6 +96,18 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
      */
     static public final Object manualActionLock = new Object();
 
+    /**
+     * Limits the number of simultaneous registrations of each kind,
+     * whatever the slice or the ABBA instance they belong to
+     */
+    static public final RegistrationScheduler registrationScheduler = new RegistrationScheduler();
+
+    /**
+     * Atlas planes rasterized for registrations and label images, shared
+     * between slices and ABBA instances
+     */
+    static public final AtlasPlaneCache atlasPlaneCache = new AtlasPlaneCache();
+
     // BdvHandle displaying the multislice positioner - publicly accessible through getBdvh();
     private final BdvHandle bdvh;
 
@@ -177,6 +191,11 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
     // Rectangle user defined regions that crops the region of interest for registrations
     double roiPX, roiPY, roiSX, roiSY;
 
+    // Executors used to run slices actions - bounded in order not to starve the common ForkJoinPool
+    final AlignerExecutorService executor = new AlignerExecutorService();
+
+    final SpeculativeRegistrations speculativeRegistrations = new SpeculativeRegistrations(this);
+
     // Loggers
 
     /**
@@ -238,32 +257,10 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
      * @param ctx a scijava context
      */
     public MultiSlicePositioner(BdvHandle bdvh, BiopAtlas biopAtlas, ReslicedAtlas reslicedAtlas, Context ctx) {
-        this.reslicedAtlas = reslicedAtlas;
-        this.biopAtlas = biopAtlas;
-        this.bdvh = bdvh;
-        this.scijavaCtx = ctx;
-
-        iSliceNoStep = (int) (reslicedAtlas.getStep());
+        this(biopAtlas, reslicedAtlas, ctx, bdvh);
 
         this.bdvh.getViewerPanel().setTransferHandler(new MultiSlicePositioner.TransferHandler());
 
-        nPixX = (int) reslicedAtlas.slicingModel.getSpimSource().getSource(0, 0).dimension(0);
-        nPixY = (int) reslicedAtlas.slicingModel.getSpimSource().getSource(0, 0).dimension(1);
-        nPixZ = (int) reslicedAtlas.slicingModel.getSpimSource().getSource(0, 0).dimension(2);
-
-        AffineTransform3D at3D = new AffineTransform3D();
-        reslicedAtlas.slicingModel.getSpimSource().getSourceTransform(0, 0, at3D);
-
-        double[] m = at3D.getRowPackedCopy();
-
-        sizePixX = Math.sqrt(m[0] * m[0] + m[4] * m[4] + m[8] * m[8]);
-        sizePixY = Math.sqrt(m[1] * m[1] + m[5] * m[5] + m[9] * m[9]);
-        sizePixZ = Math.sqrt(m[2] * m[2] + m[6] * m[6] + m[10] * m[10]);
-
-        sX = nPixX * sizePixX;
-        sY = nPixY * sizePixY;
-        sZ = nPixZ * sizePixZ;
-
         BdvFunctions.showOverlay(this, "MultiSlice Overlay", BdvOptions.options().addTo(bdvh));
 
         /*ssb = (SourceSelectorBehaviour) SourceAndConverterServices.getSourceAndConverterDisplayService().getDisplayMetadata(
@@ -313,6 +310,8 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
 
         List<SourceAndConverter<?>> sacsToAppend = new ArrayList<>();
         for (int i = 0; i < biopAtlas.map.getStructuralImages().size(); i++) {
+            // Coordinates and left right channels are not displayed, they are evaluated when the mouse position is queried
+            if (reslicedAtlas.isAnalytical(i)) continue;
             sacsToAppend.add(reslicedAtlas.extendedSlicedSources[i]);
             sacsToAppend.add(reslicedAtlas.nonExtendedSlicedSources[i]);
         }
@@ -351,15 +350,11 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
         this.bdvh.getCardPanel().setCardExpanded("Sources", false);
         this.bdvh.getCardPanel().setCardExpanded("Groups", false);
 
-        reslicedAtlas.addListener(() -> {
+        reslicedAtlas.addUIListener(() -> {
             recenterBdvh();
             updateDisplay();
         });
 
-        previouszStep = (int) reslicedAtlas.getStep();
-
-        mso = new MultiSliceObserver(this);
-
         //bdvh.getCardPanel().removeCard(DEFAULT_SOURCES_CARD); // Cannot do this : errors
         bdvh.getCardPanel().removeCard(DEFAULT_SOURCEGROUPS_CARD);
         bdvh.getCardPanel().removeCard(DEFAULT_VIEWERMODES_CARD);
@@ -421,6 +416,12 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
 
         BdvScijavaHelper.addCommandToBdvHandleMenu(bdvh, scijavaCtx, EditLastRegistrationCommand.class, hierarchyLevelsSkipped,"mp", this);
         BdvScijavaHelper.addActionToBdvHandleMenu(bdvh,"Align>Remove Last Registration",0, this::removeLastRegistration );
+        BdvScijavaHelper.addActionToBdvHandleMenu(bdvh,"Align>Apply Last Registrations To Current Slice",0, () -> speculativeRegistrations.commit(getCurrentSlice()));
+        BdvScijavaHelper.addActionToBdvHandleMenu(bdvh,"Align>Toggle Speculative Registration Of Next Slices",0, () -> {
+            SpeculativeRegistrations.setEnabled(!SpeculativeRegistrations.isEnabled());
+            log.accept("Speculative registration of next slices "+(SpeculativeRegistrations.isEnabled() ? "enabled" : "disabled"));
+            if (SpeculativeRegistrations.isEnabled()) speculativeRegistrations.speculate(); else speculativeRegistrations.dropAll();
+        });
 
         BdvScijavaHelper.addCommandToBdvHandleMenu(bdvh, scijavaCtx, ExportRegionsToFileCommand.class, hierarchyLevelsSkipped,"mp", this);
         BdvScijavaHelper.addCommandToBdvHandleMenu(bdvh, scijavaCtx, ExportRegionsToRoiManagerCommand.class, hierarchyLevelsSkipped,"mp", this);
@@ -430,6 +431,7 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
         BdvScijavaHelper.addCommandToBdvHandleMenu(bdvh, scijavaCtx, RotateSourcesCommand.class, hierarchyLevelsSkipped,"mp", this);
         BdvScijavaHelper.addCommandToBdvHandleMenu(bdvh, scijavaCtx, EditSliceThicknessCommand.class, hierarchyLevelsSkipped,"mp", this);
         BdvScijavaHelper.addCommandToBdvHandleMenu(bdvh, scijavaCtx, SliceThicknessMatchNeighborsCommand.class, hierarchyLevelsSkipped,"mp", this);
+        BdvScijavaHelper.addCommandToBdvHandleMenu(bdvh, scijavaCtx, BakeReslicedAtlasCommand.class, hierarchyLevelsSkipped,"mp", this);
 
         // Help commands
         BdvScijavaHelper.addCommandToBdvHandleMenu(bdvh, scijavaCtx, ABBAForumHelpCommand.class, hierarchyLevelsSkipped);
@@ -461,16 +463,10 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
 
         bdvh.getCardPanel().addCard("Tasks Info", mso.getJPanel(), false);
 
-        final ResourcesMonitor rm = new ResourcesMonitor();
+        final ResourcesMonitor rm = new ResourcesMonitor(executor);
 
         bdvh.getCardPanel().addCard("Resources Monitor", rm, false);
 
-        // Default registration region = full atlas size
-        roiPX = -sX / 2.0;
-        roiPY = -sY / 2.0;
-        roiSX = sX;
-        roiSY = sY;
-
         BiConsumer<RealLocalizable, UnsignedShortType> fun = (loc,val) -> {
             double px = loc.getFloatPosition(0);
             double py = loc.getFloatPosition(1);
@@ -545,10 +541,77 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
                     this.reslicedAtlas = null;
                     this.info = null;
                     rm.stop();
+                    speculativeRegistrations.shutdown();
+                    executor.shutdown();
                 }
         );
     }
 
+    /**
+     * Starts ABBA without any display, for batch processing, see {@link AlignerPipeline}.
+     * Slices can be created, positioned, registered, exported, and the state can be saved and loaded,
+     * but nothing is displayed : user messages are sent to the console.
+     * @param biopAtlas an atlas
+     * @param reslicedAtlas a resliced atlas
+     * @param ctx a scijava context
+     */
+    public MultiSlicePositioner(BiopAtlas biopAtlas, ReslicedAtlas reslicedAtlas, Context ctx) {
+        this(biopAtlas, reslicedAtlas, ctx, null);
+
+        log = (message) -> System.out.println("Multipositioner : "+message);
+        errorMessageForUser = (title, message) -> System.err.println(title+":"+message);
+        warningMessageForUser = (title, message) -> System.err.println(title+":"+message);
+        errlog = (message) -> System.err.println("Multipositioner : "+message);
+
+        reslicedAtlas.setStep(50);
+        reslicedAtlas.setRotateX(0);
+        reslicedAtlas.setRotateY(0);
+    }
+
+    // Initializes everything which does not depend on the display
+    private MultiSlicePositioner(BiopAtlas biopAtlas, ReslicedAtlas reslicedAtlas, Context ctx, BdvHandle bdvh) {
+        this.reslicedAtlas = reslicedAtlas;
+        this.biopAtlas = biopAtlas;
+        this.bdvh = bdvh;
+        this.scijavaCtx = ctx;
+
+        iSliceNoStep = (int) (reslicedAtlas.getStep());
+
+        nPixX = (int) reslicedAtlas.slicingModel.getSpimSource().getSource(0, 0).dimension(0);
+        nPixY = (int) reslicedAtlas.slicingModel.getSpimSource().getSource(0, 0).dimension(1);
+        nPixZ = (int) reslicedAtlas.slicingModel.getSpimSource().getSource(0, 0).dimension(2);
+
+        AffineTransform3D at3D = new AffineTransform3D();
+        reslicedAtlas.slicingModel.getSpimSource().getSourceTransform(0, 0, at3D);
+
+        double[] m = at3D.getRowPackedCopy();
+
+        sizePixX = Math.sqrt(m[0] * m[0] + m[4] * m[4] + m[8] * m[8]);
+        sizePixY = Math.sqrt(m[1] * m[1] + m[5] * m[5] + m[9] * m[9]);
+        sizePixZ = Math.sqrt(m[2] * m[2] + m[6] * m[6] + m[10] * m[10]);
+
+        sX = nPixX * sizePixX;
+        sY = nPixY * sizePixY;
+        sZ = nPixZ * sizePixZ;
+
+        // Default registration region = full atlas size
+        roiPX = -sX / 2.0;
+        roiPY = -sY / 2.0;
+        roiSX = sX;
+        roiSY = sY;
+
+        previouszStep = (int) reslicedAtlas.getStep();
+
+        mso = new MultiSliceObserver(this);
+    }
+
+    /**
+     * @return true if this aligner has no display, see {@link MultiSlicePositioner#MultiSlicePositioner(BiopAtlas, ReslicedAtlas, Context)}
+     */
+    public boolean isHeadless() {
+        return bdvh == null;
+    }
+
     public void showAtlasPosition() {
         showAtlasPosition = true;
     }
@@ -580,6 +643,13 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
         getSlices().forEach(slice -> slice.getGUIState().sliceDisplayModeChanged());
     }
 
+    /**
+     * @return the executors used to run the actions of the slices of this positioner
+     */
+    public AlignerExecutorService getExecutor() {
+        return executor;
+    }
+
     public ReslicedAtlas getReslicedAtlas() {
         return reslicedAtlas;
     }
@@ -710,11 +780,13 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
             slices.forEach(slice -> slice.getGUIState().enableGraphicalHandles());
             getSortedSlices().forEach(slice -> slice.getGUIState().displayModeChanged());
 
-            bdvh.getTriggerbindings().removeInputTriggerMap(REVIEW_BEHAVIOURS_KEY);
-            bdvh.getTriggerbindings().removeBehaviourMap(REVIEW_BEHAVIOURS_KEY);
-            positioning_behaviours.install(bdvh.getTriggerbindings(), POSITIONING_BEHAVIOURS_KEY);
-            navigateCurrentSlice();
-            refreshBlockMap();
+            if (!isHeadless()) {
+                bdvh.getTriggerbindings().removeInputTriggerMap(REVIEW_BEHAVIOURS_KEY);
+                bdvh.getTriggerbindings().removeBehaviourMap(REVIEW_BEHAVIOURS_KEY);
+                positioning_behaviours.install(bdvh.getTriggerbindings(), POSITIONING_BEHAVIOURS_KEY);
+                navigateCurrentSlice();
+                refreshBlockMap();
+            }
 
             modeListeners.forEach(ml -> ml.modeChanged(this, oldMode, displayMode));
         }
@@ -744,11 +816,13 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
             getSortedSlices().forEach(slice -> slice.getGUIState().displayModeChanged());
             //}
 
-            bdvh.getTriggerbindings().removeInputTriggerMap(POSITIONING_BEHAVIOURS_KEY);
-            bdvh.getTriggerbindings().removeBehaviourMap(POSITIONING_BEHAVIOURS_KEY);
-            review_behaviours.install(bdvh.getTriggerbindings(), REVIEW_BEHAVIOURS_KEY);
-            navigateCurrentSlice();
-            refreshBlockMap();
+            if (!isHeadless()) {
+                bdvh.getTriggerbindings().removeInputTriggerMap(POSITIONING_BEHAVIOURS_KEY);
+                bdvh.getTriggerbindings().removeBehaviourMap(POSITIONING_BEHAVIOURS_KEY);
+                review_behaviours.install(bdvh.getTriggerbindings(), REVIEW_BEHAVIOURS_KEY);
+                navigateCurrentSlice();
+                refreshBlockMap();
+            }
             modeListeners.forEach(ml -> ml.modeChanged(this, oldMode, displayMode));
         }
     }
@@ -778,6 +852,8 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
             }
             sortedSlices.get(iCurrentSlice).getGUIState().isCurrent();
         }
+        speculativeRegistrations.setDirection(1);
+        speculativeRegistrations.speculate();
     }
 
     /**
@@ -872,6 +948,8 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
             }
             sortedSlices.get(iCurrentSlice).getGUIState().isCurrent();
         }
+        speculativeRegistrations.setDirection(-1);
+        speculativeRegistrations.speculate();
     }
 
     public void selectSlice(SliceSources... slices) {
@@ -895,7 +973,20 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
     }
 
     public void waitForTasks() {
-        slices.forEach(SliceSources::waitForEndOfTasks);
+        allTasksFuture().join();
+    }
+
+    /**
+     * @return a future completed when all the tasks currently enqueued in all slices are done
+     */
+    public CompletableFuture<Void> allTasksFuture() {
+        List<SliceSources> slices = this.slices;
+        if (slices == null) return CompletableFuture.completedFuture(null); // Closed
+        CompletableFuture<?>[] tails;
+        synchronized (slices) {
+            tails = slices.stream().map(SliceSources::getTasksFuture).toArray(CompletableFuture[]::new);
+        }
+        return CompletableFuture.allOf(tails);
     }
 
     public void centerBdvViewOn(SliceSources slice) {
@@ -905,6 +996,8 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
     // Center bdv on a slice
     public void centerBdvViewOn(SliceSources current_slice, boolean maintainoffset, SliceSources previous_slice) {
 
+        if (isHeadless()) return;
+
         RealPoint offset = new RealPoint(3);
 
         if ((maintainoffset)&&(previous_slice!=null)) {
@@ -982,7 +1075,7 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
             slices.forEach(slice -> slice.getGUIState().setYShift(0));
         }
 
-        bdvh.getViewerPanel().requestRepaint();
+        if (!isHeadless()) bdvh.getViewerPanel().requestRepaint();
     }
 
     int overlapMode = 2;
@@ -1137,16 +1230,29 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
             assert displayMode == REVIEW_MODE_INT;
             SourceAndConverter label = reslicedAtlas.nonExtendedSlicedSources[reslicedAtlas.nonExtendedSlicedSources.length-1]; // By convention the label image is the last one
             labelValue = ((UnsignedShortType) getSourceValueAt(label, globalMouseCoordinates)).get();
-            SourceAndConverter lrSource = reslicedAtlas.nonExtendedSlicedSources[reslicedAtlas.nonExtendedSlicedSources.length-2]; // By convention the left right indicator image is the next to last one
-            leftRight = ((UnsignedShortType) getSourceValueAt(lrSource, globalMouseCoordinates)).get();
+            int nSources = reslicedAtlas.nonExtendedSlicedSources.length;
+            if (reslicedAtlas.isAnalytical(nSources-2)&&reslicedAtlas.isAnalytical(nSources-5)
+                    &&reslicedAtlas.isAnalytical(nSources-4)&&reslicedAtlas.isAnalytical(nSources-3)) {
+                // Fast path : computes the atlas position directly from the slicing transform
+                double[] atlasPosition = new double[3];
+                globalMouseCoordinates.localize(atlasPosition);
+                reslicedAtlas.getSlicingTransformToAtlas().apply(atlasPosition, atlasPosition);
+                leftRight = (int) ((AnalyticalAtlasSource<?>) reslicedAtlas.getAtlasSource(nSources-2)).evaluate(atlasPosition);
+                coords[0] = (float) ((AnalyticalAtlasSource<?>) reslicedAtlas.getAtlasSource(nSources-5)).evaluate(atlasPosition);
+                coords[1] = (float) ((AnalyticalAtlasSource<?>) reslicedAtlas.getAtlasSource(nSources-4)).evaluate(atlasPosition);
+                coords[2] = (float) ((AnalyticalAtlasSource<?>) reslicedAtlas.getAtlasSource(nSources-3)).evaluate(atlasPosition);
+            } else {
+                SourceAndConverter lrSource = reslicedAtlas.nonExtendedSlicedSources[nSources-2]; // By convention the left right indicator image is the next to last one
+                leftRight = ((UnsignedShortType) getSourceValueAt(lrSource, globalMouseCoordinates)).get();
 
-            SourceAndConverter xSource = reslicedAtlas.nonExtendedSlicedSources[reslicedAtlas.nonExtendedSlicedSources.length-5]; // (bad) convention TODO : safer indexing
-            SourceAndConverter ySource = reslicedAtlas.nonExtendedSlicedSources[reslicedAtlas.nonExtendedSlicedSources.length-4]; // By convention the left right indicator image is the next to last one
-            SourceAndConverter zSource = reslicedAtlas.nonExtendedSlicedSources[reslicedAtlas.nonExtendedSlicedSources.length-3]; // By convention the left right indicator image is the next to last one
+                SourceAndConverter xSource = reslicedAtlas.nonExtendedSlicedSources[nSources-5]; // (bad) convention TODO : safer indexing
+                SourceAndConverter ySource = reslicedAtlas.nonExtendedSlicedSources[nSources-4];
+                SourceAndConverter zSource = reslicedAtlas.nonExtendedSlicedSources[nSources-3];
 
-            coords[0] = ((FloatType) getSourceValueAt(xSource, globalMouseCoordinates)).get();
-            coords[1] = ((FloatType) getSourceValueAt(ySource, globalMouseCoordinates)).get();
-            coords[2] = ((FloatType) getSourceValueAt(zSource, globalMouseCoordinates)).get();
+                coords[0] = ((FloatType) getSourceValueAt(xSource, globalMouseCoordinates)).get();
+                coords[1] = ((FloatType) getSourceValueAt(ySource, globalMouseCoordinates)).get();
+                coords[2] = ((FloatType) getSourceValueAt(zSource, globalMouseCoordinates)).get();
+            }
         }
 
         DecimalFormat df = new DecimalFormat("#0.00");
@@ -1276,7 +1382,7 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
         for (SliceSources slice : sortedSelected) {
             slice.rotateSourceOrigin(axis, angle_rad);
         }
-        bdvh.getViewerPanel().requestRepaint();
+        if (!isHeadless()) bdvh.getViewerPanel().requestRepaint();
     }
 
     public int getDisplayMode() {
@@ -1500,8 +1606,12 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
             errorMessageForUser.accept("No slice selected", "You did not select any slice.");
         } else {
             new MarkActionSequenceBatch(MultiSlicePositioner.this).runRequest();
+            RegionsExport export = new RegionsExport(this, "Export regions to RoiManager", sortedSelected.size());
             for (SliceSources slice : sortedSelected) {
-                exportSliceRegionsToRoiManager(slice, namingChoice);
+                ExportSliceRegionsToRoiManager exportSlice = new ExportSliceRegionsToRoiManager(this, slice, namingChoice);
+                exportSlice.setRegionsExport(export);
+                exportSlice.runRequest();
+                export.track(slice, slice.getActionTask(exportSlice));
             }
             new MarkActionSequenceBatch(MultiSlicePositioner.this).runRequest();
         }
@@ -1513,8 +1623,12 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
             errorMessageForUser.accept("No slice selected", "You did not select any slice.");
         } else {
             new MarkActionSequenceBatch(MultiSlicePositioner.this).runRequest();
+            RegionsExport export = new RegionsExport(this, "Export regions to QuPath project", sortedSelected.size());
             for (SliceSources slice : sortedSelected) {
-                exportSliceRegionsToQuPathProject(slice, erasePreviousFile);
+                ExportSliceRegionsToQuPathProject exportSlice = new ExportSliceRegionsToQuPathProject(this, slice, erasePreviousFile);
+                exportSlice.setRegionsExport(export);
+                exportSlice.runRequest();
+                export.track(slice, slice.getActionTask(exportSlice));
             }
             new MarkActionSequenceBatch(MultiSlicePositioner.this).runRequest();
         }
@@ -1527,8 +1641,12 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
         } else {
 
             new MarkActionSequenceBatch(MultiSlicePositioner.this).runRequest();
+            RegionsExport export = new RegionsExport(this, "Export regions to files", sortedSelected.size());
             for (SliceSources slice : sortedSelected) {
-                exportSliceRegionsToFile(slice, namingChoice, dirOutput, erasePreviousFile);
+                ExportSliceRegionsToFile exportSlice = new ExportSliceRegionsToFile(this, slice, namingChoice, dirOutput, erasePreviousFile);
+                exportSlice.setRegionsExport(export);
+                exportSlice.runRequest();
+                export.track(slice, slice.getActionTask(exportSlice));
             }
             new MarkActionSequenceBatch(MultiSlicePositioner.this).runRequest();
         }
@@ -1789,32 +1907,82 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
                 parameters.put("sx", roiSX);
                 parameters.put("sy", roiSY);
 
-                PluginService ps = scijavaCtx.getService(PluginService.class);
+                speculativeRegistrations.recordRecipe(getSelectedSources(), registrationClass, preprocessFixed, preprocessMoving, parameters);
+
                 for (SliceSources slice : slices) {
                     if (slice.isSelected()) {
-                        IABBARegistrationPlugin registration = (IABBARegistrationPlugin) ps.getPlugin(registrationClass).createInstance();
-                        registration.setScijavaContext(scijavaCtx);
-
-                        registration.setSliceInfo(new SliceInfo(slice));
-
-                        // Sends parameters to the registration
-                        registration.setRegistrationParameters(convertToString(parameters));
-
-                        // Always set slice at zero position for registration
-                        parameters.put("pz", 0);
-                        AffineTransform3D at3d = new AffineTransform3D();
-                        at3d.translate(0,0,-slice.getSlicingAxisPosition());
-                        SourcesAffineTransformer z_zero = new SourcesAffineTransformer(at3d);
-
-                        new RegisterSlice(this, slice, registration, SourcesProcessorHelper.compose(z_zero, preprocessFixed), SourcesProcessorHelper.compose(z_zero, preprocessMoving)).runRequest();
+                        registerSlice(slice, registrationClass, preprocessFixed, preprocessMoving, parameters);
                     }
                 }
+
+                speculativeRegistrations.speculate();
             } catch (InstantiableException e) {
                 e.printStackTrace();
             }
         }
     }
 
+    /**
+     * Enqueues the registration of a single slice
+     * @param slice slice to register
+     * @param registrationClass the kind of registration which should be started
+     * @param preprocessFixed how fixed sources need to be preprocessed before being registered
+     * @param preprocessMoving how moving sources need to be preprocessed before being registered
+     * @param parameters parameters used for the registration, including the region of interest
+     * @throws InstantiableException if the registration plugin cannot be created
+     */
+    void registerSlice(SliceSources slice,
+                       Class<? extends IABBARegistrationPlugin> registrationClass,
+                       SourcesProcessor preprocessFixed,
+                       SourcesProcessor preprocessMoving,
+                       Map<String,Object> parameters) throws InstantiableException {
+        IABBARegistrationPlugin registration = createRegistration(slice, registrationClass, parameters);
+        RegisterSlice registerSlice = new RegisterSlice(this, slice, registration,
+                SourcesProcessorHelper.compose(getZZero(slice), preprocessFixed),
+                SourcesProcessorHelper.compose(getZZero(slice), preprocessMoving));
+        registerSlice.runRequest();
+    }
+
+    /**
+     * @param slice slice to register
+     * @param registrationClass the kind of registration
+     * @param parameters parameters of the registration, converted to String
+     * @return a registration ready to receive its images
+     * @throws InstantiableException if the registration plugin cannot be created
+     */
+    IABBARegistrationPlugin createRegistration(SliceSources slice,
+                                               Class<? extends IABBARegistrationPlugin> registrationClass,
+                                               Map<String,Object> parameters) throws InstantiableException {
+        IABBARegistrationPlugin registration = (IABBARegistrationPlugin) scijavaCtx.getService(PluginService.class)
+                .getPlugin(registrationClass).createInstance();
+        registration.setScijavaContext(scijavaCtx);
+
+        registration.setSliceInfo(new SliceInfo(slice));
+
+        // Sends parameters to the registration, the slice being always at zero position for registration
+        Map<String,Object> sliceParameters = new HashMap<>(parameters);
+        sliceParameters.put("pz", 0);
+        registration.setRegistrationParameters(convertToString(sliceParameters));
+        return registration;
+    }
+
+    /**
+     * @param slice slice to register
+     * @return processor which sets the slice at zero position : registrations are always performed at zero
+     */
+    static SourcesProcessor getZZero(SliceSources slice) {
+        AffineTransform3D at3d = new AffineTransform3D();
+        at3d.translate(0,0,-slice.getSlicingAxisPosition());
+        return new SourcesAffineTransformer(at3d);
+    }
+
+    /**
+     * @return the scheduler which registers in advance the slices the user is about to review
+     */
+    public SpeculativeRegistrations getSpeculativeRegistrations() {
+        return speculativeRegistrations;
+    }
+
 
     // --------------------------------- ACTION CLASSES
 
@@ -2441,11 +2609,9 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
             return;
         }
 
-        slices.get(0).waitForEndOfTasks();
-
         // Wait patiently for all tasks to be performed
         log.accept("Waiting for all tasks to be finished ... ");
-        this.getSortedSlices().forEach(SliceSources::waitForEndOfTasks);
+        waitForTasks();
         log.accept("All tasks have been performed!");
 
         // First save all sources required in the state
@@ -2482,7 +2648,7 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
 
     public void loadState(File stateFile) {
         // TODO : add a clock as an overlay
-        this.getSortedSlices().forEach(SliceSources::waitForEndOfTasks);
+        waitForTasks();
 
         String fileNoExt = FilenameUtils.removeExtension(stateFile.getAbsolutePath());
         File sacsFile = new File(fileNoExt+"_sources.json");
@@ -2532,7 +2698,9 @@ public class MultiSlicePositioner extends BdvOverlay implements  GraphicalHandle
                 setDisplayMode(state.displayMode);
                 setOverlapMode(state.overlapMode);
 
-                bdvh.getViewerPanel().state().setViewerTransform(state.bdvView);
+                if ((!isHeadless())&&(state.bdvView!=null)) {
+                    bdvh.getViewerPanel().state().setViewerTransform(state.bdvView);
+                }
 
                 state.slices_state_list.forEach(sliceState -> {
                     sliceState.slice.waitForEndOfTasks();
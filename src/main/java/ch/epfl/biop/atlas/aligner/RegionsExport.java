@@ -0,0 +1,151 @@
+package ch.epfl.biop.atlas.aligner;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ch.epfl.biop.atlas.aligner.CancelableAction.errlog;
+
+/**
+ * Export of the regions of several slices, launched by the same user request
+ *
+ * Each slice computes its regions in its own sequence of actions, so the slices are
+ * processed in parallel in the cpu pool of {@link AlignerExecutorService}. Writing the regions
+ * (files, QuPath project, RoiManager) is done one slice at a time in the io executor.
+ *
+ * The progress of the export is displayed in a small window (if not headless), which
+ * can be used to cancel the slices which are not exported yet. A slice counts as done once its
+ * regions are written, or once its export action fails or is cancelled (undo), see
+ * {@link RegionsExport#track(SliceSources, CompletableFuture)} : the window is closed when all slices are done.
+ */
+
+public class RegionsExport {
+
+    final MultiSlicePositioner mp;
+
+    final String title;
+
+    final int nSlices;
+
+    final AtomicInteger nSlicesDone = new AtomicInteger(0);
+
+    // Each slice is counted once, whether it is written, skipped, failed or cancelled
+    final Set<SliceSources> slicesDone = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean cancelled = false;
+
+    private JFrame frame;
+
+    private JProgressBar progressBar;
+
+    /**
+     * @param mp the aligner containing the slices
+     * @param title name of the export, displayed in the progress window
+     * @param nSlices number of slices exported
+     */
+    public RegionsExport(MultiSlicePositioner mp, String title, int nSlices) {
+        this.mp = mp;
+        this.title = title;
+        this.nSlices = nSlices;
+        if ((!mp.isHeadless())&&(!GraphicsEnvironment.isHeadless())) {
+            SwingUtilities.invokeLater(this::showProgressWindow);
+        }
+    }
+
+    private void showProgressWindow() {
+        progressBar = new JProgressBar(0, nSlices);
+        progressBar.setStringPainted(true);
+        progressBar.setString("0 / "+nSlices);
+        JButton cancelButton = new JButton("Cancel");
+        cancelButton.addActionListener(e -> cancel());
+
+        frame = new JFrame(title);
+        frame.setLayout(new BorderLayout());
+        frame.add(progressBar, BorderLayout.CENTER);
+        frame.add(cancelButton, BorderLayout.EAST);
+        frame.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        frame.setSize(400, 80);
+        frame.setVisible(true);
+        if (nSlicesDone.get()>=nSlices) frame.dispose();
+    }
+
+    /**
+     * Slices which have not been exported yet will be skipped
+     */
+    public void cancel() {
+        if (!cancelled) {
+            cancelled = true;
+            mp.log.accept(title+" cancelled : "+nSlicesDone.get()+" / "+nSlices+" slices exported");
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Non blocking : writes the regions of a slice, once the previous writes are done
+     * @param slice slice whose regions are written
+     * @param writer writing operation
+     * @return a future completed when the regions are written, or skipped if the export is cancelled
+     */
+    public CompletableFuture<Void> write(SliceSources slice, Runnable writer) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                if (!cancelled) writer.run();
+            } catch (Exception e) {
+                errlog.accept("Export of slice "+slice+" failed : "+e.getMessage());
+                e.printStackTrace();
+            } finally {
+                sliceDone(slice);
+            }
+        }, mp.getExecutor().getIoExecutor());
+    }
+
+    /**
+     * To call if the slice is not exported because the export has been cancelled
+     * @param slice slice skipped
+     */
+    public void skip(SliceSources slice) {
+        sliceDone(slice);
+    }
+
+    /**
+     * Counts the slice as done if its export action does not complete successfully : the action
+     * can be cancelled before it runs (undo), or not run because a previous action of the slice failed
+     * @param slice slice exported
+     * @param actionTask future of the export action of the slice, see {@link SliceSources#getActionTask(CancelableAction)}
+     */
+    public void track(SliceSources slice, CompletableFuture<Boolean> actionTask) {
+        if (actionTask==null) {
+            sliceDone(slice);
+            return;
+        }
+        actionTask.whenComplete((result, exception) -> {
+            if ((exception!=null)||(!Boolean.TRUE.equals(result))) sliceDone(slice);
+        });
+    }
+
+    private void sliceDone(SliceSources slice) {
+        if (!slicesDone.add(slice)) return;
+        int n = nSlicesDone.incrementAndGet();
+        if (n==nSlices) mp.log.accept(title+" done.");
+        SwingUtilities.invokeLater(() -> {
+            if (progressBar!=null) {
+                progressBar.setValue(n);
+                progressBar.setString(n+" / "+nSlices);
+            }
+            if ((n>=nSlices)&&(frame!=null)) {
+                frame.dispose();
+            }
+        });
+    }
+
+    public int getNumberOfSlicesDone() {
+        return nSlicesDone.get();
+    }
+
+}
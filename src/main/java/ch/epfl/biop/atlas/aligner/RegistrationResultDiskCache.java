@@ -0,0 +1,230 @@
+package ch.epfl.biop.atlas.aligner;
+
+import ch.epfl.biop.registration.Registration;
+import ij.Prefs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores on disk the result of registrations (the serialized transform, see {@link Registration#getTransform()}),
+ * in order to skip a registration which was already performed with identical inputs: after an undo / redo,
+ * after loading a state and registering again, or for another user of the same dataset sharing the cache folder.
+ *
+ * The result of a registration depends only on:
+ * - the registration class and its parameters, including the region of interest
+ * - the fixed image : atlas, slicing of the atlas, location of the slice, processing of the atlas sources
+ * - the moving image : dataset and original sources of the slice, previous registrations of the slice, processing of the slice sources
+ * A file is stored for each set of these inputs, with a name computed from their hash. Registrations of slices
+ * whose dataset cannot be identified (sources not read from a dataset on disk) are not cached.
+ *
+ * Files not used recently are removed when the cache exceeds its maximal size, or when they are older
+ * than the maximal age. Hits, misses, stores and evictions are counted, see {@link RegistrationResultDiskCache#getStatistics()}.
+ *
+ * Can be disabled, and its size and age limits set, from the IJ preferences.
+ */
+
+public class RegistrationResultDiskCache {
+
+    public static String keyPrefix = RegistrationResultDiskCache.class.getName()+".";
+
+    // Increment if a registration or the file format changes : previous files will be ignored
+    final static int VERSION = 1;
+
+    final static String EXTENSION = ".transform.gz";
+
+    public static File cacheDir = new File(System.getProperty("user.home"), "cached_atlas"+File.separator+"registration-cache");
+
+    static final AtomicLong hits = new AtomicLong();
+
+    static final AtomicLong misses = new AtomicLong();
+
+    static final AtomicLong stores = new AtomicLong();
+
+    static final AtomicLong evictions = new AtomicLong();
+
+    public static boolean isEnabled() {
+        return Prefs.get(keyPrefix+"enabled", true);
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Prefs.set(keyPrefix+"enabled", enabled);
+    }
+
+    public static long getMaxSizeInMB() {
+        return (long) Prefs.get(keyPrefix+"maxSizeInMB", 200);
+    }
+
+    public static void setMaxSizeInMB(long maxSizeInMB) {
+        Prefs.set(keyPrefix+"maxSizeInMB", maxSizeInMB);
+    }
+
+    public static int getMaxAgeInDays() {
+        return (int) Prefs.get(keyPrefix+"maxAgeInDays", 90);
+    }
+
+    public static void setMaxAgeInDays(int maxAgeInDays) {
+        Prefs.set(keyPrefix+"maxAgeInDays", maxAgeInDays);
+    }
+
+    /**
+     * @param reg registration, with its parameters set
+     * @param fixedInputs description of the fixed image
+     * @param movingInputs description of the moving image
+     * @return key identifying the result of this registration, or null if some inputs are unknown
+     */
+    public static String getKey(Registration<?> reg, String fixedInputs, String movingInputs) {
+        if ((fixedInputs==null)||(movingInputs==null)) return null;
+        Map<String, String> parameters = new TreeMap<>(reg.getRegistrationParameters());
+        // Where and how the registration is computed does not change its result
+        parameters.remove("serverURL");
+        parameters.remove("taskInfo");
+        parameters.remove("userConsentForServerKeepingData");
+        parameters.remove("showImagePlusRegistrationResult");
+        String description = "v"+VERSION
+                +"|registration:"+reg.getClass().getName()
+                +"|parameters:"+parameters
+                +"|fixed:"+fixedInputs
+                +"|moving:"+movingInputs;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(description.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Reads a registration result from the cache, if it is present
+     * @param key see {@link RegistrationResultDiskCache#getKey}
+     * @return the serialized transform, or null if not found
+     */
+    public static String load(String key) {
+        if ((!isEnabled())||(key==null)) return null;
+        File f = getFile(key);
+        if (!f.exists()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(f))))) {
+            if (in.readInt()!=VERSION) {
+                misses.incrementAndGet();
+                return null;
+            }
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            // Recently used : evicted last
+            f.setLastModified(System.currentTimeMillis());
+            hits.incrementAndGet();
+            return new String(bytes, StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            // Corrupted or incomplete file : it will be written again
+            System.err.println("Could not read cached registration "+f.getAbsolutePath()+" : "+e.getMessage());
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Writes a registration result in the cache. The file is written in a temporary file first,
+     * then moved, so that a partially written file is never read. Old files are evicted if needed.
+     * @param key see {@link RegistrationResultDiskCache#getKey}
+     * @param transform serialized transform, see {@link Registration#getTransform()}
+     */
+    public static void store(String key, String transform) {
+        if ((!isEnabled())||(key==null)||(transform==null)) return;
+        try {
+            if (!cacheDir.exists()) {
+                cacheDir.mkdirs();
+            }
+            File f = getFile(key);
+            File tmp = File.createTempFile(key, ".tmp", cacheDir);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))))) {
+                byte[] bytes = transform.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(VERSION);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            stores.incrementAndGet();
+            evict();
+        } catch (Exception e) {
+            System.err.println("Could not cache registration : "+e.getMessage());
+        }
+    }
+
+    /**
+     * Removes the files older than the maximal age, then the least recently used files
+     * until the cache is smaller than its maximal size
+     */
+    public static synchronized void evict() {
+        File[] files = cacheDir.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files==null) return;
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        long oldest = System.currentTimeMillis()-getMaxAgeInDays()*24L*3600L*1000L;
+        long totalSize = Arrays.stream(files).mapToLong(File::length).sum();
+        long maxSize = getMaxSizeInMB()*1024L*1024L;
+        for (File f : files) {
+            if ((f.lastModified()>=oldest)&&(totalSize<=maxSize)) break;
+            long size = f.length();
+            if (f.delete()) {
+                totalSize -= size;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Removes all cached registrations
+     */
+    public static synchronized void clear() {
+        File[] files = cacheDir.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files==null) return;
+        for (File f : files) {
+            if (f.delete()) evictions.incrementAndGet();
+        }
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    public static String getStatistics() {
+        long h = hits.get(), m = misses.get();
+        return "Registration cache : "+h+" hit(s), "+m+" miss(es)"
+                +((h+m)>0 ? " ("+(100*h/(h+m))+"% hits)" : "")
+                +", "+stores.get()+" stored, "+evictions.get()+" evicted";
+    }
+
+    public static void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+        stores.set(0);
+        evictions.set(0);
+    }
+
+    private static File getFile(String key) {
+        return new File(cacheDir, key+EXTENSION);
+    }
+
+}
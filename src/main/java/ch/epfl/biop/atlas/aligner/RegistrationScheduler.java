@@ -0,0 +1,295 @@
+package ch.epfl.biop.atlas.aligner;
+
+import ch.epfl.biop.atlas.plugin.RegistrationPluginHelper;
+import ch.epfl.biop.registration.Registration;
+import ij.Prefs;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of registrations running at the same time, whatever the slice
+ * they belong to.
+ *
+ * Registrations are grouped by kind : the kind of a registration is its class name,
+ * suffixed by {@link RegistrationScheduler#SERVER_SUFFIX} if the registration is performed on a server.
+ * Each kind has its own number of permits. Registrations waiting for a permit are
+ * admitted in the order of their request (FIFO), across all slices. A waiting registration
+ * can be aborted, see {@link RegistrationScheduler#abort(Registration)}.
+ *
+ * Registrations computed in advance, see {@link SpeculativeRegistrations}, go through the same permits
+ * with a lower priority : they are admitted only when no user registration of the same kind is waiting,
+ * and they leave one permit free for the user when the kind has more than one permit.
+ *
+ * A running registration can take an extra permit for an optional computation, like a coarse preview,
+ * see {@link RegistrationScheduler#tryAcquireExtraPermit(Registration)}.
+ *
+ * Manual registrations are not limited : they are already serialized by {@link MultiSlicePositioner#manualActionLock}
+ *
+ * Number of permits are stored in the IJ preferences.
+ */
+
+public class RegistrationScheduler {
+
+    public static String keyPrefix = RegistrationScheduler.class.getName()+".";
+
+    public final static String SERVER_SUFFIX = "-server";
+
+    private final Map<String, RegistrationGate> gates = new ConcurrentHashMap<>();
+
+    /**
+     * Blocking function : waits for a permit for this kind of registration, then runs the registration
+     * @param reg registration to run
+     * @return the result of the registration, false if it has been aborted before it started
+     */
+    public boolean register(Registration<?> reg) {
+        return register(reg, false);
+    }
+
+    /**
+     * Blocking function : waits for a permit, with a lower priority than user registrations, then runs the registration
+     * @param reg registration to run
+     * @return the result of the registration, false if it has been aborted before it started
+     */
+    public boolean registerInBackground(Registration<?> reg) {
+        return register(reg, true);
+    }
+
+    private boolean register(Registration<?> reg, boolean background) {
+        if (RegistrationPluginHelper.isManual(reg)) {
+            return reg.register();
+        }
+        RegistrationGate gate = getGate(getRegistrationKind(reg));
+        try {
+            if (!gate.acquire(reg, background)) return false; // Aborted
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        try {
+            return reg.register();
+        } finally {
+            gate.release();
+        }
+    }
+
+    /**
+     * Non blocking : takes a permit for an optional computation of a running registration, for instance
+     * a coarse preview, only if a permit is free and no user registration of the same kind is waiting.
+     * The permit has to be given back with {@link RegistrationScheduler#releaseExtraPermit(Registration)}
+     * @param reg registration which runs the optional computation
+     * @return true if a permit was taken, false if the optional computation should not be run
+     */
+    public boolean tryAcquireExtraPermit(Registration<?> reg) {
+        if (RegistrationPluginHelper.isManual(reg)) return true;
+        return getGate(getRegistrationKind(reg)).tryAcquireExtra();
+    }
+
+    /**
+     * Gives back a permit taken with {@link RegistrationScheduler#tryAcquireExtraPermit(Registration)}
+     * @param reg registration which ran the optional computation
+     */
+    public void releaseExtraPermit(Registration<?> reg) {
+        if (RegistrationPluginHelper.isManual(reg)) return;
+        getGate(getRegistrationKind(reg)).releaseExtra();
+    }
+
+    /**
+     * Aborts a registration which has not started yet : it is removed from the waiting queue,
+     * or it will not be queued if it is not submitted yet.
+     * If it is running or done, nothing is done : use {@link Registration#abort()}
+     * @param reg registration to abort
+     */
+    public void abort(Registration<?> reg) {
+        if (RegistrationPluginHelper.isManual(reg)) return;
+        getGate(getRegistrationKind(reg)).abort(reg);
+    }
+
+    /**
+     * @param reg registration
+     * @return the kind of registration, used to choose the number of simultaneous registrations allowed
+     */
+    public static String getRegistrationKind(Registration<?> reg) {
+        String kind = reg.getClass().getSimpleName();
+        if ((reg.getRegistrationParameters()!=null)&&(reg.getRegistrationParameters().containsKey("serverURL"))) {
+            kind += SERVER_SUFFIX;
+        }
+        return kind;
+    }
+
+    private RegistrationGate getGate(String kind) {
+        return gates.computeIfAbsent(kind, k -> new RegistrationGate(getPermits(k)));
+    }
+
+    // ------------------- Permits
+
+    /**
+     * Sets the maximal number of simultaneous registrations for a kind of registration.
+     * This value is stored and used for the next sessions
+     * @param kind see {@link RegistrationScheduler#getRegistrationKind(Registration)}
+     * @param nPermits maximal number of simultaneous registrations
+     */
+    public void setPermits(String kind, int nPermits) {
+        nPermits = Math.max(1, nPermits);
+        Prefs.set(keyPrefix+"permits."+kind, nPermits);
+        getGate(kind).setPermits(nPermits);
+    }
+
+    /**
+     * Sets the default maximal number of simultaneous registrations, for all kinds of registrations
+     * which do not have a specific value set. Already existing kinds are updated as well.
+     * @param nLocalPermits maximal number of simultaneous registrations performed locally
+     * @param nServerPermits maximal number of simultaneous registrations performed on a server
+     */
+    public void setDefaultPermits(int nLocalPermits, int nServerPermits) {
+        Prefs.set(keyPrefix+"defaultLocalPermits", Math.max(1, nLocalPermits));
+        Prefs.set(keyPrefix+"defaultServerPermits", Math.max(1, nServerPermits));
+        gates.forEach((kind, gate) -> gate.setPermits(getPermits(kind)));
+    }
+
+    public static int getPermits(String kind) {
+        int defaultPermits = kind.endsWith(SERVER_SUFFIX)?getDefaultServerPermits():getDefaultLocalPermits();
+        return (int) Prefs.get(keyPrefix+"permits."+kind, defaultPermits);
+    }
+
+    public static int getDefaultLocalPermits() {
+        return (int) Prefs.get(keyPrefix+"defaultLocalPermits", Math.max(1, Runtime.getRuntime().availableProcessors()/2));
+    }
+
+    public static int getDefaultServerPermits() {
+        return (int) Prefs.get(keyPrefix+"defaultServerPermits", 32);
+    }
+
+    // ------------------- Gauges
+
+    public int getQueuedCount() {
+        return gates.values().stream().mapToInt(gate -> gate.queued.get()).sum();
+    }
+
+    public int getRunningCount() {
+        return gates.values().stream().mapToInt(gate -> gate.running.get()).sum();
+    }
+
+    public int getFinishedCount() {
+        return gates.values().stream().mapToInt(gate -> gate.finished.get()).sum();
+    }
+
+    public int getQueuedCount(String kind) {
+        return getGate(kind).queued.get();
+    }
+
+    public int getRunningCount(String kind) {
+        return getGate(kind).running.get();
+    }
+
+    public int getFinishedCount(String kind) {
+        return getGate(kind).finished.get();
+    }
+
+    public String toString() {
+        return "Registrations : "+getRunningCount()+" running, "+getQueuedCount()+" queued, "+getFinishedCount()+" finished";
+    }
+
+    static class RegistrationGate {
+
+        // Registrations waiting for a permit, in the order of their request
+        final LinkedList<Registration<?>> waiting = new LinkedList<>();
+
+        // Background registrations waiting for a permit, admitted after the ones above
+        final LinkedList<Registration<?>> waitingInBackground = new LinkedList<>();
+
+        // Registrations aborted before being submitted, and registrations already submitted :
+        // weak, in order not to keep registrations of deleted slices
+        final Set<Registration<?>> abortedBeforeSubmission = Collections.newSetFromMap(new WeakHashMap<>());
+
+        final Set<Registration<?>> submitted = Collections.newSetFromMap(new WeakHashMap<>());
+
+        final AtomicInteger queued = new AtomicInteger(0);
+
+        final AtomicInteger running = new AtomicInteger(0);
+
+        final AtomicInteger finished = new AtomicInteger(0);
+
+        int permits;
+
+        RegistrationGate(int permits) {
+            this.permits = permits;
+        }
+
+        /**
+         * Blocking : waits until the registration is the first in its queue and a permit is free
+         * @param background true for a registration computed in advance
+         * @return true if a permit was acquired, false if the registration was aborted
+         */
+        synchronized boolean acquire(Registration<?> reg, boolean background) throws InterruptedException {
+            if (abortedBeforeSubmission.remove(reg)) return false;
+            LinkedList<Registration<?>> queue = background ? waitingInBackground : waiting;
+            submitted.add(reg);
+            queue.addLast(reg);
+            queued.incrementAndGet();
+            try {
+                while (!canStart(reg, background)) {
+                    if (!queue.contains(reg)) return false; // Removed by abort
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                if (queue.remove(reg)) queued.decrementAndGet();
+                notifyAll();
+                throw e;
+            }
+            queue.removeFirst();
+            queued.decrementAndGet();
+            running.incrementAndGet();
+            notifyAll(); // The next registration may be admitted as well
+            return true;
+        }
+
+        private boolean canStart(Registration<?> reg, boolean background) {
+            if (background) {
+                // One permit is kept for the user, unless there is only one
+                return waiting.isEmpty() && (waitingInBackground.peekFirst()==reg) && (running.get()<Math.max(1, permits-1));
+            } else {
+                return (waiting.peekFirst()==reg) && (running.get()<permits);
+            }
+        }
+
+        synchronized void release() {
+            running.decrementAndGet();
+            finished.incrementAndGet();
+            notifyAll();
+        }
+
+        synchronized boolean tryAcquireExtra() {
+            if ((!waiting.isEmpty())||(running.get()>=permits)) return false;
+            running.incrementAndGet();
+            return true;
+        }
+
+        synchronized void releaseExtra() {
+            running.decrementAndGet(); // Not a finished registration
+            notifyAll();
+        }
+
+        synchronized void abort(Registration<?> reg) {
+            if (waiting.remove(reg)||waitingInBackground.remove(reg)) {
+                queued.decrementAndGet();
+                notifyAll();
+            } else if (!submitted.contains(reg)) {
+                abortedBeforeSubmission.add(reg);
+            }
+            // Otherwise running or done : nothing to record
+        }
+
+        synchronized void setPermits(int newPermits) {
+            permits = newPermits;
+            notifyAll();
+        }
+
+    }
+
+}
@@ -0,0 +1,447 @@
+package ch.epfl.biop.atlas.aligner;
+
+import ij.Prefs;
+import org.scijava.Context;
+import org.scijava.command.Command;
+import org.scijava.command.CommandModule;
+import org.scijava.command.CommandService;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Spreads remote registration jobs over several workers, typically registration servers.
+ *
+ * Each worker runs a fixed number of jobs at the same time (its capacity) and has its own queue of jobs.
+ * A job is queued to the least loaded worker ; a worker with an empty queue takes the oldest pending jobs
+ * of the most loaded workers (work stealing), so that fast workers end up processing more jobs.
+ *
+ * The health of each worker is checked regularly, and right after a job failed on it. A worker which is
+ * not alive does not take jobs anymore : its queued jobs are taken by the other workers. A failed job is
+ * sent again to another worker, up to a maximum number of attempts. A job fails if no alive worker
+ * remains on which it has not failed yet, or if it is not done before a timeout.
+ *
+ * Results of jobs submitted with a key are kept : a job submitted again with the same key (a registration
+ * redone after an undo, for instance) gets the previous result without being sent to any worker.
+ *
+ * Health check period, number of attempts, job timeout, capacity of servers and number of results kept are stored in the IJ preferences.
+ */
+
+public class RegistrationWorkerPool {
+
+    public static String keyPrefix = RegistrationWorkerPool.class.getName()+".";
+
+    /**
+     * Something which can run registration jobs
+     */
+    public interface Worker {
+
+        /**
+         * @return name of the worker, the url for a registration server
+         */
+        String getName();
+
+        /**
+         * Health check, should not block for long
+         * @return true if the worker can run jobs
+         */
+        boolean isAlive();
+
+        /**
+         * @return number of jobs this worker can run at the same time
+         */
+        int getCapacity();
+    }
+
+    public interface Job<T> {
+        /**
+         * Blocking : runs the job on a worker
+         * @param worker the worker which runs the job
+         * @return the result of the job
+         * @throws Exception if the job failed, it is then retried on another worker
+         */
+        T run(Worker worker) throws Exception;
+    }
+
+    /**
+     * A registration server, alive if it answers a http request without server error
+     */
+    public static class ServerWorker implements Worker {
+
+        final String url;
+
+        final int capacity;
+
+        public ServerWorker(String url, int capacity) {
+            this.url = url;
+            this.capacity = capacity;
+        }
+
+        @Override
+        public String getName() {
+            return url;
+        }
+
+        @Override
+        public boolean isAlive() {
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                connection.setConnectTimeout(getHealthCheckTimeoutInMs());
+                connection.setReadTimeout(getHealthCheckTimeoutInMs());
+                int code = connection.getResponseCode();
+                connection.disconnect();
+                return code<500;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public int getCapacity() {
+            return capacity;
+        }
+    }
+
+    private final List<WorkerState> workers = new ArrayList<>();
+
+    // Results of the jobs submitted with a key, LRU
+    private final Map<Object, CompletableFuture<?>> results = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final ScheduledExecutorService healthChecker;
+
+    private final Object lock = new Object();
+
+    private volatile boolean closed = false;
+
+    private final int maxAttempts = getMaxAttempts();
+
+    private final int maxResultsKept = getMaxResultsKept();
+
+    private final long jobTimeoutInMs = getJobTimeoutInMs();
+
+    /**
+     * Starts the threads which run the jobs on the workers, and the periodic health check
+     * @param workers workers of this pool
+     */
+    public RegistrationWorkerPool(List<? extends Worker> workers) {
+        for (Worker worker : workers) {
+            WorkerState state = new WorkerState(worker);
+            this.workers.add(state);
+            for (int i = 0; i<Math.max(1, worker.getCapacity()); i++) {
+                Thread slot = new Thread(() -> runJobs(state), "ABBA-worker-"+worker.getName()+"-"+i);
+                slot.setDaemon(true);
+                slot.start();
+            }
+        }
+        healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ABBA-worker-health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = getHealthCheckPeriodInMs();
+        healthChecker.scheduleWithFixedDelay(this::checkWorkers, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Non blocking : queues a job
+     * @param key identifies the result of the job, can be null if the result should not be kept
+     * @param job job to run
+     * @param <T> type of the result
+     * @return a future completed by the result of the job, or exceptionally if it failed on all attempts
+     * or timed out. Cancelling this future does not cancel a job shared with another submission of the same key.
+     */
+    public <T> CompletableFuture<T> submit(Object key, Job<T> job) {
+        CompletableFuture<T> result;
+        synchronized (results) {
+            if (key!=null) {
+                CompletableFuture<?> previous = results.get(key);
+                if ((previous!=null)&&(!previous.isCompletedExceptionally())) {
+                    return ((CompletableFuture<T>) previous).thenApply(Function.identity());
+                }
+            }
+            PendingJob<T> pending = new PendingJob<>(job);
+            result = pending.future;
+            if (key!=null) {
+                results.put(key, result);
+                if (results.size()>maxResultsKept) {
+                    Iterator<Object> it = results.keySet().iterator();
+                    it.next();
+                    it.remove();
+                }
+            }
+            enqueue(pending);
+        }
+        if ((jobTimeoutInMs>0)&&(!result.isDone())) {
+            try {
+                ScheduledFuture<?> timeout = healthChecker.schedule(() -> {
+                    result.completeExceptionally(new TimeoutException("Registration job not done after "+jobTimeoutInMs+" ms"));
+                }, jobTimeoutInMs, TimeUnit.MILLISECONDS);
+                result.whenComplete((r, e) -> timeout.cancel(false));
+            } catch (RejectedExecutionException e) {
+                result.completeExceptionally(new CancellationException("Worker pool closed"));
+            }
+        }
+        return result.thenApply(Function.identity());
+    }
+
+    /**
+     * Stops the health check and the threads of the workers. Pending jobs are failed.
+     */
+    public void close() {
+        closed = true;
+        healthChecker.shutdownNow();
+        synchronized (lock) {
+            for (WorkerState state : workers) {
+                PendingJob<?> job;
+                while ((job = state.queue.pollFirst())!=null) {
+                    job.future.completeExceptionally(new CancellationException("Worker pool closed"));
+                }
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private void enqueue(PendingJob<?> job) {
+        // Least loaded alive worker on which the job has not failed yet : a dead worker does not
+        // take jobs, and the other workers do not steal a job which failed on them
+        Optional<WorkerState> target = workers.stream()
+                .filter(state -> state.alive && !job.failedOn.contains(state))
+                .min(Comparator.comparingDouble(WorkerState::load));
+        if (!target.isPresent()) {
+            job.future.completeExceptionally(new IOException("Registration job failed on all workers"));
+            return;
+        }
+        synchronized (lock) {
+            target.get().queue.addLast(job);
+            lock.notifyAll();
+        }
+    }
+
+    private void runJobs(WorkerState state) {
+        while (!closed) {
+            PendingJob<?> job = null;
+            if (state.alive) {
+                job = state.queue.pollFirst();
+                if (job==null) job = steal(state);
+            }
+            if (job==null) {
+                synchronized (lock) {
+                    try {
+                        lock.wait(500);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            if (job.future.isDone()) continue; // Cancelled
+            run(job, state);
+        }
+    }
+
+    private PendingJob<?> steal(WorkerState thief) {
+        List<WorkerState> victims = workers.stream()
+                .filter(state -> state!=thief)
+                .sorted(Comparator.comparingInt((WorkerState state) -> state.queue.size()).reversed())
+                .collect(Collectors.toList());
+        for (WorkerState victim : victims) {
+            for (PendingJob<?> job : victim.queue) {
+                if ((!job.failedOn.contains(thief))&&(victim.queue.remove(job))) {
+                    thief.stolen.incrementAndGet();
+                    return job;
+                }
+            }
+        }
+        return null;
+    }
+
+    private <T> void run(PendingJob<T> job, WorkerState state) {
+        state.running.incrementAndGet();
+        try {
+            T result = job.job.run(state.worker);
+            state.succeeded.incrementAndGet();
+            job.future.complete(result);
+        } catch (Exception e) {
+            state.failed.incrementAndGet();
+            job.failedOn.add(state);
+            job.attempts++;
+            System.err.println("Registration job failed on "+state.worker.getName()+" (attempt "+job.attempts+"/"+maxAttempts+") : "+e.getMessage());
+            checkWorker(state);
+            if (job.attempts>=maxAttempts) {
+                job.future.completeExceptionally(e);
+            } else {
+                enqueue(job);
+            }
+        } finally {
+            state.running.decrementAndGet();
+        }
+    }
+
+    private void checkWorkers() {
+        workers.forEach(this::checkWorker);
+    }
+
+    private void checkWorker(WorkerState state) {
+        boolean alive = state.worker.isAlive();
+        synchronized (state) {
+            if (alive==state.alive) return;
+            System.out.println("Registration worker "+state.worker.getName()+(alive ? " is back" : " is not responding"));
+            state.alive = alive;
+        }
+        if (!alive) {
+            // Queued jobs are sent to the remaining workers, or failed if none can take them
+            PendingJob<?> job;
+            while ((job = state.queue.pollFirst())!=null) {
+                if (!job.future.isDone()) enqueue(job);
+            }
+        }
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Registration workers :\n");
+        for (WorkerState state : workers) {
+            sb.append("\t").append(state).append("\n");
+        }
+        return sb.toString();
+    }
+
+    static class PendingJob<T> {
+
+        final Job<T> job;
+
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        final Set<WorkerState> failedOn = ConcurrentHashMap.newKeySet();
+
+        int attempts = 0;
+
+        PendingJob(Job<T> job) {
+            this.job = job;
+        }
+    }
+
+    static class WorkerState {
+
+        final Worker worker;
+
+        final Deque<PendingJob<?>> queue = new ConcurrentLinkedDeque<>();
+
+        volatile boolean alive = true;
+
+        final AtomicInteger running = new AtomicInteger();
+
+        final AtomicInteger succeeded = new AtomicInteger();
+
+        final AtomicInteger failed = new AtomicInteger();
+
+        final AtomicInteger stolen = new AtomicInteger();
+
+        WorkerState(Worker worker) {
+            this.worker = worker;
+        }
+
+        double load() {
+            return (queue.size()+running.get())/(double) Math.max(1, worker.getCapacity());
+        }
+
+        @Override
+        public String toString() {
+            return worker.getName()+(alive ? "" : " [not responding]")+" : "+running.get()+" running, "
+                    +queue.size()+" queued, "+succeeded.get()+" done, "+failed.get()+" failed, "+stolen.get()+" stolen";
+        }
+    }
+
+    // ------------------------- Registration servers
+
+    private static final Map<String, RegistrationWorkerPool> serverPools = new ConcurrentHashMap<>();
+
+    /**
+     * @param serverURLs urls of the registration servers, comma separated
+     * @return the pool of workers shared by all registrations sent to these servers
+     */
+    public static RegistrationWorkerPool getServerPool(String serverURLs) {
+        return serverPools.computeIfAbsent(serverURLs.trim(), urls -> new RegistrationWorkerPool(
+                Arrays.stream(urls.split(","))
+                        .map(String::trim)
+                        .filter(url -> !url.isEmpty())
+                        .map(url -> new ServerWorker(url, getJobsPerServer()))
+                        .collect(Collectors.toList())));
+    }
+
+    /**
+     * Non blocking : runs a server registration command on one of the servers given in the parameters.
+     * The 'serverURL' parameter may contain several urls, comma separated : the command is then
+     * run with the url of the server chosen by the pool.
+     * @param context scijava context
+     * @param commandClass server registration command
+     * @param flatParameters parameters of the command : key1, value1, key2, value2, etc. ; contains 'serverURL'
+     * @param resultKey identifies the result of the registration, null if it should not be kept
+     * @return the future command module, completed exceptionally if the registration failed on all attempts
+     */
+    public static CompletableFuture<CommandModule> runOnServers(Context context, Class<? extends Command> commandClass,
+                                                                List<Object> flatParameters, Object resultKey) {
+        int urlIndex = flatParameters.indexOf("serverURL")+1;
+        if (urlIndex==0) throw new IllegalArgumentException("No serverURL parameter");
+        return getServerPool(flatParameters.get(urlIndex).toString()).submit(resultKey, worker -> {
+            Object[] parameters = flatParameters.toArray(new Object[0]);
+            parameters[urlIndex] = worker.getName();
+            CommandModule module = context.getService(CommandService.class)
+                    .run(commandClass, false, parameters).get();
+            if (module.getOutputs().containsKey("success")&&(!((boolean) module.getOutput("success")))) {
+                throw new IOException("Registration not successful");
+            }
+            return module;
+        });
+    }
+
+    public static int getJobsPerServer() {
+        return (int) Prefs.get(keyPrefix+"jobsPerServer", 2);
+    }
+
+    public static void setJobsPerServer(int jobsPerServer) {
+        Prefs.set(keyPrefix+"jobsPerServer", jobsPerServer);
+    }
+
+    public static int getMaxAttempts() {
+        return (int) Prefs.get(keyPrefix+"maxAttempts", 3);
+    }
+
+    public static void setMaxAttempts(int maxAttempts) {
+        Prefs.set(keyPrefix+"maxAttempts", maxAttempts);
+    }
+
+    public static long getHealthCheckPeriodInMs() {
+        return (long) Prefs.get(keyPrefix+"healthCheckPeriodInMs", 30000);
+    }
+
+    public static void setHealthCheckPeriodInMs(long periodInMs) {
+        Prefs.set(keyPrefix+"healthCheckPeriodInMs", periodInMs);
+    }
+
+    public static int getHealthCheckTimeoutInMs() {
+        return (int) Prefs.get(keyPrefix+"healthCheckTimeoutInMs", 5000);
+    }
+
+    public static long getJobTimeoutInMs() {
+        return (long) Prefs.get(keyPrefix+"jobTimeoutInMs", 30*60*1000);
+    }
+
+    public static void setJobTimeoutInMs(long timeoutInMs) {
+        Prefs.set(keyPrefix+"jobTimeoutInMs", timeoutInMs);
+    }
+
+    public static int getMaxResultsKept() {
+        return (int) Prefs.get(keyPrefix+"maxResultsKept", 500);
+    }
+
+}
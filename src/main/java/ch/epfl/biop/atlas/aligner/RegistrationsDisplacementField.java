@@ -0,0 +1,210 @@
+package ch.epfl.biop.atlas.aligner;
+
+import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.registration.Registration;
+import ch.epfl.biop.registration.sourceandconverter.affine.AffineTransformSourceAndConverterRegistration;
+import ij.Prefs;
+import net.imglib2.RealInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collapses a chain of registrations into a single 2D displacement field, sampled on a regular grid.
+ *
+ * Displaying a slice goes through a transformed source for each registration, and each spline
+ * registration is evaluated for every pixel, at every frame. With this field, the chain costs
+ * a single bilinear lookup per pixel. The field maps fixed (atlas) coordinates to the coordinates
+ * of the slice before the registrations, like {@link Registration#transformPtsFixedToMoving(double[])}
+ * applied in reverse order on all registrations of the chain.
+ *
+ * Only x and y are transformed, as for the regions export. Points outside of the grid are
+ * transformed through the registrations themselves.
+ *
+ * The default state and the resolution of the field are stored in the IJ preferences.
+ */
+
+public class RegistrationsDisplacementField implements RealTransform {
+
+    public static String keyPrefix = RegistrationsDisplacementField.class.getName()+".";
+
+    final List<Registration<SourceAndConverter<?>[]>> registrations;
+
+    final double minX, minY, step;
+
+    final int nx, ny;
+
+    // Displacement along x and y of each grid node
+    final ArrayImg<FloatType, FloatArray> dx, dy;
+
+    final float[] dxData, dyData;
+
+    // Registrations are not guaranteed to be thread safe : shared between copies
+    final Object fallbackLock;
+
+    /**
+     * Blocking : computes the field on all grid nodes
+     * @param registrations chain of registrations collapsed, in the order they were performed
+     * @param domain region covered by the grid, in fixed coordinates (only x and y are used)
+     * @param step grid spacing, in physical units
+     */
+    public RegistrationsDisplacementField(List<Registration<SourceAndConverter<?>[]>> registrations, RealInterval domain, double step) {
+        this.registrations = new ArrayList<>(registrations);
+        this.minX = domain.realMin(0);
+        this.minY = domain.realMin(1);
+        this.step = step;
+        this.nx = Math.max(2, (int) Math.ceil((domain.realMax(0)-minX)/step)+1);
+        this.ny = Math.max(2, (int) Math.ceil((domain.realMax(1)-minY)/step)+1);
+        this.dx = ArrayImgs.floats(nx, ny);
+        this.dy = ArrayImgs.floats(nx, ny);
+        this.dxData = dx.update(null).getCurrentStorageArray();
+        this.dyData = dy.update(null).getCurrentStorageArray();
+        this.fallbackLock = new Object();
+
+        double[] xy = new double[2*nx*ny];
+        int k = 0;
+        for (int j = 0; j<ny; j++) {
+            for (int i = 0; i<nx; i++) {
+                xy[k++] = minX+i*step;
+                xy[k++] = minY+j*step;
+            }
+        }
+
+        for (int i = this.registrations.size()-1; i>=0; i--) {
+            this.registrations.get(i).transformPtsFixedToMoving(xy);
+        }
+
+        k = 0;
+        for (int j = 0; j<ny; j++) {
+            for (int i = 0; i<nx; i++) {
+                dxData[i+j*nx] = (float) (xy[k++]-(minX+i*step));
+                dyData[i+j*nx] = (float) (xy[k++]-(minY+j*step));
+            }
+        }
+    }
+
+    private RegistrationsDisplacementField(RegistrationsDisplacementField model) {
+        this.registrations = model.registrations;
+        this.minX = model.minX;
+        this.minY = model.minY;
+        this.step = model.step;
+        this.nx = model.nx;
+        this.ny = model.ny;
+        this.dx = model.dx;
+        this.dy = model.dy;
+        this.dxData = model.dxData;
+        this.dyData = model.dyData;
+        this.fallbackLock = model.fallbackLock;
+    }
+
+    /**
+     * @param registrations registrations of a slice
+     * @return true if one of the registrations is not affine, i.e. if collapsing the registrations
+     * speeds up the display
+     */
+    public static boolean isWorthCollapsing(List<? extends Registration<?>> registrations) {
+        return registrations.stream().anyMatch(reg -> !(reg instanceof AffineTransformSourceAndConverterRegistration));
+    }
+
+    @Override
+    public int numSourceDimensions() {
+        return 3;
+    }
+
+    @Override
+    public int numTargetDimensions() {
+        return 3;
+    }
+
+    @Override
+    public void apply(double[] source, double[] target) {
+        double u = (source[0]-minX)/step;
+        double v = (source[1]-minY)/step;
+        int i = (int) Math.floor(u);
+        int j = (int) Math.floor(v);
+        if ((i>=0)&&(j>=0)&&(i<nx-1)&&(j<ny-1)) {
+            double fu = u-i;
+            double fv = v-j;
+            int index = i+j*nx;
+            double w00 = (1-fu)*(1-fv), w10 = fu*(1-fv), w01 = (1-fu)*fv, w11 = fu*fv;
+            double x = source[0] + w00*dxData[index] + w10*dxData[index+1] + w01*dxData[index+nx] + w11*dxData[index+nx+1];
+            double y = source[1] + w00*dyData[index] + w10*dyData[index+1] + w01*dyData[index+nx] + w11*dyData[index+nx+1];
+            target[0] = x;
+            target[1] = y;
+        } else {
+            double[] xy = new double[]{source[0], source[1]};
+            synchronized (fallbackLock) {
+                for (int k = registrations.size()-1; k>=0; k--) {
+                    registrations.get(k).transformPtsFixedToMoving(xy);
+                }
+            }
+            target[0] = xy[0];
+            target[1] = xy[1];
+        }
+        target[2] = source[2];
+    }
+
+    @Override
+    public void apply(RealLocalizable source, RealPositionable target) {
+        double[] s = new double[3];
+        double[] t = new double[3];
+        source.localize(s);
+        apply(s, t);
+        target.setPosition(t);
+    }
+
+    @Override
+    public RealTransform copy() {
+        return new RegistrationsDisplacementField(this);
+    }
+
+    /**
+     * @return displacement along x of each grid node, in physical units
+     */
+    public ArrayImg<FloatType, FloatArray> getDisplacementX() {
+        return dx;
+    }
+
+    /**
+     * @return displacement along y of each grid node, in physical units
+     */
+    public ArrayImg<FloatType, FloatArray> getDisplacementY() {
+        return dy;
+    }
+
+    public long getSizeInBytes() {
+        return 2L*4L*nx*ny;
+    }
+
+    // ------------------- Defaults
+
+    /**
+     * @return true if newly created slices collapse their registrations for display
+     */
+    public static boolean isEnabledByDefault() {
+        return Prefs.get(keyPrefix+"enabled", false);
+    }
+
+    public static void setEnabledByDefault(boolean enabled) {
+        Prefs.set(keyPrefix+"enabled", enabled);
+    }
+
+    /**
+     * @return grid spacing of the field, in physical units (mm for the atlases)
+     */
+    public static double getResolution() {
+        return Prefs.get(keyPrefix+"resolution", 0.05);
+    }
+
+    public static void setResolution(double resolution) {
+        Prefs.set(keyPrefix+"resolution", resolution);
+    }
+
+}
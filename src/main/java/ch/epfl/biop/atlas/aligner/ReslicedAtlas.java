@@ -1,11 +1,14 @@
 package ch.epfl.biop.atlas.aligner;
 
 import bdv.tools.transformation.TransformedSource;
+import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.atlas.AnalyticalAtlasSource;
 import ch.epfl.biop.atlas.BiopAtlas;
 import ch.epfl.biop.sourceandconverter.EmptyMultiResolutionSourceAndConverterCreator;
 import ch.epfl.biop.registration.sourceandconverter.affine.AffineTransformedSourceWrapperRegistration;
 import ch.epfl.biop.sourceandconverter.transform.SourceMosaicZSlicer;
+import ij.Prefs;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealInterval;
 import net.imglib2.RealPoint;
@@ -15,13 +18,40 @@ import sc.fiji.bdvpg.services.SourceAndConverterServices;
 import sc.fiji.bdvpg.sourceandconverter.transform.SourceAffineTransformer;
 import sc.fiji.bdvpg.sourceandconverter.transform.SourceResampler;
 
+import javax.swing.SwingUtilities;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Atlas resliced along the slicing axis of the aligner.
+ *
+ * The resliced sources are wrappers around the atlas sources, which all depend on a shared
+ * slicing model. Changing the angles, the displayed step, or the slicing transform when the
+ * sampling grid keeps the same size updates the transforms of these wrappers in place : the
+ * wrappers are only recreated when the sampling grid changes.
+ *
+ * Listeners are notified once the changes stop for a short delay (stored in the IJ preferences),
+ * so that dragging the rotation sliders does not trigger a display update for each intermediate angle.
+ * This includes a new computation of the resliced sources (transform or resolution change).
+ * Listeners added with {@link ReslicedAtlas#addUIListener(Runnable)} are run in the event dispatch thread.
+ */
 
 public class ReslicedAtlas implements RealInterval {
 
+    public static String keyPrefix = ReslicedAtlas.class.getName()+".";
+
     final public BiopAtlas ba;
 
+    // Slicing transform, as set by the user, without the resolution scaling
+    AffineTransform3D slicingAxes = new AffineTransform3D();
+
     AffineTransform3D slicingTransfom = new AffineTransform3D();
 
     double slicingResolution = -1;
@@ -44,18 +74,88 @@ public class ReslicedAtlas implements RealInterval {
 
     private double cXinSlicingRef, cYinSlicingRef, cZinSlicingRef;
 
-    List<Runnable> listeners = new ArrayList<>();
+    // Listeners can be added while a notification is being sent
+    final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    final List<Runnable> uiListeners = new CopyOnWriteArrayList<>();
+
+    // Sources resliced by the mosaic slicer, before being centered
+    private SourceAndConverter[] mosaicSlicedSources;
+
+    // Size of the sampling grid of the current slicing model
+    private long[] slicingModelDimensions;
+
+    private final ScheduledExecutorService notifier = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ABBA-ReslicedAtlas-notifier");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ScheduledFuture<?> pendingNotification;
+
+    // Resliced sources, before the shift of the non extended sources, which can be baked on disk
+    private List<SourceAndConverter> bakeableSources = new ArrayList<>();
 
     public ReslicedAtlas(BiopAtlas ba) {
         this.ba = ba;
     }
 
+    /**
+     * @param runnable run in the notifier thread when the slicing changes
+     */
     public void addListener(Runnable runnable) {
         listeners.add(runnable);
     }
 
+    /**
+     * @param runnable run in the event dispatch thread when the slicing changes, for display updates
+     */
+    public void addUIListener(Runnable runnable) {
+        uiListeners.add(runnable);
+    }
+
+    private void notifyListeners() {
+        listeners.forEach(Runnable::run);
+        uiListeners.forEach(SwingUtilities::invokeLater);
+    }
+
+    /**
+     * Notifies the listeners once no other change happened during the debounce delay
+     */
+    synchronized void fireSlicingChanged() {
+        if (pendingNotification != null) {
+            pendingNotification.cancel(false);
+        }
+        long delay = getDebounceDelayInMs();
+        if (delay<=0) {
+            pendingNotification = null;
+            notifyListeners();
+        } else {
+            pendingNotification = notifier.schedule(this::notifyListeners, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static long getDebounceDelayInMs() {
+        return (long) Prefs.get(keyPrefix+"debounceDelayInMs", 100);
+    }
+
+    public static void setDebounceDelayInMs(long delay) {
+        Prefs.set(keyPrefix+"debounceDelayInMs", delay);
+    }
+
     public void setSlicingTransform(AffineTransform3D slicingTransfom) {
-        this.slicingTransfom = slicingTransfom;
+        this.slicingAxes = slicingTransfom.copy();
+        computeReslicedSources();
+    }
+
+    /**
+     * Sets both the slicing transform and the resolution, with a single computation of the resliced sources
+     * @param slicingTransfom slicing transform, without resolution scaling
+     * @param slicingResolution resolution of the resliced sources
+     */
+    public void setSlicingTransformAndResolution(AffineTransform3D slicingTransfom, double slicingResolution) {
+        this.slicingAxes = slicingTransfom.copy();
+        this.slicingResolution = slicingResolution;
         computeReslicedSources();
     }
 
@@ -77,12 +177,14 @@ public class ReslicedAtlas implements RealInterval {
     double minYAxis = Double.MAX_VALUE;
     double maxYAxis = -Double.MAX_VALUE;
 
-    void computeReslicedSources() {
-        if ((slicingTransfom==null)||(slicingResolution<=0)) {
+    synchronized void computeReslicedSources() {
+        if ((slicingAxes==null)||(slicingResolution<=0)) {
             System.err.println("No slicing transform or slicing resolution specified");
             return;
         }
 
+        slicingTransfom = slicingAxes.copy();
+
         // ----------------------------- COMPUTES BOUNDS
 
         // No let's check for bounds along the z axis
@@ -189,6 +291,14 @@ public class ReslicedAtlas implements RealInterval {
 
         adjustShiftSlicingTransform(slicingTransfom, cX, cY, cZ, nPixX, nPixY, nPixZ);
 
+        long[] dimensions = new long[]{nPixX, nPixY, nPixZ};
+        if ((slicingModel!=null)&&(Arrays.equals(dimensions, slicingModelDimensions))) {
+            // Same sampling grid : the wrappers are kept, only their transforms are updated
+            updateReslicedSourcesInPlace();
+            return;
+        }
+        slicingModelDimensions = dimensions;
+
         // ------------------- NOW COMPUTES SOURCEANDCONVERTERS
         // 0 - slicing model : empty source but properly defined in space and resolution
         AffineTransform3D m = new AffineTransform3D();
@@ -209,9 +319,16 @@ public class ReslicedAtlas implements RealInterval {
 
         SourceAndConverterServices.getSourceAndConverterService().register(slicingModel);
 
+        // Previous resliced sources are replaced
+        if (extendedSlicedSources!=null) {
+            SourceAndConverterServices.getSourceAndConverterService().remove(extendedSlicedSources);
+        }
+
         // 1 -
         extendedSlicedSources = new SourceAndConverter[ba.map.getStructuralImages().size()+1];
+        mosaicSlicedSources = new SourceAndConverter[ba.map.getStructuralImages().size()+1];
         SourceAndConverter[] tempNonExtendedSlicedSources = new SourceAndConverter[ba.map.getStructuralImages().size()+1];
+        bakeableSources = new ArrayList<>();
 
         SourceMosaicZSlicer mosaic = new SourceMosaicZSlicer(null, slicingModel, true, false, false,
                 () -> getStep());
@@ -231,25 +348,21 @@ public class ReslicedAtlas implements RealInterval {
             }
 
             SourceAndConverter reslicedSac = mosaic.apply(sac);
-            tempNonExtendedSlicedSources[index] = resampler.apply(sac);
+            mosaicSlicedSources[index] = reslicedSac;
+            SourceAndConverter resampledSac = resampler.apply(sac);
+            if (isAnalytical(index)) {
+                // Computed on the fly : nothing to gain by baking it
+                tempNonExtendedSlicedSources[index] = resampledSac;
+            } else {
+                // Serves the baked volume instead of resampling the atlas when this slicing geometry has been baked
+                tempNonExtendedSlicedSources[index] = new SourceAndConverter(
+                        new ReslicedAtlasDiskCache.BakedOrResampledSource(resampledSac.getSpimSource(), ba, index),
+                        resampledSac.getConverter());
+                bakeableSources.add(tempNonExtendedSlicedSources[index]);
+            }
 
             if (centerTransform == null) {
-                centerTransform = new AffineTransform3D();
-                reslicedSac.getSpimSource().getSourceTransform(0,0,centerTransform);
-                RealPoint ptCenterGlobal = new RealPoint(3);
-
-                long[] dims = new long[3];
-                reslicedSac.getSpimSource().getSource(0,0).dimensions(dims);
-                dims[0] = dims[0]/dims[2];
-                RealPoint ptCenterPixel = new RealPoint((dims[0]-1.0),(dims[1]-1.0)/2.0, 0);//(dims[2]-1.0)/2.0);
-
-                centerTransform.apply(ptCenterPixel, ptCenterGlobal);
-                centerTransform.identity();
-                centerTransform.translate(-ptCenterGlobal.getDoublePosition(0),
-                        -ptCenterGlobal.getDoublePosition(1),
-                        0
-                );
-
+                centerTransform = computeCenterTransform(reslicedSac);
             }
 
             reslicedSac = new SourceAffineTransformer(null, centerTransform).apply(reslicedSac);
@@ -260,6 +373,40 @@ public class ReslicedAtlas implements RealInterval {
 
         nonExtendedSlicedSources = nonExtendedAffineTransform.getTransformedImageMovingToFixed(tempNonExtendedSlicedSources);
         //slicingUpdate();
+        fireSlicingChanged();
+    }
+
+    /**
+     * Updates the transforms of the existing resliced sources after a change of slicing transform
+     * which keeps the same sampling grid. The rotations are applied again.
+     */
+    private void updateReslicedSourcesInPlace() {
+        ((TransformedSource) slicingModel.getSpimSource()).setFixedTransform(slicingTransfom);
+        centerTransform = computeCenterTransform(mosaicSlicedSources[0]);
+        for (SourceAndConverter sac : extendedSlicedSources) {
+            ((TransformedSource) sac.getSpimSource()).setFixedTransform(centerTransform);
+        }
+        slicingUpdate();
+        fireSlicingChanged();
+    }
+
+    private static AffineTransform3D computeCenterTransform(SourceAndConverter reslicedSac) {
+        AffineTransform3D centerTransform = new AffineTransform3D();
+        reslicedSac.getSpimSource().getSourceTransform(0,0,centerTransform);
+        RealPoint ptCenterGlobal = new RealPoint(3);
+
+        long[] dims = new long[3];
+        reslicedSac.getSpimSource().getSource(0,0).dimensions(dims);
+        dims[0] = dims[0]/dims[2];
+        RealPoint ptCenterPixel = new RealPoint((dims[0]-1.0),(dims[1]-1.0)/2.0, 0);//(dims[2]-1.0)/2.0);
+
+        centerTransform.apply(ptCenterPixel, ptCenterGlobal);
+        centerTransform.identity();
+        centerTransform.translate(-ptCenterGlobal.getDoublePosition(0),
+                -ptCenterGlobal.getDoublePosition(1),
+                0
+        );
+        return centerTransform;
     }
 
     /*
@@ -308,7 +455,7 @@ public class ReslicedAtlas implements RealInterval {
         if ((zStep > 0)&&(zStep!=this.zStep)) {
             this.zStep = zStep;
             slicingUpdate();
-            listeners.forEach(r -> r.run());
+            fireSlicingChanged();
         }
     }
 
@@ -317,7 +464,7 @@ public class ReslicedAtlas implements RealInterval {
         if (rx!=this.rotx) {
             this.rotx = rx;
             slicingUpdate();
-            listeners.forEach(r -> r.run());
+            fireSlicingChanged();
         }
     }
 
@@ -334,17 +481,61 @@ public class ReslicedAtlas implements RealInterval {
         if (ry!=this.roty) {
             this.roty = ry;
             slicingUpdate();
-            listeners.forEach(r -> r.run());
+            fireSlicingChanged();
         }
     }
 
+    /**
+     * Sets both rotation angles with a single update of the resliced sources
+     * @param rx rotation along the x axis, in radians
+     * @param ry rotation along the y axis, in radians
+     */
+    public void setRotation(double rx, double ry) {
+        if (!lock)
+        if ((rx!=this.rotx)||(ry!=this.roty)) {
+            this.rotx = rx;
+            this.roty = ry;
+            slicingUpdate();
+            fireSlicingChanged();
+        }
+    }
+
+    /**
+     * @return resliced sources of the atlas (structural images then label image) which can be baked on disk,
+     * see {@link ReslicedAtlasDiskCache}
+     */
+    public synchronized SourceAndConverter[] getBakeableSources() {
+        return bakeableSources.toArray(new SourceAndConverter[0]);
+    }
+
+    /**
+     * @param index index of a resliced source
+     * @return the atlas source of this resliced source, before reslicing (the label image for the last index)
+     */
+    public Source<?> getAtlasSource(int index) {
+        if (index<ba.map.getStructuralImages().size()) {
+            return ba.map.getStructuralImages().get(ba.map.getImagesKeys().get(index)).getSpimSource();
+        } else {
+            return ba.map.getLabelImage().getSpimSource();
+        }
+    }
+
+    /**
+     * @param index index of a resliced source
+     * @return true if the value of this resliced source is a function of the atlas position,
+     * see {@link AnalyticalAtlasSource}
+     */
+    public boolean isAnalytical(int index) {
+        return getAtlasSource(index) instanceof AnalyticalAtlasSource;
+    }
+
     public long getStep() {
         return zStep;
     }
 
     AffineTransform3D atlasToSlicingTransform = new AffineTransform3D();
 
-    void slicingUpdate() {
+    synchronized void slicingUpdate() {
         // Pfou I don't understand anything anymore ...
         long nPixX = slicingModel.getSpimSource().getSource(0,0).max(0);
         long nPixY = slicingModel.getSpimSource().getSource(0,0).max(1);
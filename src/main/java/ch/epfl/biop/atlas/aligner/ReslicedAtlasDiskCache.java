@@ -0,0 +1,362 @@
+package ch.epfl.biop.atlas.aligner;
+
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.atlas.BiopAtlas;
+import ij.Prefs;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+/**
+ * Stores on disk the atlas channels resliced at a given slicing angle, in order to avoid resampling
+ * the atlas for every displayed plane and every registration when the same angle is used again,
+ * in this session or in the next ones.
+ *
+ * Each channel of the resliced atlas is wrapped in a {@link BakedOrResampledSource} : it reads
+ * the baked volume if one exists for the current slicing geometry, and resamples the atlas otherwise.
+ * The geometry is checked at each access, so that changing the slicing angles switches back to the
+ * resampling immediately, and going back to a baked angle reuses the baked volume.
+ *
+ * A baked volume is a raw little-endian file, written z plane after z plane, read through memory mapping
+ * one z plane at a time. Its name is the hash of the atlas, the channel, the slicing geometry and the
+ * size of the volume. Only unsigned byte, unsigned short and float channels can be baked.
+ *
+ * Volumes are baked on demand, see {@link ch.epfl.biop.atlas.aligner.commands.BakeReslicedAtlasCommand},
+ * for the resolution levels chosen by the user : the full resolution of the allen atlas needs a few GB per channel.
+ */
+
+public class ReslicedAtlasDiskCache {
+
+    public static String keyPrefix = ReslicedAtlasDiskCache.class.getName()+".";
+
+    // Increment if the file format changes : previous files will be ignored
+    final static int VERSION = 1;
+
+    public static File cacheDir = new File(System.getProperty("user.home"), "cached_atlas"+File.separator+"resliced-cache");
+
+    public static boolean isEnabled() {
+        return Prefs.get(keyPrefix+"enabled", true);
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Prefs.set(keyPrefix+"enabled", enabled);
+    }
+
+    /**
+     * @param atlas atlas resliced
+     * @param channel index of the channel in the resliced atlas
+     * @param sourceTransform transform of the resliced channel, at the baked resolution level
+     * @param dimensions size of the resliced channel, at the baked resolution level
+     * @return key identifying the content of the baked volume
+     */
+    public static String getKey(BiopAtlas atlas, int channel, AffineTransform3D sourceTransform, long[] dimensions) {
+        String description = "v"+VERSION
+                +"|map:"+atlas.map.getDataSource()
+                +"|channel:"+channel
+                +"|transform:"+Arrays.toString(sourceTransform.getRowPackedCopy())
+                +"|size:"+Arrays.toString(dimensions);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(description.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Non blocking : bakes the channels of the resliced atlas at its current slicing geometry
+     * @param reslicedAtlas resliced atlas
+     * @param levels resolution levels to bake, levels which do not exist are ignored
+     * @param executor executor used to compute the planes
+     * @param ioExecutor executor where each channel and level waits for its planes and is written : should not be
+     *                   the executor above, which would be filled with waiting tasks, see {@link AlignerExecutorService#getIoExecutor()}
+     * @param log progress messages
+     * @return a future completed when all channels are baked
+     */
+    public static CompletableFuture<Void> bake(ReslicedAtlas reslicedAtlas, int[] levels, ExecutorService executor, ExecutorService ioExecutor, Consumer<String> log) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (SourceAndConverter<?> sac : reslicedAtlas.getBakeableSources()) {
+            BakedOrResampledSource<?> source = (BakedOrResampledSource<?>) sac.getSpimSource();
+            for (int level : levels) {
+                if ((level<0)||(level>=source.getNumMipmapLevels())) continue;
+                futures.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        source.bake(level, executor);
+                        log.accept("Resliced atlas channel "+source.getName()+" level "+level+" baked");
+                    } catch (Exception e) {
+                        log.accept("Could not bake resliced atlas channel "+source.getName()+" level "+level+" : "+e.getMessage());
+                        e.printStackTrace();
+                    }
+                }, ioExecutor));
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
+
+    private static int getBytesPerVoxel(Object type) {
+        if (type instanceof UnsignedByteType) return 1;
+        if (type instanceof UnsignedShortType) return 2;
+        if (type instanceof FloatType) return 4;
+        return -1;
+    }
+
+    /**
+     * Source of a resliced atlas channel : reads the baked volume if it exists for the current
+     * slicing geometry, delegates to the resampled atlas otherwise
+     * @param <T> pixel type
+     */
+    public static class BakedOrResampledSource<T extends RealType<T> & NativeType<T>> implements Source<T> {
+
+        final Source<T> resampled;
+
+        final BiopAtlas atlas;
+
+        final int channel;
+
+        final int bytesPerVoxel;
+
+        // Per level : source transform of the last access, and matching baked volume (or null)
+        final double[][] lastTransforms;
+
+        final RandomAccessibleInterval<T>[] bakedVolumes;
+
+        @SuppressWarnings("unchecked")
+        public BakedOrResampledSource(Source<T> resampled, BiopAtlas atlas, int channel) {
+            this.resampled = resampled;
+            this.atlas = atlas;
+            this.channel = channel;
+            this.bytesPerVoxel = getBytesPerVoxel(resampled.getType());
+            int nLevels = resampled.getNumMipmapLevels();
+            this.lastTransforms = new double[nLevels][];
+            this.bakedVolumes = new RandomAccessibleInterval[nLevels];
+        }
+
+        public boolean isBakeable() {
+            return bytesPerVoxel>0;
+        }
+
+        private String getKey(int level) {
+            AffineTransform3D transform = new AffineTransform3D();
+            resampled.getSourceTransform(0, level, transform);
+            long[] dimensions = new long[3];
+            resampled.getSource(0, level).dimensions(dimensions);
+            return ReslicedAtlasDiskCache.getKey(atlas, channel, transform, dimensions);
+        }
+
+        /**
+         * @param level resolution level
+         * @return the baked volume matching the current slicing geometry, or null if there is none
+         */
+        synchronized RandomAccessibleInterval<T> getBakedVolume(int level) {
+            if ((!isEnabled())||(!isBakeable())) return null;
+            AffineTransform3D transform = new AffineTransform3D();
+            resampled.getSourceTransform(0, level, transform);
+            double[] current = transform.getRowPackedCopy();
+            if (!Arrays.equals(current, lastTransforms[level])) {
+                lastTransforms[level] = current;
+                bakedVolumes[level] = open(getKey(level), level);
+            }
+            return bakedVolumes[level];
+        }
+
+        private RandomAccessibleInterval<T> open(String key, int level) {
+            if (key==null) return null;
+            File raw = new File(cacheDir, key+".raw");
+            File header = new File(cacheDir, key+".properties");
+            if ((!raw.exists())||(!header.exists())) return null;
+            try (InputStream in = new FileInputStream(header)) {
+                Properties properties = new Properties();
+                properties.load(in);
+                if (Integer.parseInt(properties.getProperty("version"))!=VERSION) return null;
+                if (!properties.getProperty("type").equals(resampled.getType().getClass().getName())) return null;
+                long[] dimensions = new long[3];
+                resampled.getSource(0, level).dimensions(dimensions);
+                long planeSizeInBytes = dimensions[0]*dimensions[1]*bytesPerVoxel;
+                if (raw.length()!=planeSizeInBytes*dimensions[2]) return null;
+
+                CellLoader<T> loader = cell -> {
+                    long z = cell.min(2);
+                    try (FileChannel channel = FileChannel.open(raw.toPath(), StandardOpenOption.READ)) {
+                        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, z*planeSizeInBytes, planeSizeInBytes);
+                        buffer.order(ByteOrder.LITTLE_ENDIAN);
+                        Cursor<T> cursor = cell.cursor();
+                        while (cursor.hasNext()) {
+                            cursor.next().setReal(read(buffer));
+                        }
+                    }
+                };
+
+                return new ReadOnlyCachedCellImgFactory().create(dimensions, resampled.getType().createVariable(), loader,
+                        ReadOnlyCachedCellImgOptions.options().cellDimensions((int) dimensions[0], (int) dimensions[1], 1));
+            } catch (Exception e) {
+                System.err.println("Could not open baked atlas volume "+raw.getAbsolutePath()+" : "+e.getMessage());
+                return null;
+            }
+        }
+
+        private double read(ByteBuffer buffer) {
+            switch (bytesPerVoxel) {
+                case 1: return buffer.get() & 0xff;
+                case 2: return buffer.getShort() & 0xffff;
+                default: return buffer.getFloat();
+            }
+        }
+
+        private void write(ByteBuffer buffer, double value) {
+            switch (bytesPerVoxel) {
+                case 1: buffer.put((byte) value); break;
+                case 2: buffer.putShort((short) value); break;
+                default: buffer.putFloat((float) value);
+            }
+        }
+
+        /**
+         * Blocking : resamples the whole channel at the current slicing geometry and writes it to disk.
+         * Planes are computed in parallel in the executor.
+         * @param level resolution level baked
+         * @param executor executor used to compute the planes
+         * @throws IOException if the volume cannot be written
+         */
+        public void bake(int level, ExecutorService executor) throws IOException {
+            if (!isBakeable()) throw new UnsupportedOperationException("Pixel type "+resampled.getType().getClass().getSimpleName()+" cannot be baked");
+            String key = getKey(level);
+            if (key==null) throw new IOException("Cannot compute cache key");
+            if (!cacheDir.exists()) cacheDir.mkdirs();
+            File raw = new File(cacheDir, key+".raw");
+            File header = new File(cacheDir, key+".properties");
+            if (raw.exists()&&header.exists()) return; // Already baked
+
+            RandomAccessibleInterval<T> rai = resampled.getSource(0, level);
+            long[] dimensions = new long[3];
+            rai.dimensions(dimensions);
+            long planeSizeInBytes = dimensions[0]*dimensions[1]*bytesPerVoxel;
+
+            File tmp = File.createTempFile(key, ".tmp", cacheDir);
+            try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+                List<CompletableFuture<Void>> planes = new ArrayList<>();
+                for (long z = 0; z<dimensions[2]; z++) {
+                    final long zPlane = z;
+                    planes.add(CompletableFuture.runAsync(() -> {
+                        ByteBuffer buffer = ByteBuffer.allocate((int) planeSizeInBytes).order(ByteOrder.LITTLE_ENDIAN);
+                        Cursor<T> cursor = Views.flatIterable(Views.hyperSlice(rai, 2, rai.min(2)+zPlane)).cursor();
+                        while (cursor.hasNext()) {
+                            write(buffer, cursor.next().getRealDouble());
+                        }
+                        buffer.flip();
+                        try {
+                            long position = zPlane*planeSizeInBytes;
+                            while (buffer.hasRemaining()) {
+                                position += channel.write(buffer, position);
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }, executor));
+                }
+                CompletableFuture.allOf(planes.toArray(new CompletableFuture[0])).join();
+            }
+
+            Properties properties = new Properties();
+            properties.setProperty("version", Integer.toString(VERSION));
+            properties.setProperty("type", resampled.getType().getClass().getName());
+            properties.setProperty("dimensions", Arrays.toString(dimensions));
+            properties.setProperty("channel", getName());
+            try (OutputStream out = new FileOutputStream(header)) {
+                properties.store(out, "Resliced atlas channel");
+            }
+            Files.move(tmp.toPath(), raw.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            synchronized (this) {
+                lastTransforms[level] = null; // Forces to look for the baked volume at the next access
+            }
+        }
+
+        @Override
+        public boolean isPresent(int t) {
+            return resampled.isPresent(t);
+        }
+
+        @Override
+        public RandomAccessibleInterval<T> getSource(int t, int level) {
+            RandomAccessibleInterval<T> baked = getBakedVolume(level);
+            if (baked!=null) return baked;
+            return resampled.getSource(t, level);
+        }
+
+        @Override
+        public RealRandomAccessible<T> getInterpolatedSource(int t, int level, Interpolation method) {
+            RandomAccessibleInterval<T> baked = getBakedVolume(level);
+            if (baked==null) return resampled.getInterpolatedSource(t, level, method);
+            if (method==Interpolation.NLINEAR) {
+                return Views.interpolate(Views.extendZero(baked), new NLinearInterpolatorFactory<>());
+            } else {
+                return Views.interpolate(Views.extendZero(baked), new NearestNeighborInterpolatorFactory<>());
+            }
+        }
+
+        @Override
+        public void getSourceTransform(int t, int level, AffineTransform3D transform) {
+            resampled.getSourceTransform(t, level, transform);
+        }
+
+        @Override
+        public T getType() {
+            return resampled.getType();
+        }
+
+        @Override
+        public String getName() {
+            return resampled.getName();
+        }
+
+        @Override
+        public VoxelDimensions getVoxelDimensions() {
+            return resampled.getVoxelDimensions();
+        }
+
+        @Override
+        public int getNumMipmapLevels() {
+            return resampled.getNumMipmapLevels();
+        }
+    }
+
+}
@@ -15,7 +15,10 @@ import ch.epfl.biop.java.utilities.roi.types.ImageJRoisFile;
 import ch.epfl.biop.java.utilities.roi.types.RealPointList;
 import ch.epfl.biop.registration.sourceandconverter.spline.RealTransformSourceAndConverterRegistration;
 import ch.epfl.biop.spimdata.qupath.QuPathEntryEntity;
+import ch.epfl.biop.registration.PackedPoints;
+import ch.epfl.biop.registration.ProgressiveRegistration;
 import ch.epfl.biop.registration.Registration;
+import ch.epfl.biop.registration.sourceandconverter.SourceAndConverterRegistration;
 import ch.epfl.biop.registration.sourceandconverter.affine.AffineTransformedSourceWrapperRegistration;
 import ch.epfl.biop.registration.sourceandconverter.affine.CenterZeroRegistration;
 import ij.ImagePlus;
@@ -26,12 +29,14 @@ import mpicbg.spim.data.generic.sequence.BasicViewSetup;
 import net.imglib2.RealInterval;
 import net.imglib2.RealPoint;
 import net.imglib2.realtransform.*;
+import net.imglib2.util.Intervals;
 import sc.fiji.bdvpg.scijava.services.SourceAndConverterService;
 import sc.fiji.bdvpg.scijava.services.ui.SourceAndConverterInspector;
 import sc.fiji.bdvpg.services.SourceAndConverterServices;
 import sc.fiji.bdvpg.sourceandconverter.SourceAndConverterAndTimeRange;
 import sc.fiji.bdvpg.sourceandconverter.SourceAndConverterHelper;
 import sc.fiji.bdvpg.sourceandconverter.importer.EmptySourceAndConverterCreator;
+import sc.fiji.bdvpg.sourceandconverter.transform.SourceRealTransformer;
 import sc.fiji.bdvpg.sourceandconverter.transform.SourceResampler;
 import sc.fiji.bdvpg.sourceandconverter.transform.SourceTransformHelper;
 
@@ -44,6 +49,7 @@ import java.nio.file.Paths;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.UnaryOperator;
 
 import static ch.epfl.biop.atlas.aligner.CancelableAction.errlog;
 
@@ -85,9 +91,13 @@ public class SliceSources {
 
     private ImagePlus impLabelImage;
 
-    private AffineTransform3D at3DLastLabelImage;
+    // Key of the last label image computed, see getLabelImageKey
+    private List<Object> labelImageKey;
 
-    private boolean labelImageBeingComputed = false;
+    // Regions of the last label image computed, shared by concurrent callers
+    private CompletableFuture<ConvertibleRois> labelImageRois;
+
+    private final Object labelImageLock = new Object();
 
     private ConvertibleRois cvtRoisOrigin;
 
@@ -175,6 +185,110 @@ public class SliceSources {
         return registered_sacs;
     }
 
+    /**
+     * @return true if no registration has been performed on this slice, apart from its positioning
+     */
+    public synchronized boolean isUnregistered() {
+        // center, pre transform and z positioner
+        return registrations.size()<=3;
+    }
+
+    // Registered sources where the registrations are collapsed into a displacement field, built lazily in the background
+    private SourceAndConverter<?>[] collapsed_sacs;
+
+    private RegistrationsDisplacementField displacementField;
+
+    // Displacement field being built, null if none
+    private CompletableFuture<Void> collapsingTask;
+
+    // Incremented each time the collapsed sources are cleared : a field built for previous registrations is discarded
+    private int collapsedSourcesVersion = 0;
+
+    // Intermediate result of a registration in progress, see ProgressiveRegistration
+    private SourceAndConverter<?>[] preview_sacs;
+
+    private boolean collapseRegistrationsForDisplay = RegistrationsDisplacementField.isEnabledByDefault();
+
+    /**
+     * Sources to display : the registered sources, or, if the registrations are collapsed for display,
+     * the sources transformed by a single displacement field, see {@link RegistrationsDisplacementField}.
+     * Non blocking : after a registration change, the field is built in the background and the registered sources
+     * are returned until it is ready. The display is then updated with the collapsed sources.
+     * While a {@link ProgressiveRegistration} is running, its intermediate result is displayed instead
+     * @return the sources to display in registration mode
+     */
+    public synchronized SourceAndConverter<?>[] getDisplayedRegisteredSources() {
+        if (preview_sacs != null) return preview_sacs;
+        if (!collapseRegistrationsForDisplay) return registered_sacs;
+        // center, pre transform and z positioner : affine transforms only, applied to the source before the field
+        int nWrappers = 3;
+        if (registrations.size()<=nWrappers) return registered_sacs;
+        List<Registration<SourceAndConverter<?>[]>> collapsedRegistrations = registrations.subList(nWrappers, registrations.size());
+        if (!RegistrationsDisplacementField.isWorthCollapsing(collapsedRegistrations)) return registered_sacs;
+        if (collapsed_sacs != null) return collapsed_sacs;
+        if (collapsingTask == null) {
+            collapsingTask = buildCollapsedSources(new ArrayList<>(collapsedRegistrations),
+                    registered_sacs_sequence.get(nWrappers-1).sacs, collapsedSourcesVersion);
+        }
+        return registered_sacs;
+    }
+
+    private CompletableFuture<Void> buildCollapsedSources(List<Registration<SourceAndConverter<?>[]>> collapsedRegistrations,
+                                                          SourceAndConverter<?>[] positioned_sacs, int version) {
+        return CompletableFuture.runAsync(() -> {
+            RegistrationsDisplacementField field = new RegistrationsDisplacementField(collapsedRegistrations, si, RegistrationsDisplacementField.getResolution());
+            SourceRealTransformer srt = new SourceRealTransformer(field);
+            SourceAndConverter<?>[] sacs = new SourceAndConverter[positioned_sacs.length];
+            for (int i = 0; i<positioned_sacs.length; i++) {
+                sacs[i] = srt.apply(positioned_sacs[i]);
+            }
+            synchronized (SliceSources.this) {
+                if (version != collapsedSourcesVersion) return; // Registrations changed in the meantime
+                displacementField = field;
+                collapsed_sacs = sacs;
+                collapsingTask = null;
+            }
+            guiState.sourcesChanged();
+        }, mp.getExecutor().getCpuExecutor()).exceptionally(e -> {
+            errlog.accept("Could not collapse the registrations of slice "+this+" : "+e.getMessage());
+            return null;
+        });
+    }
+
+    /**
+     * @return the displacement field equivalent to the registrations of this slice, if the registrations
+     * are collapsed for display and the field is built, null otherwise. Can be used for fast point mapping
+     * from the atlas to the slice.
+     */
+    public synchronized RegistrationsDisplacementField getDisplacementField() {
+        getDisplayedRegisteredSources();
+        return displacementField;
+    }
+
+    public boolean isCollapsingRegistrationsForDisplay() {
+        return collapseRegistrationsForDisplay;
+    }
+
+    /**
+     * @param flag if true, the registrations are displayed through a single precomputed displacement
+     *             field : faster display, at the price of a small interpolation error
+     */
+    public void setCollapseRegistrationsForDisplay(boolean flag) {
+        synchronized (this) {
+            if (flag == collapseRegistrationsForDisplay) return;
+            collapseRegistrationsForDisplay = flag;
+            clearCollapsedSources();
+        }
+        guiState.sourcesChanged();
+    }
+
+    private synchronized void clearCollapsedSources() {
+        collapsed_sacs = null;
+        displacementField = null;
+        collapsingTask = null; // A field being built is discarded once done
+        collapsedSourcesVersion++;
+    }
+
     protected double getSlicingAxisPosition() {
         return slicingAxisPosition;
     }
@@ -354,6 +468,35 @@ public class SliceSources {
         }
     }
 
+    /**
+     * @param action action enqueued for this slice
+     * @return the future of the action, completed when it has run, failed or been cancelled, or null if unknown
+     */
+    protected CompletableFuture<Boolean> getActionTask(CancelableAction action) {
+        synchronized (tasks) {
+            return mapActionTask.get(action);
+        }
+    }
+
+    /**
+     * @return a future completed when all the tasks currently enqueued for this slice are done,
+     * whether they succeeded, failed or were cancelled
+     */
+    public CompletableFuture<Boolean> getTasksFuture() {
+        synchronized (tasks) {
+            if (tasks.size() == 0) {
+                return CompletableFuture.completedFuture(true);
+            }
+            return tasks.get(tasks.size() - 1).handle((result, exception) -> {
+                if (exception != null) {
+                    errlog.accept("Tasks were cancelled for slice "+this.toString());
+                    return false;
+                }
+                return result;
+            });
+        }
+    }
+
     public void transformSourceOrigin(AffineTransform3D at3D) {
         preTransform.setAffineTransform(at3D);
     }
@@ -385,6 +528,8 @@ public class SliceSources {
 
         registrations.add(reg);
 
+        clearCollapsedSources();
+
         mp.mso.updateInfoPanel(this);
 
         guiState.sourcesChanged();
@@ -400,8 +545,60 @@ public class SliceSources {
                                        SourcesProcessor
                                                 preprocessMoving) {
 
+        setRegistrationImages(reg, preprocessFixed, preprocessMoving, registered_sacs);
+
+        if (reg instanceof SourceAndConverterRegistration) {
+            // Allows the registration to reuse an already rasterized fixed image
+            ((SourceAndConverterRegistration) reg).setFixedPlaneLocation(getAtlasPlaneLocation(preprocessFixed));
+            // and an already rasterized moving image, if the previous registrations are unchanged
+            ((SourceAndConverterRegistration) reg).setMovingPlaneLocation(getMovingPlaneLocation(preprocessMoving));
+        }
+
+        // Has this registration already been performed with the same inputs ? Manual registrations are never skipped.
+        String cacheKey = RegistrationPluginHelper.isManual(reg) ? null :
+                RegistrationResultDiskCache.getKey(reg, getFixedInputs(preprocessFixed), getMovingInputs(preprocessMoving));
+        if (restoreRegistration(reg, cacheKey)) {
+            appendRegistration(reg);
+            return true;
+        }
+
+        if ((reg instanceof ProgressiveRegistration)&&(!mp.isHeadless())) {
+            // Intermediate results are displayed until the end of the registration
+            ((ProgressiveRegistration<SourceAndConverter<?>[]>) reg).setPreviewListener(this::showPreview);
+        }
+
+        boolean out;
+        try {
+            out = MultiSlicePositioner.registrationScheduler.register(reg);
+        } finally {
+            if (reg instanceof ProgressiveRegistration) {
+                ((ProgressiveRegistration<SourceAndConverter<?>[]>) reg).setPreviewListener(null);
+            }
+            clearPreview(); // Replaced by the result, or by the previous state if the registration failed
+        }
+        if (!out) {
+            errlog.accept("Issue during registration of class "+reg.getClass().getSimpleName());
+            guiState.sourcesChanged();
+        } else {
+            RegistrationResultDiskCache.store(cacheKey, reg.getTransform());
+            appendRegistration(reg);
+        }
+        return out;
+    }
+
+    /**
+     * Sets the fixed image, the moving image and the fixed mask of a registration
+     * @param reg registration
+     * @param preprocessFixed processing applied to the atlas sources
+     * @param preprocessMoving processing applied to the moving sources
+     * @param movingSources sources of this slice to register
+     */
+    void setRegistrationImages(Registration<SourceAndConverter<?>[]> reg,
+                               SourcesProcessor preprocessFixed,
+                               SourcesProcessor preprocessMoving,
+                               SourceAndConverter<?>[] movingSources) {
         reg.setFixedImage(preprocessFixed.apply(mp.reslicedAtlas.nonExtendedSlicedSources));
-        reg.setMovingImage(preprocessMoving.apply(registered_sacs));
+        reg.setMovingImage(preprocessMoving.apply(movingSources));
 
         // For the mask : we set it as the label image, pre processed identically
         // 0 - remove channel select from pre processor
@@ -409,14 +606,133 @@ public class SliceSources {
         // 1 - adds a channel select for the atlas (indexed 3) TODO : improve way to select indexing
         fixedProcessor = new SourcesProcessComposer(fixedProcessor, new SourcesChannelsSelect(mp.reslicedAtlas.nonExtendedSlicedSources.length-1));
         reg.setFixedMask(fixedProcessor.apply(mp.reslicedAtlas.nonExtendedSlicedSources));
+    }
 
-        boolean out = reg.register();
-        if (!out) {
-            errlog.accept("Issue during registration of class "+reg.getClass().getSimpleName());
-        } else {
-            appendRegistration(reg);
+    /**
+     * Displays an intermediate result of a registration in progress
+     * @param preview transforms the registered sources according to the intermediate result
+     */
+    private void showPreview(UnaryOperator<SourceAndConverter<?>[]> preview) {
+        synchronized (this) {
+            preview_sacs = preview.apply(registered_sacs);
         }
-        return out;
+        guiState.sourcesChanged();
+    }
+
+    private synchronized void clearPreview() {
+        preview_sacs = null;
+    }
+
+    /**
+     * Sets the result of the registration from {@link RegistrationResultDiskCache}, if present
+     * @param reg registration to restore
+     * @param cacheKey key of the registration result, can be null
+     * @return true if the registration result was found and set
+     */
+    private boolean restoreRegistration(Registration<SourceAndConverter<?>[]> reg, String cacheKey) {
+        // Computed in advance while the user was reviewing other slices ?
+        String transform = mp.speculativeRegistrations.take(cacheKey);
+        String origin = "speculative registrations";
+        if (transform==null) {
+            transform = RegistrationResultDiskCache.load(cacheKey);
+            origin = "cache";
+        }
+        if (transform==null) return false;
+        try {
+            reg.setTransform(transform);
+            mp.log.accept("Slice "+this+" : "+reg.getClass().getSimpleName()+" result found in "+origin);
+            return true;
+        } catch (Exception e) {
+            // Not readable anymore by this registration : performed again
+            errlog.accept("Could not restore cached registration : "+e.getMessage());
+            reg.resetRegistration();
+            return false;
+        }
+    }
+
+    /**
+     * @param atlasProcessor processing applied to the resliced atlas sources
+     * @return description of the fixed image of a registration of this slice, identical across sessions,
+     * or null if it cannot be described, see {@link RegistrationResultDiskCache}
+     */
+    String getFixedInputs(SourcesProcessor atlasProcessor) {
+        if (!SourcesProcessorHelper.isPersistentKey(atlasProcessor)) return null;
+        return "atlas:"+mp.biopAtlas.map.getDataSource()
+                +"|slicing:"+Arrays.toString(mp.getAffineTransformFormAlignerToAtlas().getRowPackedCopy())
+                +"|position:"+slicingAxisPosition
+                +"|processing:"+SourcesProcessorHelper.getKey(atlasProcessor);
+    }
+
+    /**
+     * @param movingProcessor processing applied to the registered sources of this slice
+     * @return description of the moving image of a registration of this slice, identical across sessions,
+     * or null if it cannot be described, see {@link RegistrationResultDiskCache}
+     */
+    String getMovingInputs(SourcesProcessor movingProcessor) {
+        return getMovingInputs(movingProcessor, Collections.emptyList());
+    }
+
+    /**
+     * @param movingProcessor processing applied to the registered sources of this slice
+     * @param nextRegistrations registrations not appended yet, performed after the current ones
+     * @return description of the moving image of a registration performed after the current registrations
+     * and the next registrations, or null if it cannot be described, see {@link RegistrationResultDiskCache}
+     */
+    synchronized String getMovingInputs(SourcesProcessor movingProcessor, List<? extends Registration<SourceAndConverter<?>[]>> nextRegistrations) {
+        if (!SourcesProcessorHelper.isPersistentKey(movingProcessor)) return null;
+        try {
+            StringBuilder sb = new StringBuilder("sources:");
+            for (SourceAndConverter<?> sac : original_sacs) {
+                // Names can be shared by unrelated datasets : the dataset the source comes from is required
+                String origin = getOrigin(sac);
+                if (origin==null) return null;
+                AffineTransform3D at3D = new AffineTransform3D();
+                sac.getSpimSource().getSourceTransform(0, 0, at3D);
+                sb.append(origin)
+                        .append(sac.getSpimSource().getName())
+                        .append(Arrays.toString(Intervals.dimensionsAsLongArray(sac.getSpimSource().getSource(0, 0))))
+                        .append(Arrays.toString(at3D.getRowPackedCopy()))
+                        .append(";");
+            }
+            sb.append("|preTransform:").append(Arrays.toString(preTransform.getAffineTransform().getRowPackedCopy()));
+            sb.append("|zPositioner:").append(Arrays.toString(zPositioner.getAffineTransform().getRowPackedCopy()));
+            sb.append("|registrations:");
+            List<Registration<SourceAndConverter<?>[]>> chain = new ArrayList<>(registrations);
+            chain.addAll(nextRegistrations);
+            for (Registration<SourceAndConverter<?>[]> previous : chain) {
+                String transform = previous.getTransform();
+                if (transform==null) return null;
+                sb.append(previous.getClass().getName()).append(transform).append(";");
+            }
+            sb.append("|processing:").append(SourcesProcessorHelper.getKey(movingProcessor));
+            return sb.toString();
+        } catch (Exception e) {
+            // A previous registration cannot be serialized
+            return null;
+        }
+    }
+
+    /**
+     * @param sac a source of this slice
+     * @return the dataset and the setup this source is read from : the QuPath project and entry for
+     * QuPath datasets, the dataset location otherwise, or null if the source cannot be identified
+     * (for instance if it does not come from a dataset saved on disk)
+     */
+    private static String getOrigin(SourceAndConverter<?> sac) {
+        SourceAndConverter<?> rootSac = SourceAndConverterInspector.getRootSourceAndConverter(sac);
+        Object info = SourceAndConverterServices.getSourceAndConverterService()
+                .getMetadata(rootSac, SourceAndConverterService.SPIM_DATA_INFO);
+        if (info==null) return null;
+        AbstractSpimData<?> asd = ((SourceAndConverterService.SpimDataInfo) info).asd;
+        int setupId = ((SourceAndConverterService.SpimDataInfo) info).setupId;
+        BasicViewSetup bvs = (BasicViewSetup) asd.getSequenceDescription().getViewSetups().get(setupId);
+        if ((bvs!=null)&&(bvs.getAttribute(QuPathEntryEntity.class)!=null)) {
+            QuPathEntryEntity qpent = bvs.getAttribute(QuPathEntryEntity.class);
+            if (qpent.getQuPathProjectionLocation()==null) return null;
+            return "qupath:"+qpent.getQuPathProjectionLocation()+"|entry:"+qpent.getName()+"["+qpent.getId()+"]|setup:"+setupId;
+        }
+        if (asd.getBasePath()==null) return null;
+        return "dataset:"+asd.getBasePath().getAbsolutePath()+"|setup:"+setupId;
     }
 
     /*
@@ -450,10 +766,16 @@ public class SliceSources {
 
                 registrations.remove(reg);
 
+                // Rasters of the slice computed after this registration are now obsolete
+                MultiSlicePositioner.atlasPlaneCache.invalidate(location ->
+                        (location instanceof MovingPlaneLocation)&&(((MovingPlaneLocation) location).dependsOn(this, reg)));
+
                 registered_sacs_sequence.remove(registered_sacs_sequence.get(registered_sacs_sequence.size()-1));
 
                 registered_sacs = registered_sacs_sequence.get(registered_sacs_sequence.size()-1).sacs;
 
+                clearCollapsedSources();
+
                 guiState.sourcesChanged();
 
                 return true;
@@ -469,7 +791,7 @@ public class SliceSources {
         synchronized(tasks) {
             CompletableFuture<Boolean> startingPoint;
             if (tasks.size() == 0) {
-                startingPoint = CompletableFuture.supplyAsync(() -> true);
+                startingPoint = CompletableFuture.completedFuture(true);
             } else {
                 startingPoint = tasks.get(tasks.size() - 1);
             }
@@ -504,7 +826,7 @@ public class SliceSources {
                     mp.userActions.remove(action);
                     return false;
                 }
-            }));
+            }, mp.getExecutor().getExecutorFor(action)));
             mapActionTask.put(action, tasks.get(tasks.size() - 1));
         }
     }
@@ -519,6 +841,7 @@ public class SliceSources {
                         if (actionInProgress instanceof RegisterSlice) {
                             // Special case : let's abort ASAP the registration to avoid overloading the server
                             //System.out.println("Abort registration");
+                            MultiSlicePositioner.registrationScheduler.abort(((RegisterSlice) actionInProgress).registration);
                             ((RegisterSlice) actionInProgress).registration.abort();
                             //postRun.run();
                             action.cancel();
@@ -534,7 +857,7 @@ public class SliceSources {
                     } else {
                         CompletableFuture<Boolean> startingPoint;
                         if (tasks.size() == 0) {
-                            startingPoint = CompletableFuture.supplyAsync(() -> true);
+                            startingPoint = CompletableFuture.completedFuture(true);
                         } else {
                             startingPoint = tasks.get(tasks.size() - 1);
                         }
@@ -548,7 +871,7 @@ public class SliceSources {
                             } else {
                                 return false;
                             }
-                        }));
+                        }, mp.getExecutor().getCpuExecutor()));
                     }
                 } else {
                     // Not done yet! - let's remove right now from the task list
@@ -566,28 +889,24 @@ public class SliceSources {
         }
     }
 
-    void computeLabelImage(AffineTransform3D at3D) {
-        labelImageBeingComputed = true;
-
-        // 0 - slicing model : empty source but properly defined in space and resolution
-        SourceAndConverter singleSliceModel = new EmptySourceAndConverterCreator("SlicingModel", at3D,
-                mp.nPixX,
-                mp.nPixY,
-                1
-        ).get();
-
-        SourceResampler resampler = new SourceResampler(null,
-                singleSliceModel, false, false, false
-        );
-
-        AffineTransform3D translateZ = new AffineTransform3D();
-        translateZ.translate(0, 0, -slicingAxisPosition);
+    /**
+     * Computes the label image and the left right image of the atlas at the location of this slice,
+     * and converts them to regions
+     * @param at3D location of the label image
+     * @return the regions of the atlas, the left and right regions are stored in leftRightOrigin
+     */
+    ConvertibleRois computeLabelImage(AffineTransform3D at3D) {
+
+        String diskCacheKey = LabelImageRoisDiskCache.getKey(mp.biopAtlas, mp.getAffineTransformFormAlignerToAtlas(), at3D, mp.nPixX, mp.nPixY);
+        ConvertibleRois cachedRegions = new ConvertibleRois();
+        ConvertibleRois cachedLeftRight = new ConvertibleRois();
+        if (LabelImageRoisDiskCache.load(diskCacheKey, cachedRegions, cachedLeftRight)) {
+            leftRightOrigin.set((IJShapeRoiArray) cachedLeftRight.to(IJShapeRoiArray.class));
+            return cachedRegions;
+        }
 
         SourceAndConverter sac =
-                mp.reslicedAtlas.nonExtendedSlicedSources[mp.reslicedAtlas.nonExtendedSlicedSources.length-1]; // By convention the label image is the last one
-
-        sac = resampler.apply(sac);
-        sac = SourceTransformHelper.createNewTransformedSourceAndConverter(translateZ, new SourceAndConverterAndTimeRange(sac, 0));
+                getAtlasPlane(mp.reslicedAtlas.nonExtendedSlicedSources.length-1, at3D); // By convention the label image is the last one
 
         ExportToImagePlusCommand export = new ExportToImagePlusCommand();
 
@@ -605,16 +924,10 @@ public class SliceSources {
         labelToROIs.labelImg = impLabelImage;
         labelToROIs.smoothen = false;
         labelToROIs.run();
-        cvtRoisOrigin = labelToROIs.cr_out;
-
-        at3DLastLabelImage = at3D;
-        labelImageBeingComputed = false;
+        ConvertibleRois regions = labelToROIs.cr_out;
 
         // Now Left Right:
-        sac = mp.reslicedAtlas.nonExtendedSlicedSources[mp.reslicedAtlas.nonExtendedSlicedSources.length-2]; // Don't know why this is working
-
-        sac = resampler.apply(sac);
-        sac = SourceTransformHelper.createNewTransformedSourceAndConverter(translateZ, new SourceAndConverterAndTimeRange(sac, 0));
+        sac = getAtlasPlane(mp.reslicedAtlas.nonExtendedSlicedSources.length-2, at3D); // Don't know why this is working
 
         export = new ExportToImagePlusCommand();
 
@@ -628,37 +941,173 @@ public class SliceSources {
         ImagePlus leftRightImage = export.imp_out;
 
         leftRightOrigin.set(ConvertibleRois.labelImageToRoiArrayKeepSinglePixelPrecision(leftRightImage));
-    }
 
-    void prepareExport(String namingChoice) {
-        // Need to raster the label image
-        AffineTransform3D at3D = new AffineTransform3D();
-        at3D.translate(-mp.nPixX / 2.0, -mp.nPixY / 2.0, 0);
-        at3D.scale(mp.sizePixX, mp.sizePixY, mp.sizePixZ);
-        at3D.translate(0, 0, slicingAxisPosition);
+        LabelImageRoisDiskCache.store(diskCacheKey, regions, leftRightOrigin);
 
-        boolean computeLabelImageNecessary = true;
+        return regions;
+    }
 
-        if (!labelImageBeingComputed) {
-            if (at3DLastLabelImage != null) {
-                if (Arrays.equals(at3D.getRowPackedCopy(), at3DLastLabelImage.getRowPackedCopy())) {
-                    computeLabelImageNecessary = false;
-                }
+    /**
+     * Memoized label image computation : the regions are computed once per location and atlas slicing,
+     * concurrent callers asking for the same location share the same computation.
+     * The computation is performed in the thread of the first caller
+     * @param at3D location of the label image
+     * @return a future of the regions of the atlas at this location
+     */
+    CompletableFuture<ConvertibleRois> getLabelImageRois(AffineTransform3D at3D) {
+        List<Object> key = getLabelImageKey(at3D);
+        CompletableFuture<ConvertibleRois> future;
+        synchronized (labelImageLock) {
+            if ((labelImageRois != null) && (key.equals(labelImageKey)) && (!labelImageRois.isCompletedExceptionally())) {
+                return labelImageRois;
             }
+            future = new CompletableFuture<>();
+            labelImageKey = key;
+            labelImageRois = future;
         }
+        try {
+            future.complete(computeLabelImage(at3D));
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
 
-        if (computeLabelImageNecessary) {
-            computeLabelImage(at3D);
-        } else {
-            while (labelImageBeingComputed) {
-                try {
-                    Thread.sleep(100);
-                } catch (Exception e) {
+    private List<Object> getLabelImageKey(AffineTransform3D at3D) {
+        return Arrays.asList(
+                Arrays.toString(at3D.getRowPackedCopy()),
+                Arrays.toString(mp.getAffineTransformFormAlignerToAtlas().getRowPackedCopy()),
+                SourcesProcessorHelper.getId(mp.reslicedAtlas.nonExtendedSlicedSources));
+    }
 
-                }
+    /**
+     * Gets a channel of the atlas at the location of this slice, shifted at z = 0 and
+     * rasterized without interpolation. The raster is taken from {@link MultiSlicePositioner#atlasPlaneCache}
+     * if it has already been computed.
+     * @param channel index of the atlas channel
+     * @param at3D location of the pixels of the raster (nPixX x nPixY pixels) before the z shift
+     * @return the atlas plane
+     */
+    SourceAndConverter getAtlasPlane(int channel, AffineTransform3D at3D) {
+        AffineTransform3D translateZ = new AffineTransform3D();
+        translateZ.translate(0, 0, -slicingAxisPosition);
+
+        SourcesProcessor processor = SourcesProcessorHelper.compose(new SourcesAffineTransformer(translateZ), new SourcesChannelsSelect(channel));
+        SourceAndConverter sac = processor.apply(mp.reslicedAtlas.nonExtendedSlicedSources)[0];
+
+        double pixelSize = at3D.get(0,0);
+        SourceAndConverter plane = MultiSlicePositioner.atlasPlaneCache.getPlane(getAtlasPlaneLocation(processor), sac,
+                pixelSize, false,
+                at3D.get(0,3), at3D.get(1,3), mp.nPixX*pixelSize, mp.nPixY*pixelSize);
+
+        if (plane!=null) return plane;
+
+        // Could not be cached : resampled on the fly
+        SourceAndConverter singleSliceModel = new EmptySourceAndConverterCreator("SlicingModel", at3D,
+                mp.nPixX,
+                mp.nPixY,
+                1
+        ).get();
+
+        SourceResampler resampler = new SourceResampler(null,
+                singleSliceModel, false, false, false
+        );
+
+        sac = resampler.apply(mp.reslicedAtlas.nonExtendedSlicedSources[channel]);
+        return SourceTransformHelper.createNewTransformedSourceAndConverter(translateZ, new SourceAndConverterAndTimeRange(sac, 0));
+    }
+
+    /**
+     * @param atlasProcessor processing applied to the resliced atlas sources
+     * @return identification of the atlas plane obtained for this slice with this processing,
+     * used as a key by {@link MultiSlicePositioner#atlasPlaneCache}
+     */
+    AtlasPlaneCache.PlaneLocation getAtlasPlaneLocation(SourcesProcessor atlasProcessor) {
+        return new AtlasPlaneCache.PlaneLocation(mp.reslicedAtlas.nonExtendedSlicedSources,
+                mp.getAffineTransformFormAlignerToAtlas(),
+                slicingAxisPosition,
+                SourcesProcessorHelper.getKey(atlasProcessor));
+    }
+
+    /**
+     * @param movingProcessor processing applied to the registered sources of this slice
+     * @return identification of the registered sources of this slice with this processing,
+     * used as a key by {@link MultiSlicePositioner#atlasPlaneCache}
+     */
+    synchronized MovingPlaneLocation getMovingPlaneLocation(SourcesProcessor movingProcessor) {
+        return new MovingPlaneLocation(this, registrations,
+                preTransform.getAffineTransform(),
+                zPositioner.getAffineTransform(),
+                SourcesProcessorHelper.getKey(movingProcessor));
+    }
+
+    /**
+     * Identifies the registered sources of a slice : they are identical as long as
+     * the previous registrations are the same, and as long as the slice did not move
+     *
+     * The slice and the registrations are identified by their ids, see {@link SourcesProcessorHelper#getId(Object)} :
+     * the cache does not retain them
+     */
+    static class MovingPlaneLocation {
+
+        final long sliceId;
+
+        final List<Long> registrationsChain;
+
+        final double[] preTransform;
+
+        final double[] zPositioner;
+
+        final String processing;
+
+        MovingPlaneLocation(SliceSources slice, List<Registration<SourceAndConverter<?>[]>> registrationsChain,
+                            AffineTransform3D preTransform, AffineTransform3D zPositioner, String processing) {
+            this.sliceId = SourcesProcessorHelper.getId(slice);
+            this.registrationsChain = new ArrayList<>(registrationsChain.size());
+            for (Registration<?> reg : registrationsChain) {
+                this.registrationsChain.add(SourcesProcessorHelper.getId(reg));
             }
+            this.preTransform = preTransform.getRowPackedCopy();
+            this.zPositioner = zPositioner.getRowPackedCopy();
+            this.processing = processing;
+        }
+
+        boolean dependsOn(SliceSources slice, Registration<?> reg) {
+            return (sliceId == SourcesProcessorHelper.getId(slice))&&(registrationsChain.contains(SourcesProcessorHelper.getId(reg)));
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof MovingPlaneLocation)) return false;
+            MovingPlaneLocation that = (MovingPlaneLocation) o;
+            return (sliceId == that.sliceId)
+                    && registrationsChain.equals(that.registrationsChain)
+                    && Arrays.equals(preTransform, that.preTransform)
+                    && Arrays.equals(zPositioner, that.zPositioner)
+                    && processing.equals(that.processing);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sliceId, registrationsChain, Arrays.hashCode(preTransform), Arrays.hashCode(zPositioner), processing);
+        }
+    }
+
+    /**
+     * Computes the regions of the atlas in the coordinates of this slice
+     * @param namingChoice ontology property used to name the regions
+     * @return the transformed regions, including left and right regions
+     */
+    ConvertibleRois prepareExport(String namingChoice) {
+        // Need to raster the label image
+        AffineTransform3D at3D = new AffineTransform3D();
+        at3D.translate(-mp.nPixX / 2.0, -mp.nPixY / 2.0, 0);
+        at3D.scale(mp.sizePixX, mp.sizePixY, mp.sizePixZ);
+        at3D.translate(0, 0, slicingAxisPosition);
+
+        cvtRoisOrigin = getLabelImageRois(at3D).join();
+
         computeTransformedRois();
 
         // Renaming
@@ -682,28 +1131,61 @@ public class SliceSources {
         right.setStrokeColor(new Color(255,0,255));
         right.setName("Right");
         roiList.rois.add(new CompositeFloatPoly(right));
+
+        return cvtRoisTransformed;
     }
 
     protected synchronized void exportRegionsToROIManager(String namingChoice) {
-        prepareExport(namingChoice);
-        cvtRoisTransformed.to(RoiManager.class);
+        prepareExport(namingChoice).to(RoiManager.class);
     }
 
     protected synchronized void exportToQuPathProject(boolean erasePreviousFile) {
-        prepareExport("id");
-
-        ImageJRoisFile ijroisfile = (ImageJRoisFile) cvtRoisTransformed.to(ImageJRoisFile.class);
+        ImageJRoisFile ijroisfile = (ImageJRoisFile) prepareExport("id").to(ImageJRoisFile.class);
 
-        storeInQuPathProjectIfExists(ijroisfile, erasePreviousFile);
+        storeInQuPathProjectIfExists(ijroisfile, getSlicePixToCCFRealTransform(), erasePreviousFile);
     }
 
     protected synchronized void exportRegionsToFile(String namingChoice, File dirOutput, boolean erasePreviousFile) {
+        ImageJRoisFile ijroisfile = (ImageJRoisFile) prepareExport(namingChoice).to(ImageJRoisFile.class);
 
-        prepareExport(namingChoice);
+        storeInFolder(ijroisfile, dirOutput, erasePreviousFile);
+    }
+
+    /**
+     * Exports the regions of this slice as part of a multi slice export: the regions are computed
+     * in the calling thread, while writing to the disk is delegated to the export, which serializes the writes.
+     * Returns once the write is scheduled : the next tasks of the slice do not wait for the disk
+     * @param export the multi slice export this slice belongs to
+     * @param namingChoice ontology property used to name the regions
+     * @param dirOutput folder where the regions are written
+     * @param erasePreviousFile if true, overwrites an existing file
+     */
+    protected void exportRegionsToFile(RegionsExport export, String namingChoice, File dirOutput, boolean erasePreviousFile) {
+        ImageJRoisFile ijroisfile = (ImageJRoisFile) prepareExport(namingChoice).to(ImageJRoisFile.class);
 
-        ImageJRoisFile ijroisfile = (ImageJRoisFile) cvtRoisTransformed.to(ImageJRoisFile.class);
+        export.write(this, () -> storeInFolder(ijroisfile, dirOutput, erasePreviousFile));
+    }
 
-        //--------------------
+    /**
+     * See {@link SliceSources#exportRegionsToFile(RegionsExport, String, File, boolean)}
+     */
+    protected void exportToQuPathProject(RegionsExport export, boolean erasePreviousFile) {
+        ImageJRoisFile ijroisfile = (ImageJRoisFile) prepareExport("id").to(ImageJRoisFile.class);
+        RealTransform transform = getSlicePixToCCFRealTransform();
+
+        export.write(this, () -> storeInQuPathProjectIfExists(ijroisfile, transform, erasePreviousFile));
+    }
+
+    /**
+     * See {@link SliceSources#exportRegionsToFile(RegionsExport, String, File, boolean)}
+     */
+    protected void exportRegionsToROIManager(RegionsExport export, String namingChoice) {
+        ConvertibleRois rois = prepareExport(namingChoice);
+
+        export.write(this, () -> rois.to(RoiManager.class));
+    }
+
+    private void storeInFolder(ImageJRoisFile ijroisfile, File dirOutput, boolean erasePreviousFile) {
 
         File f = new File(dirOutput, toString()+".zip");
         try {
@@ -758,7 +1240,7 @@ public class SliceSources {
         return (irts==null)?rts:irts;
     }
 
-    private void storeInQuPathProjectIfExists(ImageJRoisFile ijroisfile, boolean erasePreviousFile) {
+    private void storeInQuPathProjectIfExists(ImageJRoisFile ijroisfile, RealTransform transform, boolean erasePreviousFile) {
 
         if (!QuPathBdvHelper.isSourceLinkedToQuPath(original_sacs[0])) {
             mp.errlog.accept("Slice"+toString()+" not linked to a QuPath dataset");
@@ -788,8 +1270,6 @@ public class SliceSources {
                 writeOntotogyIfNotPresent(mp, projectFolderPath);
             }
 
-            RealTransform transform = getSlicePixToCCFRealTransform();
-
             if (transform!=null) {
                 File ftransform = new File(dataEntryFolder, "ABBA-Transform.json");
                 mp.log.accept("Save transformation to quPath project " + ftransform.getAbsolutePath());
@@ -857,6 +1337,13 @@ public class SliceSources {
         leftRightTranformed.set(arrayIniLeftRight);
         RealPointList listLeftRight = ((RealPointList) leftRightOrigin.to(RealPointList.class));
 
+        // Regions and left right points are transformed together, packed in a single array
+        double[] xyRegions = PackedPoints.pack(listRegions);
+        double[] xyLeftRight = PackedPoints.pack(listLeftRight);
+        double[] xy = new double[xyRegions.length + xyLeftRight.length];
+        System.arraycopy(xyRegions, 0, xy, 0, xyRegions.length);
+        System.arraycopy(xyLeftRight, 0, xy, xyRegions.length, xyLeftRight.length);
+
         // Perform reverse transformation, in the reverse order:
         //  - From atlas coordinates -> image coordinates
 
@@ -864,23 +1351,19 @@ public class SliceSources {
         at3D.translate(-mp.nPixX / 2.0, -mp.nPixY / 2.0, 0);
         at3D.scale(mp.sizePixX, mp.sizePixY, mp.sizePixZ);
         at3D.translate(0, 0, slicingAxisPosition);
-        listRegions = getTransformedPtsFixedToMoving(listRegions, at3D.inverse());
-
-        listLeftRight = getTransformedPtsFixedToMoving(listLeftRight, at3D.inverse());
+        PackedPoints.apply(xy, at3D);
 
-        Collections.reverse(this.registrations);
-
-        for (Registration reg : this.registrations) {
-            listRegions = reg.getTransformedPtsFixedToMoving(listRegions);
-            listLeftRight = reg.getTransformedPtsFixedToMoving(listLeftRight);
+        for (int i = registrations.size()-1; i>=0; i--) {
+            registrations.get(i).transformPtsFixedToMoving(xy);
         }
-        
-        Collections.reverse(this.registrations);
 
         this.original_sacs[0].getSpimSource().getSourceTransform(0,0,at3D);
-        listRegions = getTransformedPtsFixedToMoving(listRegions, at3D);
+        PackedPoints.apply(xy, at3D.inverse());
 
-        listLeftRight = getTransformedPtsFixedToMoving(listLeftRight, at3D);
+        System.arraycopy(xy, 0, xyRegions, 0, xyRegions.length);
+        System.arraycopy(xy, xyRegions.length, xyLeftRight, 0, xyLeftRight.length);
+        listRegions = PackedPoints.unpack(xyRegions);
+        listLeftRight = PackedPoints.unpack(xyLeftRight);
 
         cvtRoisTransformed.clear();
         listRegions.shapeRoiList = new IJShapeRoiArray(arrayIniRegions);
@@ -894,15 +1377,9 @@ public class SliceSources {
     }
 
     public RealPointList getTransformedPtsFixedToMoving(RealPointList pts, AffineTransform3D at3d) {
-        ArrayList<RealPoint> cvtList = new ArrayList<>();
-        for (RealPoint p : pts.ptList) {
-            RealPoint pt3d = new RealPoint(3);
-            pt3d.setPosition(new double[]{p.getDoublePosition(0), p.getDoublePosition(1),0});
-            at3d.inverse().apply(pt3d, pt3d);
-            RealPoint cpt = new RealPoint(pt3d.getDoublePosition(0), pt3d.getDoublePosition(1));
-            cvtList.add(cpt);
-        }
-        return new RealPointList(cvtList);
+        double[] xy = PackedPoints.pack(pts);
+        PackedPoints.apply(xy, at3d.inverse());
+        return PackedPoints.unpack(xy);
     }
 
     protected void editLastRegistration(
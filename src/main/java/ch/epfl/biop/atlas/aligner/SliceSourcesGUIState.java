@@ -22,7 +22,8 @@ import java.util.stream.IntStream;
 /**
  * Everything related to SliceSources display and its synchronization
  *
- *
+ * If the aligner is headless, the sources are still computed for each display mode,
+ * but nothing is shown and no graphical handle is created
  *
  */
 
@@ -79,6 +80,9 @@ public class SliceSourcesGUIState {
         SourceAndConverterHelper.transferColorConverters(slice.original_sacs, sources_displayed_or_readyfordisplay);
 
         behavioursHandleSlice = new Behaviours(new InputTriggerConfig());
+
+        if (mp.isHeadless()) return;
+
         behavioursHandleSlice.behaviour(mp.getSelectedSourceDragBehaviour(slice), "dragSelectedSources" + this.toString(), "button1");
         behavioursHandleSlice.behaviour((ClickBehaviour) (x, y) -> {
             slice.deSelect();
@@ -104,9 +108,9 @@ public class SliceSourcesGUIState {
 
             synchronized (lockChangeDisplay) {
 
-                mp.getBdvh().getViewerPanel().state().removeSources(Arrays.asList(sources_displayed_or_readyfordisplay));
+                removeDisplayedSources();
 
-                sacs_registration_mode = slice.getRegisteredSources();
+                sacs_registration_mode = slice.getDisplayedRegisteredSources();
 
                 slicingModePositioner = new AffineTransformedSourceWrapperRegistration();
                 slicingModePositioner.setMovingImage(sacs_registration_mode);
@@ -160,14 +164,14 @@ public class SliceSourcesGUIState {
                 switch (mp.displayMode) {
                     case MultiSlicePositioner.POSITIONING_MODE_INT:
                         if (sources_displayed_or_readyfordisplay != relocated_sacs_positioning_mode) {
-                            mp.getBdvh().getViewerPanel().state().removeSources(Arrays.asList(sources_displayed_or_readyfordisplay));
+                            removeDisplayedSources();
                             SourceAndConverterHelper.transferColorConverters(sources_displayed_or_readyfordisplay, relocated_sacs_positioning_mode);
                             sources_displayed_or_readyfordisplay = relocated_sacs_positioning_mode;
                         }
                         break;
                     case MultiSlicePositioner.REVIEW_MODE_INT:
                         if (sources_displayed_or_readyfordisplay != sacs_registration_mode) {
-                            mp.getBdvh().getViewerPanel().state().removeSources(Arrays.asList(sources_displayed_or_readyfordisplay));
+                            removeDisplayedSources();
                             SourceAndConverterHelper.transferColorConverters(sources_displayed_or_readyfordisplay, sacs_registration_mode);
                             sources_displayed_or_readyfordisplay = sacs_registration_mode;
                         }
@@ -225,13 +229,18 @@ public class SliceSourcesGUIState {
     }
 
     private void hide() {
+        removeDisplayedSources();
+    }
+
+    private void removeDisplayedSources() {
+        if (mp.isHeadless()) return;
         mp.getBdvh().getViewerPanel().state()
                 .removeSources(Arrays.asList(sources_displayed_or_readyfordisplay));
     }
 
     private void show() {
         //synchronized (lockChangeDisplay) {
-            if (sliceIsVisibleMode) {
+            if ((sliceIsVisibleMode)&&(!mp.isHeadless())) {
                 List<SourceAndConverter<?>> sourcesToDisplay = IntStream.range(0,nChannels)
                         .filter(idx -> channelVisible[idx])
                         .mapToObj(idx -> sources_displayed_or_readyfordisplay[idx])
@@ -44,6 +44,18 @@ public class SliceSourcesPopupMenu {
                 }
             });
 
+            addPopupAction("Fast Display of Registrations", (slices) -> {
+                for (SliceSources slice : slices) {
+                    mp.getExecutor().getCpuExecutor().submit(() -> slice.setCollapseRegistrationsForDisplay(true));
+                }
+            });
+
+            addPopupAction("Exact Display of Registrations", (slices) -> {
+                for (SliceSources slice : slices) {
+                    mp.getExecutor().getCpuExecutor().submit(() -> slice.setCollapseRegistrationsForDisplay(false));
+                }
+            });
+
             addPopupAction("Delete Slices", (slices) -> {
                 if (slices.length>1) new MarkActionSequenceBatch(mp).runRequest();
                 for (SliceSources slice : slices) {
@@ -0,0 +1,350 @@
+package ch.epfl.biop.atlas.aligner;
+
+import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.atlas.aligner.sourcepreprocessors.SourcesProcessor;
+import ch.epfl.biop.atlas.aligner.sourcepreprocessors.SourcesProcessorHelper;
+import ch.epfl.biop.atlas.plugin.IABBARegistrationPlugin;
+import ch.epfl.biop.atlas.plugin.RegistrationTypeProperties;
+import ch.epfl.biop.registration.Registration;
+import ch.epfl.biop.registration.sourceandconverter.SourceAndConverterRegistration;
+import ij.Prefs;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registers in advance the slices the user is about to review, while the user looks at the current one.
+ *
+ * The recipe is the sequence of registrations last launched on a single slice, for instance an affine
+ * registration followed by a spline registration. When the user navigates from slice to slice, the recipe
+ * is run in the background on the current slice and on the next unregistered slices, in the direction of
+ * navigation. These registrations go through {@link MultiSlicePositioner#registrationScheduler} with a lower
+ * priority than the registrations requested by the user, see {@link RegistrationScheduler#registerInBackground}.
+ * Registrations performed on a server are never run in advance : data is only sent to a server on request.
+ * Results are kept pending, in memory : nothing is appended to the slices.
+ *
+ * When the user registers a slice with the same registration and the same inputs, the pending result is used
+ * instead of running the registration again, or waited for if it is being computed. The recipe can also be
+ * applied at once to the current slice, see {@link SpeculativeRegistrations#commit(SliceSources)}.
+ *
+ * Pending results of a slice are dropped when the slice moves, when the recipe changes, and when the
+ * slice leaves the range of slices around the current one.
+ *
+ * Opt-in : enabled, number of slices registered in advance and number of threads are stored in the IJ preferences.
+ */
+
+public class SpeculativeRegistrations {
+
+    public static String keyPrefix = SpeculativeRegistrations.class.getName()+".";
+
+    public static boolean isEnabled() {
+        return Prefs.get(keyPrefix+"enabled", false);
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Prefs.set(keyPrefix+"enabled", enabled);
+    }
+
+    public static int getLookAhead() {
+        return (int) Prefs.get(keyPrefix+"lookAhead", 2);
+    }
+
+    public static void setLookAhead(int lookAhead) {
+        Prefs.set(keyPrefix+"lookAhead", lookAhead);
+    }
+
+    public static int getNumberOfThreads() {
+        return (int) Prefs.get(keyPrefix+"nThreads", 1);
+    }
+
+    public static void setNumberOfThreads(int nThreads) {
+        Prefs.set(keyPrefix+"nThreads", nThreads);
+    }
+
+    final MultiSlicePositioner mp;
+
+    // Recipe : registrations launched one after the other on a single slice
+    private final List<Step> recipe = new ArrayList<>();
+
+    private SliceSources recipeSlice = null;
+
+    private int recipeCursor = 0;
+
+    // Direction of navigation : 1 forward, -1 backward
+    private int direction = 1;
+
+    private final Map<SliceSources, Pending> pending = new HashMap<>();
+
+    // Registration inputs key (see RegistrationResultDiskCache#getKey) -> serialized transform, null if failed
+    private final Map<String, CompletableFuture<String>> results = new ConcurrentHashMap<>();
+
+    private ExecutorService executor;
+
+    private final AtomicInteger nComputed = new AtomicInteger();
+
+    private final AtomicInteger nUsed = new AtomicInteger();
+
+    private final AtomicInteger nDropped = new AtomicInteger();
+
+    public SpeculativeRegistrations(MultiSlicePositioner mp) {
+        this.mp = mp;
+    }
+
+    /**
+     * Called for each user registration request : extends or replaces the recipe
+     * @param slices slices registered
+     * @param registrationClass the kind of registration
+     * @param preprocessFixed how fixed sources are preprocessed
+     * @param preprocessMoving how moving sources are preprocessed
+     * @param parameters parameters of the registration, including the region of interest
+     */
+    synchronized void recordRecipe(List<SliceSources> slices,
+                                   Class<? extends IABBARegistrationPlugin> registrationClass,
+                                   SourcesProcessor preprocessFixed,
+                                   SourcesProcessor preprocessMoving,
+                                   Map<String, Object> parameters) {
+        // Only slice by slice registrations, without user input, are anticipated
+        if (slices.size()!=1) return;
+        if ((registrationClass.isAnnotationPresent(RegistrationTypeProperties.class))
+                &&(registrationClass.getAnnotation(RegistrationTypeProperties.class).isManual())) return;
+
+        Step step = new Step(registrationClass, preprocessFixed, preprocessMoving, new HashMap<>(parameters));
+        if (slices.get(0)!=recipeSlice) {
+            recipeSlice = slices.get(0);
+            recipeCursor = 0;
+        }
+        if ((recipeCursor<recipe.size())&&(recipe.get(recipeCursor).isSameAs(step))) {
+            // Same recipe, applied on another slice
+            recipeCursor++;
+            return;
+        }
+        recipe.subList(recipeCursor, recipe.size()).clear();
+        recipe.add(step);
+        recipeCursor++;
+        dropAll();
+    }
+
+    /**
+     * @param direction 1 if the user navigates forward, -1 backward
+     */
+    public synchronized void setDirection(int direction) {
+        this.direction = direction>=0 ? 1 : -1;
+    }
+
+    /**
+     * Non blocking : runs the recipe in the background on the current slice and on the next unregistered slices.
+     * Drops pending results of slices which are out of range.
+     */
+    public synchronized void speculate() {
+        if ((!isEnabled())||(mp.isHeadless())||(recipe.isEmpty())) return;
+        List<SliceSources> sortedSlices = mp.getSortedSlices();
+        int current = mp.getCurrentSliceIndex();
+        if ((current<0)||(current>=sortedSlices.size())) return;
+
+        Set<SliceSources> inRange = new HashSet<>();
+        List<SliceSources> targets = new ArrayList<>();
+        for (int i = current; (i>=0)&&(i<sortedSlices.size())&&(targets.size()<getLookAhead()+1); i+=direction) {
+            SliceSources slice = sortedSlices.get(i);
+            inRange.add(slice);
+            // Already registered, or being processed because of a user request
+            if ((!slice.isUnregistered())||(!slice.getTasksFuture().isDone())) continue;
+            targets.add(slice);
+        }
+
+        for (SliceSources slice : new ArrayList<>(pending.keySet())) {
+            if (!inRange.contains(slice)) drop(slice);
+        }
+
+        List<Step> steps = new ArrayList<>(recipe);
+        for (SliceSources slice : targets) {
+            if (pending.containsKey(slice)) continue;
+            Pending p = new Pending();
+            pending.put(slice, p);
+            p.task = getExecutor().submit(() -> run(slice, steps, p));
+        }
+    }
+
+    /**
+     * Blocking if the registration is being computed
+     * @param key key of the registration inputs, see {@link RegistrationResultDiskCache#getKey}
+     * @return the serialized transform computed in advance for these inputs, or null if none
+     */
+    public String take(String key) {
+        if (key==null) return null;
+        CompletableFuture<String> result = results.remove(key);
+        if (result==null) return null;
+        try {
+            String transform = result.get();
+            if (transform!=null) nUsed.incrementAndGet();
+            return transform;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Enqueues the registrations of the recipe on a slice : the results computed in advance are used if available
+     * @param slice slice to register
+     */
+    public void commit(SliceSources slice) {
+        List<Step> steps;
+        synchronized (this) {
+            steps = new ArrayList<>(recipe);
+        }
+        if (slice==null) {
+            mp.warningMessageForUser.accept("No slice", "There is no current slice");
+            return;
+        }
+        if (steps.isEmpty()) {
+            mp.warningMessageForUser.accept("No registration", "Please register a slice first");
+            return;
+        }
+        new MarkActionSequenceBatch(mp).runRequest();
+        for (Step step : steps) {
+            try {
+                mp.registerSlice(slice, step.registrationClass, step.preprocessFixed, step.preprocessMoving, step.parameters);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        new MarkActionSequenceBatch(mp).runRequest();
+    }
+
+    /**
+     * Drops the pending results of a slice, and stops its registrations in progress
+     * @param slice slice which changed
+     */
+    public synchronized void drop(SliceSources slice) {
+        Pending p = pending.remove(slice);
+        if (p==null) return;
+        p.cancelled = true;
+        if (p.task!=null) p.task.cancel(true);
+        Registration<?> running = p.running;
+        if (running!=null) {
+            MultiSlicePositioner.registrationScheduler.abort(running); // If still waiting for a permit
+            running.abort();
+        }
+        for (Map.Entry<String, CompletableFuture<String>> entry : p.results.entrySet()) {
+            results.remove(entry.getKey(), entry.getValue());
+            // Anyone waiting computes the registration instead
+            entry.getValue().complete(null);
+        }
+        nDropped.incrementAndGet();
+    }
+
+    public synchronized void dropAll() {
+        new ArrayList<>(pending.keySet()).forEach(this::drop);
+    }
+
+    public synchronized void shutdown() {
+        dropAll();
+        if (executor!=null) executor.shutdownNow();
+        executor = null;
+    }
+
+    public String getStatistics() {
+        return "Speculative registrations : "+nComputed.get()+" computed, "+nUsed.get()+" used, "+nDropped.get()+" slice(s) dropped";
+    }
+
+    private void run(SliceSources slice, List<Step> steps, Pending p) {
+        // Registrations of the recipe not appended to the slice
+        List<Registration<SourceAndConverter<?>[]>> chain = new ArrayList<>();
+        SourceAndConverter<?>[] moving = slice.getRegisteredSources();
+        for (Step step : steps) {
+            // The user started to process this slice : the remaining steps will not match
+            if ((p.cancelled)||(!slice.getTasksFuture().isDone())) return;
+            // Not sent to a server without a user request, and the next steps depend on this one
+            if (step.parameters.containsKey("serverURL")) return;
+            CompletableFuture<String> result = new CompletableFuture<>();
+            try {
+                IABBARegistrationPlugin reg = mp.createRegistration(slice, step.registrationClass, step.parameters);
+                SourcesProcessor preprocessFixed = SourcesProcessorHelper.compose(MultiSlicePositioner.getZZero(slice), step.preprocessFixed);
+                SourcesProcessor preprocessMoving = SourcesProcessorHelper.compose(MultiSlicePositioner.getZZero(slice), step.preprocessMoving);
+                String key = RegistrationResultDiskCache.getKey(reg, slice.getFixedInputs(preprocessFixed), slice.getMovingInputs(preprocessMoving, chain));
+                if (key==null) return;
+                synchronized (this) {
+                    if (p.cancelled) return;
+                    results.put(key, result);
+                    p.results.put(key, result);
+                    p.running = reg;
+                }
+                slice.setRegistrationImages(reg, preprocessFixed, preprocessMoving, moving);
+                if (reg instanceof SourceAndConverterRegistration) {
+                    ((SourceAndConverterRegistration) reg).setFixedPlaneLocation(slice.getAtlasPlaneLocation(preprocessFixed));
+                }
+                String cached = RegistrationResultDiskCache.load(key);
+                if (cached!=null) {
+                    reg.setTransform(cached);
+                } else if (!MultiSlicePositioner.registrationScheduler.registerInBackground(reg)) {
+                    result.complete(null);
+                    return;
+                } else {
+                    RegistrationResultDiskCache.store(key, reg.getTransform());
+                    nComputed.incrementAndGet();
+                }
+                result.complete(reg.getTransform());
+                chain.add(reg);
+                moving = reg.getTransformedImageMovingToFixed(moving);
+            } catch (Exception e) {
+                result.complete(null);
+                if (!p.cancelled) {
+                    System.err.println("Speculative registration of slice "+slice+" failed : "+e.getMessage());
+                }
+                return;
+            } finally {
+                p.running = null;
+            }
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor==null) {
+            AtomicInteger threadIndex = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(Math.max(1, getNumberOfThreads()), r -> {
+                Thread thread = new Thread(r, "ABBA-speculative-registration-"+threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    class Step {
+
+        final Class<? extends IABBARegistrationPlugin> registrationClass;
+
+        final SourcesProcessor preprocessFixed;
+
+        final SourcesProcessor preprocessMoving;
+
+        final Map<String, Object> parameters;
+
+        Step(Class<? extends IABBARegistrationPlugin> registrationClass, SourcesProcessor preprocessFixed,
+             SourcesProcessor preprocessMoving, Map<String, Object> parameters) {
+            this.registrationClass = registrationClass;
+            this.preprocessFixed = preprocessFixed;
+            this.preprocessMoving = preprocessMoving;
+            this.parameters = parameters;
+        }
+
+        boolean isSameAs(Step other) {
+            return (registrationClass==other.registrationClass)
+                    &&(SourcesProcessorHelper.getKey(preprocessFixed).equals(SourcesProcessorHelper.getKey(other.preprocessFixed)))
+                    &&(SourcesProcessorHelper.getKey(preprocessMoving).equals(SourcesProcessorHelper.getKey(other.preprocessMoving)))
+                    &&(mp.convertToString(parameters).equals(mp.convertToString(other.parameters)));
+        }
+    }
+
+    static class Pending {
+
+        volatile boolean cancelled = false;
+
+        Future<?> task;
+
+        volatile Registration<?> running;
+
+        final Map<String, CompletableFuture<String>> results = new ConcurrentHashMap<>();
+    }
+
+}
@@ -1,6 +1,11 @@
 package ch.epfl.biop.atlas.aligner.commands;
 
+import ch.epfl.biop.atlas.aligner.AlignerExecutorService;
+import ch.epfl.biop.atlas.aligner.MultiSlicePositioner;
+import ch.epfl.biop.atlas.aligner.RegistrationScheduler;
 import org.scijava.command.Command;
+import org.scijava.object.ObjectService;
+import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 import sc.fiji.bdvpg.bdv.config.BdvSettingsGUISetter;
 import sc.fiji.bdvpg.scijava.ScijavaBdvDefaults;
@@ -9,14 +14,42 @@ import sc.fiji.bdvpg.scijava.command.BdvPlaygroundActionCommand;
 import java.io.File;
 
 @Plugin(type = BdvPlaygroundActionCommand.class, menuPath = ScijavaBdvDefaults.RootMenu+"Plugins>BIOP>Atlas>Multi Image To Atlas>Preferences",
-        description = "Sets actions linked to key / mouse event in ABBA")
+        description = "Sets the number of threads used by ABBA and actions linked to key / mouse event in ABBA")
 
 public class ABBASettingsCommand implements Command {
 
+    @Parameter
+    ObjectService os;
+
+    @Parameter(label = "Number of threads for slices computation (resampling, export)", min = "1", persist = false)
+    int nCpuThreads = AlignerExecutorService.getDefaultCpuPoolSize();
+
+    @Parameter(label = "Number of threads for registrations", min = "1", persist = false)
+    int nRegistrationThreads = AlignerExecutorService.getDefaultRegistrationPoolSize();
+
+    @Parameter(label = "Max. simultaneous local registrations (per registration type)", min = "1", persist = false)
+    int nLocalRegistrationPermits = RegistrationScheduler.getDefaultLocalPermits();
+
+    @Parameter(label = "Max. simultaneous server registrations (per registration type)", min = "1", persist = false)
+    int nServerRegistrationPermits = RegistrationScheduler.getDefaultServerPermits();
+
+    @Parameter(label = "Edit key bindings")
+    boolean editKeyBindings = false;
+
     @Override
     public void run() {
-        //String yamlLocation = BdvSettingsGUISetter.defaultBdvPgSettingsRootPath;
-        new BdvSettingsGUISetter("plugins"+ File.separator + "bdvpgsettings"+File.separator+"abba").run();
+        AlignerExecutorService.setDefaultPoolSizes(nCpuThreads, nRegistrationThreads);
+
+        // Applies new pool sizes to currently opened ABBA instances
+        os.getObjects(MultiSlicePositioner.class)
+                .forEach(mp -> mp.getExecutor().setPoolSizes(nCpuThreads, nRegistrationThreads));
+
+        MultiSlicePositioner.registrationScheduler.setDefaultPermits(nLocalRegistrationPermits, nServerRegistrationPermits);
+
+        if (editKeyBindings) {
+            //String yamlLocation = BdvSettingsGUISetter.defaultBdvPgSettingsRootPath;
+            new BdvSettingsGUISetter("plugins" + File.separator + "bdvpgsettings" + File.separator + "abba").run();
+        }
     }
 
 }
@@ -82,11 +82,14 @@ public class AllenAtlasDisplayCommand extends InteractiveCommand implements Mult
             SourceAndConverterHelper.transferColorConverters(mp.getReslicedAtlas().nonExtendedSlicedSources, mp.getReslicedAtlas().extendedSlicedSources);
         }
 
+        // Analytical channels (coordinates, left right) are not displayed
         for (SourceAndConverter sac : mp.getReslicedAtlas().extendedSlicedSources) {
-            mp.getBdvh().getViewerPanel().state().setSourceActive(sac, false);
+            if (mp.getBdvh().getViewerPanel().state().containsSource(sac))
+                mp.getBdvh().getViewerPanel().state().setSourceActive(sac, false);
         }
         for (SourceAndConverter sac : mp.getReslicedAtlas().nonExtendedSlicedSources) {
-            mp.getBdvh().getViewerPanel().state().setSourceActive(sac, false);
+            if (mp.getBdvh().getViewerPanel().state().containsSource(sac))
+                mp.getBdvh().getViewerPanel().state().setSourceActive(sac, false);
         }
 
         switch (newmode) {
@@ -0,0 +1,38 @@
+package ch.epfl.biop.atlas.aligner.commands;
+
+import ch.epfl.biop.atlas.aligner.MultiSlicePositioner;
+import ch.epfl.biop.atlas.aligner.ReslicedAtlasDiskCache;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.util.Arrays;
+
+@Plugin(type = Command.class, menuPath = "Plugins>BIOP>Atlas>Multi Image To Atlas>Edit>Bake Resliced Atlas To Disk")
+public class BakeReslicedAtlasCommand implements Command {
+
+    @Parameter
+    MultiSlicePositioner mp;
+
+    @Parameter(label = "Resolution levels to bake (comma separated, 0 = full resolution)")
+    String levels = "1,2";
+
+    @Override
+    public void run() {
+        int[] levelsToBake;
+        try {
+            levelsToBake = Arrays.stream(levels.split(","))
+                    .map(String::trim)
+                    .filter(s -> !s.isEmpty())
+                    .mapToInt(Integer::parseInt)
+                    .toArray();
+        } catch (NumberFormatException e) {
+            mp.errlog.accept("Could not read resolution levels "+levels);
+            return;
+        }
+        mp.log.accept("Baking resliced atlas levels "+Arrays.toString(levelsToBake)+" in "+ReslicedAtlasDiskCache.cacheDir.getAbsolutePath());
+        ReslicedAtlasDiskCache.bake(mp.getReslicedAtlas(), levelsToBake, mp.getExecutor().getCpuExecutor(), mp.getExecutor().getIoExecutor(), mp.log)
+                .thenRun(() -> mp.log.accept("Resliced atlas baked"));
+    }
+
+}
@@ -12,7 +12,7 @@ import java.util.Map;
 @Plugin(type = Command.class, menuPath = "Plugins>BIOP>Atlas>Multi Image To Atlas>Align>Elastix Registration (Affine) on Server")
 public class RegistrationElastixAffineRemoteCommand extends SingleChannelRegistrationCommand {
 
-    @Parameter(label = "Registration Server URL")
+    @Parameter(label = "Registration Server URL(s), comma separated")
     String serverURL = "https://snappy.epfl.ch";
 
     @Parameter(visibility = ItemVisibility.MESSAGE, style = TextWidget.AREA_STYLE )
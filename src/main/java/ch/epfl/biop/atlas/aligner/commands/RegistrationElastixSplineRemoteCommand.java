@@ -20,7 +20,7 @@ public class RegistrationElastixSplineRemoteCommand extends SingleChannelRegistr
 
     double background_offset_value_fixed = 0;
 
-    @Parameter(label = "Registration Server URL")
+    @Parameter(label = "Registration Server URL(s), comma separated")
     String serverURL = "https://snappy.epfl.ch";
 
     @Parameter(visibility = ItemVisibility.MESSAGE, style = TextWidget.AREA_STYLE )
@@ -2,6 +2,7 @@ package ch.epfl.biop.atlas.aligner.commands;
 
 import bdv.util.BdvHandle;
 import bdv.util.BdvHandleFrame;
+import ch.epfl.biop.StartupProfiler;
 import ch.epfl.biop.atlas.BiopAtlas;
 import ch.epfl.biop.atlas.aligner.MultiSlicePositioner;
 import ch.epfl.biop.atlas.aligner.ReslicedAtlas;
@@ -9,6 +10,7 @@ import net.imglib2.realtransform.AffineTransform3D;
 import org.scijava.Context;
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
+import org.scijava.command.CommandModule;
 import org.scijava.command.CommandService;
 import org.scijava.object.ObjectService;
 import org.scijava.plugin.Parameter;
@@ -17,6 +19,7 @@ import sc.fiji.bdvpg.bdv.projector.Projection;
 import sc.fiji.bdvpg.scijava.command.bdv.BdvWindowCreatorCommand;
 
 import javax.swing.*;
+import java.util.concurrent.Future;
 
 @Plugin(type = Command.class, menuPath = "Plugins>BIOP>Atlas>Multi Image To Atlas>Position Multiple Slices")
 public class SacMultiSacsPositionerCommand implements Command {
@@ -47,33 +50,24 @@ public class SacMultiSacsPositionerCommand implements Command {
     @Override
     public void run() {
 
-        slicingTransfom = new AffineTransform3D();
-
-        switch(slicingMode) {
-            case "coronal" :
-                slicingTransfom.rotate(1,Math.PI/2);
-                break;
-            case "sagittal" :
-                // No Change
-                break;
-            case "vertical" :
-                slicingTransfom.rotate(0,-Math.PI/2);
-                break;
-        }
-
-        ReslicedAtlas ra = new ReslicedAtlas(ba);
-        ra.setResolution(0.01);
-        ra.setSlicingTransform(slicingTransfom);
+        slicingTransfom = getSlicingTransform(slicingMode);
 
         try {
 
-            bdvMultiSlicer = (BdvHandle) cs.run(BdvWindowCreatorCommand.class, true,
+            // The bdv window is created while the atlas is resliced
+            long startWindow = StartupProfiler.now();
+            Future<CommandModule> bdvWindowCreation = cs.run(BdvWindowCreatorCommand.class, true,
                     "is2D", false, //true,
                     "windowTitle", "Allen Brain BIOP Aligner",//"Multi Slice Positioner " + ba.toString(),
                     "interpolate", false,
                     "nTimepoints", 1,
-                    "projector", Projection.SUM_PROJECTOR)
-                    .get().getOutput("bdvh");
+                    "projector", Projection.SUM_PROJECTOR);
+
+            ReslicedAtlas ra = new ReslicedAtlas(ba);
+            StartupProfiler.time("Resliced atlas", () -> ra.setSlicingTransformAndResolution(slicingTransfom, 0.01));
+
+            bdvMultiSlicer = (BdvHandle) bdvWindowCreation.get().getOutput("bdvh");
+            StartupProfiler.record("BDV window", startWindow);
 
             JFrame frame = ((BdvHandleFrame)bdvMultiSlicer).getBigDataViewer().getViewerFrame();
             frame.setExtendedState(JFrame.MAXIMIZED_BOTH);
@@ -86,7 +80,7 @@ public class SacMultiSacsPositionerCommand implements Command {
 
             if (bdvMultiSlicer.getCardPanel()==null) {System.err.println("bdv multislicer card panel null");}
 
-            mp = new MultiSlicePositioner(bdvMultiSlicer, ba, ra, context);
+            mp = StartupProfiler.time("Multi slice positioner", () -> new MultiSlicePositioner(bdvMultiSlicer, ba, ra, context));
 
             os.addObject(mp);
 
@@ -96,4 +90,26 @@ public class SacMultiSacsPositionerCommand implements Command {
 
     }
 
+    /**
+     * @param slicingMode "coronal", "sagittal" or "vertical"
+     * @return the transform which orients the atlas according to the slicing mode
+     */
+    public static AffineTransform3D getSlicingTransform(String slicingMode) {
+        AffineTransform3D slicingTransform = new AffineTransform3D();
+
+        switch(slicingMode) {
+            case "coronal" :
+                slicingTransform.rotate(1,Math.PI/2);
+                break;
+            case "sagittal" :
+                // No Change
+                break;
+            case "vertical" :
+                slicingTransform.rotate(0,-Math.PI/2);
+                break;
+        }
+
+        return slicingTransform;
+    }
+
 }
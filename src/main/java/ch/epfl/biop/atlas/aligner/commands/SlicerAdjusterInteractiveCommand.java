@@ -31,8 +31,7 @@ public class SlicerAdjusterInteractiveCommand extends InteractiveCommand {
 
         reslicedAtlas.setStep(zSamplingSteps/10);
         if (!lockAngles) {
-            reslicedAtlas.setRotateX(rotateX / 180.0 * Math.PI);
-            reslicedAtlas.setRotateY(rotateY / 180.0 * Math.PI);
+            reslicedAtlas.setRotation(rotateX / 180.0 * Math.PI, rotateY / 180.0 * Math.PI);
             oldRotateX = rotateX;
             oldRotateY = rotateY;
         } else {
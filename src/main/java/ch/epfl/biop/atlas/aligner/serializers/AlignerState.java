@@ -17,7 +17,7 @@ public class AlignerState {
         displayMode = mp.getDisplayMode();
         sliceDisplayMode = mp.getSliceDisplayMode();
         overlapMode = mp.getOverlapMode();
-        bdvView = mp.getBdvh().getViewerPanel().state().getViewerTransform();
+        bdvView = mp.isHeadless() ? null : mp.getBdvh().getViewerPanel().state().getViewerTransform();
         rotationX = mp.getReslicedAtlas().getRotateX();
         rotationY = mp.getReslicedAtlas().getRotateY();
         iCurrentSlice = mp.getCurrentSliceIndex();
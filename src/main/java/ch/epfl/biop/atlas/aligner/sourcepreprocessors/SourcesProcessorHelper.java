@@ -1,7 +1,16 @@
 package ch.epfl.biop.atlas.aligner.sourcepreprocessors;
 
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 public class SourcesProcessorHelper {
 
+    // Ids of the objects identified in keys, see getId : weak keys, in order not to retain these objects
+    private static final Map<Object, Long> ids = new WeakHashMap<>();
+
+    private static long nextId = 0;
+
     public static SourcesProcessor Identity() {
         return new SourcesIdentity();
     }
@@ -49,4 +58,67 @@ public class SourcesProcessorHelper {
         } else return processor;
     }
 
+    /**
+     * Describes what a sources processor does, in order to know whether two
+     * processors give the same result when applied on the same sources
+     *
+     * Processors of unknown classes are described by their identity : they
+     * are only considered equal to themselves
+     *
+     * Used as a cache key for atlas planes
+     *
+     * @param processor
+     * @return a String describing the processing
+     */
+    public static String getKey(SourcesProcessor processor) {
+        if (processor instanceof SourcesIdentity) {
+            return "id";
+        } else if (processor instanceof SourcesChannelsSelect) {
+            return "ch"+((SourcesChannelsSelect) processor).channels_indices;
+        } else if (processor instanceof SourcesAffineTransformer) {
+            return "at"+Arrays.toString(((SourcesAffineTransformer) processor).at3d.getRowPackedCopy());
+        } else if (processor instanceof SourcesResampler) {
+            return "rs"+getId(((SourcesResampler) processor).model);
+        } else if (processor instanceof SourcesProcessComposer) {
+            SourcesProcessComposer composer = (SourcesProcessComposer) processor;
+            return "("+getKey(composer.f2)+")o("+getKey(composer.f1)+")";
+        } else {
+            return processor.getClass().getName()+"@"+getId(processor);
+        }
+    }
+
+    /**
+     * Identifies an object by a number assigned the first time it is requested and never reused:
+     * unlike {@link System#identityHashCode(Object)}, two objects never share the same id.
+     * The object is not retained. Only for objects which do not override equals
+     *
+     * @param o object to identify
+     * @return the id of the object
+     */
+    public static synchronized long getId(Object o) {
+        Long id = ids.get(o);
+        if (id == null) {
+            id = nextId++;
+            ids.put(o, id);
+        }
+        return id;
+    }
+
+    /**
+     * @param processor
+     * @return true if the key of the processor, see {@link SourcesProcessorHelper#getKey(SourcesProcessor)},
+     * describes the processing itself and not the identity of an object : such a key is identical
+     * across sessions and can be stored on disk
+     */
+    public static boolean isPersistentKey(SourcesProcessor processor) {
+        if ((processor instanceof SourcesIdentity)||(processor instanceof SourcesChannelsSelect)||(processor instanceof SourcesAffineTransformer)) {
+            return true;
+        } else if (processor instanceof SourcesProcessComposer) {
+            SourcesProcessComposer composer = (SourcesProcessComposer) processor;
+            return isPersistentKey(composer.f1)&&isPersistentKey(composer.f2);
+        } else {
+            return false;
+        }
+    }
+
 }
@@ -4,7 +4,9 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.IOException;
 import java.net.URL;
+import java.util.concurrent.CompletableFuture;
 
+import ch.epfl.biop.StartupProfiler;
 import ch.epfl.biop.atlas.BiopAtlas;
 import ch.epfl.biop.atlas.commands.ConstructROIsFromImgLabel;
 import ch.epfl.biop.java.utilities.roi.ConvertibleRois;
@@ -14,13 +16,27 @@ abstract public class AllenAtlas extends BiopAtlas {
 
 	@Override
 	public void initialize(URL mapURL, URL ontologyURL) {
-		ontology = new AllenOntology();
-		ontology.setDataSource(ontologyURL);
-		ontology.initialize();
-		
+		AllenOntology allenOntology = new AllenOntology();
+		allenOntology.setKeyModulo(getOntologyKeyModulo());
+		allenOntology.setDataSource(ontologyURL);
+
+		// The ontology and the map are independent : the ontology is loaded while the map is opened
+		CompletableFuture<Void> ontologyLoaded = CompletableFuture.runAsync(() ->
+				StartupProfiler.time("Atlas ontology", allenOntology::initialize));
+
 		map = new AllenMap();
 		map.setDataSource(mapURL);
-		map.initialize(this.toString());
+		StartupProfiler.time("Atlas map", () -> map.initialize(this.toString()));
+
+		ontologyLoaded.join();
+		ontology = allenOntology;
+	}
+
+	/**
+	 * @return modulo applied to the ontology ids while loading, to match the ids of the label image, -1 for no modulo
+	 */
+	protected int getOntologyKeyModulo() {
+		return -1;
 	}
 
 
@@ -1,13 +1,11 @@
 package ch.epfl.biop.atlas.allen;
 
-import bdv.util.RealRandomAccessibleIntervalSource;
 import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.atlas.AtlasCoordinateSource;
+import ch.epfl.biop.atlas.AtlasLeftRightSource;
 import ch.epfl.biop.atlas.AtlasMap;
 import net.imglib2.FinalInterval;
-import net.imglib2.RealLocalizable;
-import net.imglib2.position.FunctionRealRandomAccessible;
-import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
 import sc.fiji.bdvpg.services.SourceAndConverterServices;
@@ -19,7 +17,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.function.BiConsumer;
 
 public class AllenMap implements AtlasMap {
 
@@ -59,21 +56,9 @@ public class AllenMap implements AtlasMap {
 		//atlasSources.put("Label", sacs.get(AllenMap.LabelSetupId));
 		labelSource = sacs.get(AllenMap.LabelSetupId);
 
-		BiConsumer<RealLocalizable, UnsignedShortType > leftRightIndicator = (l, t ) -> {
-			if (l.getFloatPosition(2)>5.7) { // 11.4 mm / 2
-				t.set(255);
-			} else {
-				t.set(0);
-			}
-		};
-
-		FunctionRealRandomAccessible leftRightSource = new FunctionRealRandomAccessible(3,
-				leftRightIndicator,	UnsignedShortType::new);
-
-
-		final Source< UnsignedShortType > s = new RealRandomAccessibleIntervalSource<>( leftRightSource,
-				FinalInterval.createMinMax( 0, 0, 0, 1000, 1000, 0),
-				new UnsignedShortType(), new AffineTransform3D(), "Left_Right" );
+		// 11.4 mm / 2
+		final Source< UnsignedShortType > s = new AtlasLeftRightSource(5.7,
+				FinalInterval.createMinMax( 0, 0, 0, 1000, 1000, 0), "Left_Right" );
 
 		SourceAndConverter leftRight = SourceAndConverterHelper.createSourceAndConverter(s);
 
@@ -96,16 +81,8 @@ public class AllenMap implements AtlasMap {
 	}
 
 	SourceAndConverter<FloatType> getCoordinateSac(final int axis, String name) {
-		BiConsumer<RealLocalizable, FloatType > coordIndicator = (l, t ) -> {
-			t.set(l.getFloatPosition(axis));
-		};
-
-		FunctionRealRandomAccessible coordSource = new FunctionRealRandomAccessible(3,
-				coordIndicator,	FloatType::new);
-
-		final Source< UnsignedShortType > s = new RealRandomAccessibleIntervalSource<>( coordSource,
-				FinalInterval.createMinMax( 0, 0, 0, 1320, 800, 1140),
-				new FloatType(), new AffineTransform3D(), name );
+		final Source< FloatType > s = new AtlasCoordinateSource(axis,
+				FinalInterval.createMinMax( 0, 0, 0, 1320, 800, 1140), name );
 
 		return SourceAndConverterHelper.createSourceAndConverter(s);
 	}
@@ -1,20 +1,23 @@
 package ch.epfl.biop.atlas.allen;
 
 import java.awt.*;
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.List;
 import java.util.stream.Collectors;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import ij.Prefs;
 
 import ch.epfl.biop.atlas.AtlasOntology;
+import ch.epfl.biop.atlas.OntologyIndex;
 
 /**
  * What a terrible mess, but ConstructROIsFromImgLabel has to be fixed
@@ -43,7 +46,8 @@ public class AllenOntology implements AtlasOntology {
 
     @Override
     public Integer getOriginalId(int id) {
-        return ontologyIdToOriginalId.get(id);
+        int originalId = index.getOriginalId(id);
+        return originalId==OntologyIndex.NOT_FOUND ? null : originalId;
     }
 
     @Override
@@ -54,8 +58,8 @@ public class AllenOntology implements AtlasOntology {
 	@Override
 	public Map<String, String> getProperties(int id) {
 		HashMap<String,String> hm = new HashMap<>();
-		hm.put("name", this.ontologyIdToName.get(id));
-		hm.put("acronym", this.ontologyIdToAcronym.get(id));
+		hm.put("name", index.getName(id));
+		hm.put("acronym", index.getAcronym(id));
 		hm.put("id", Integer.toString(id));
 		return hm;
 	}
@@ -70,35 +74,223 @@ public class AllenOntology implements AtlasOntology {
 	    fetchOntologyJSON();
 	}
 
+    public static String keyPrefix = AllenOntology.class.getName()+".";
+
+    // Increment if the snapshot format changes : previous snapshots will be ignored
+    final static int SNAPSHOT_VERSION = 1;
+
+    // Modulo applied to the structure ids while loading, -1 for no modulo, see mutateToModulo
+    int keyModulo = -1;
+
+    /**
+     * Sets the modulo applied to the ids while the ontology is loaded : this avoids
+     * to copy all maps with {@link AllenOntology#mutateToModulo(int)} afterwards.
+     * Has to be called before {@link AllenOntology#initialize()}
+     * @param keyModulo modulo applied to the structure ids, -1 for no modulo
+     */
+    public void setKeyModulo(int keyModulo) {
+        this.keyModulo = keyModulo;
+    }
+
+    public static boolean isSnapshotEnabled() {
+        return Prefs.get(keyPrefix+"snapshot", true);
+    }
+
+    public static void setSnapshotEnabled(boolean enabled) {
+        Prefs.set(keyPrefix+"snapshot", enabled);
+    }
+
+    /**
+     * Loads the ontology from the data source. When the data source is a local file, a binary
+     * snapshot of the structures is stored next to it, and read instead of the json file as long as the
+     * json file is not modified
+     */
     public void fetchOntologyJSON() {
-        // Could be in resources
-       if (ontologyJSON==null) {
-           //System.out.print("Fetching ontology...");
-    	   
-           ontologyJSON = new JSONObject(jsonGetRequest(
-        		   //"http://api.brain-map.org/api/v2/structure_graph_download/1.json"
-        		   this.getDataSource().toString()
-        		   ));
-           //System.out.println("Tidy names, acronym, id, into hash map");
-           putOntologyIntoHashMaps();
-       }
+        if (ontologyIdToChildrenIds!=null) return; // Already loaded
+
+        File jsonFile = getLocalFile(getDataSource());
+        File snapshot = (jsonFile==null) ? null : new File(jsonFile.getParentFile(), jsonFile.getName()+".snapshot");
+
+        Structure root = null;
+        if ((snapshot!=null)&&(isSnapshotEnabled())) {
+            root = readSnapshot(snapshot, jsonFile);
+        }
+
+        if (root==null) {
+            try (InputStream inStream = openStream(getDataSource().toString())) {
+                root = parseOntology(inStream);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                return;
+            }
+            if ((snapshot!=null)&&(isSnapshotEnabled())) {
+                writeSnapshot(root, snapshot, jsonFile);
+            }
+        }
+
+        putOntologyIntoHashMaps(root);
     }
-    
+
+    static File getLocalFile(URL url) {
+        if ((url==null)||(!"file".equals(url.getProtocol()))) return null;
+        try {
+            File f = new File(url.toURI());
+            return f.exists() ? f : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    static InputStream openStream(String urlQueryString) throws IOException {
+        URL url = new URL(urlQueryString);
+
+        URLConnection connection = url.openConnection();
+        connection.setDoOutput(true);
+        if (connection instanceof HttpURLConnection) {
+            ((HttpURLConnection) connection).setInstanceFollowRedirects(false);
+            ((HttpURLConnection) connection).setRequestMethod("GET");
+        }
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setRequestProperty("charset", "utf-8");
+        connection.connect();
+        return connection.getInputStream();
+    }
+
+    /**
+     * Structure of the ontology, as read from the json file or from the snapshot, before
+     * being put into the maps. Ids are the original ids of the file
+     */
+    static class Structure {
+        int id;
+        String name;
+        String acronym;
+        String colorHex;
+        Integer parentId;
+        final List<Structure> children = new ArrayList<>();
+    }
+
+    /**
+     * Streaming parse of the ontology json file : only the fields used are kept,
+     * no intermediate json tree is built
+     * @param inStream json content, structure_graph_download format
+     * @return the root structure
+     * @throws IOException if the stream cannot be read or parsed
+     */
+    static Structure parseOntology(InputStream inStream) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(new BufferedInputStream(inStream), StandardCharsets.UTF_8));
+        Structure root = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("msg")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (root==null) {
+                        root = readStructure(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (root==null) throw new IOException("No structure found in ontology");
+        return root;
+    }
+
+    static Structure readStructure(JsonReader reader) throws IOException {
+        Structure structure = new Structure();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (reader.peek()==JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (field) {
+                case "id": structure.id = (int) reader.nextLong(); break; // Same truncation as the previous JSONObject.getInt
+                case "name": structure.name = reader.nextString(); break;
+                case "acronym": structure.acronym = reader.nextString(); break;
+                case "color_hex_triplet": structure.colorHex = reader.nextString(); break;
+                case "parent_structure_id": structure.parentId = (int) reader.nextLong(); break;
+                case "children":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        structure.children.add(readStructure(reader));
+                    }
+                    reader.endArray();
+                    break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return structure;
+    }
+
+    static Structure readSnapshot(File snapshot, File jsonFile) {
+        if (!snapshot.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)))) {
+            if (in.readInt()!=SNAPSHOT_VERSION) return null;
+            if (in.readLong()!=jsonFile.length()) return null;
+            if (in.readLong()!=jsonFile.lastModified()) return null;
+            return readStructure(in);
+        } catch (Exception e) {
+            System.err.println("Could not read ontology snapshot "+snapshot.getAbsolutePath()+" : "+e.getMessage());
+            return null;
+        }
+    }
+
+    static Structure readStructure(DataInputStream in) throws IOException {
+        Structure structure = new Structure();
+        structure.id = in.readInt();
+        structure.name = in.readBoolean() ? in.readUTF() : null;
+        structure.acronym = in.readBoolean() ? in.readUTF() : null;
+        structure.colorHex = in.readBoolean() ? in.readUTF() : null;
+        structure.parentId = in.readBoolean() ? in.readInt() : null;
+        int nChildren = in.readInt();
+        for (int i = 0; i<nChildren; i++) {
+            structure.children.add(readStructure(in));
+        }
+        return structure;
+    }
+
+    static void writeSnapshot(Structure root, File snapshot, File jsonFile) {
+        try {
+            File tmp = File.createTempFile(snapshot.getName(), ".tmp", snapshot.getParentFile());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeLong(jsonFile.length());
+                out.writeLong(jsonFile.lastModified());
+                writeStructure(root, out);
+            }
+            Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (Exception e) {
+            System.err.println("Could not write ontology snapshot "+snapshot.getAbsolutePath()+" : "+e.getMessage());
+        }
+    }
+
+    static void writeStructure(Structure structure, DataOutputStream out) throws IOException {
+        out.writeInt(structure.id);
+        out.writeBoolean(structure.name!=null);
+        if (structure.name!=null) out.writeUTF(structure.name);
+        out.writeBoolean(structure.acronym!=null);
+        if (structure.acronym!=null) out.writeUTF(structure.acronym);
+        out.writeBoolean(structure.colorHex!=null);
+        if (structure.colorHex!=null) out.writeUTF(structure.colorHex);
+        out.writeBoolean(structure.parentId!=null);
+        if (structure.parentId!=null) out.writeInt(structure.parentId);
+        out.writeInt(structure.children.size());
+        for (Structure child : structure.children) {
+            writeStructure(child, out);
+        }
+    }
+
     public static String jsonGetRequest(String urlQueryString) {
         String json = null;
         try {
-            URL url = new URL(urlQueryString);
-            
-            URLConnection connection = (URLConnection) url.openConnection();
-            connection.setDoOutput(true);
-            if (connection instanceof HttpURLConnection) {
-            	((HttpURLConnection) connection).setInstanceFollowRedirects(false);
-            	((HttpURLConnection) connection).setRequestMethod("GET");
-            }
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("charset", "utf-8");
-            connection.connect();
-            InputStream inStream = connection.getInputStream();
+            InputStream inStream = openStream(urlQueryString);
             json = streamToString(inStream); // input stream to string
         } catch (IOException ex) {
             ex.printStackTrace();
@@ -112,7 +304,6 @@ public class AllenOntology implements AtlasOntology {
         return text;
     }
 	
-	public JSONObject ontologyJSON;// = null; // Ontology JSON Object 1
     public Map<String, Integer> ontologyNameToId;
     public Map<String, Integer> ontologyAcronymToId;    
     public Map<String, Integer> ontologyIdentifierToStructureId; // Keys merged Name, acronym, structure Id
@@ -127,8 +318,16 @@ public class AllenOntology implements AtlasOntology {
     public static ArrayList<String> properties;// = {"name", "acronym"};
     public Map<Integer, Integer> ontologyIdToOriginalId; // Used to retrieve the original index if the command modulo has been used
 
+    // Array based index of the maps above, used for all queries. Rebuilt when the maps are changed
+    OntologyIndex index;
+
+    void buildIndex() {
+        index = new OntologyIndex(getRootIndex(), ontologyIdToChildrenIds, ontologyIdToParentId,
+                ontologyIdToOriginalId, ontologyIdToName, ontologyIdToAcronym, ontologyIdentifierToStructureId);
+    }
+
 
-    void putOntologyIntoHashMaps() {
+    void putOntologyIntoHashMaps(Structure root) {
         ontologyNameToId = new HashMap<>();
         ontologyAcronymToId = new HashMap<>();
         ontologyIdToName = new HashMap<>();
@@ -139,26 +338,43 @@ public class AllenOntology implements AtlasOntology {
         ontologyIdToOriginalId = new HashMap();
         ontologyIdToColor = new HashMap<>();
 
-        JSONObject root = (JSONObject) ontologyJSON.getJSONArray("msg").get(0);
+        // ------ fix root node : no color and no parent
+
+        registerStructure(root, true);
+
+        // ------ end fix root node
+
+        registerOntologyObject(root);
+
+        buildIndex();
+    }
 
-        // ------ fix root node
+    int applyModulo(int id) {
+        return keyModulo>0 ? id % keyModulo : id;
+    }
 
-        int id = root.getInt("id");
-        String name = root.getString("name");
-        String acronym = root.getString("acronym");
+    void registerStructure(Structure structure, boolean isRoot) {
+        int id = applyModulo(structure.id);
+        if (ontologyIdToOriginalId.containsKey(id)) {
+            System.err.println("Error: duplicate key k % "+keyModulo+" = "+id+" k= "+structure.id);
+            return;
+        }
+        String name = structure.name;
+        String acronym = structure.acronym;
         ontologyIdToAcronym.put(id, acronym);
-        ontologyIdToOriginalId.put(id,id);
+        ontologyIdToOriginalId.put(id, structure.id);
+        if ((!isRoot)&&(structure.colorHex!=null)) {
+            ontologyIdToColor.put(id, hex2Rgb(structure.colorHex));
+        }
         ontologyAcronymToId.put(acronym.trim().toUpperCase(), id);
         ontologyIdToName.put(id, name);
         ontologyIdentifierToStructureId.put(name.trim().toUpperCase(), id);
         ontologyIdentifierToStructureId.put(acronym.trim().toUpperCase(), id);
-        ontologyIdentifierToStructureId.put(Integer.toString(id), id);
+        ontologyIdentifierToStructureId.put(Integer.toString(structure.id), id);
         ontologyNameToId.put(name.trim().toUpperCase(), id);
-
-        // ------ end fix root node
-
-
-        registerOntologyObject(root, 997);
+        if ((!isRoot)&&(structure.parentId!=null)) {
+            ontologyIdToParentId.put(id, applyModulo(structure.parentId));
+        }
     }
 
     /**
@@ -175,6 +391,8 @@ public class AllenOntology implements AtlasOntology {
      */
     public void mutateToModulo(int keyModulo) {
 
+        if (keyModulo==this.keyModulo) return; // Already applied while loading
+
         ontologyIdToName = mutateMapKeysModulo(ontologyIdToName, keyModulo, new String());
         ontologyIdToAcronym = mutateMapKeysModulo(ontologyIdToAcronym, keyModulo, new String());
         ontologyIdToParentId = mutateMapKeysModulo(ontologyIdToParentId, keyModulo, new Integer(0));
@@ -200,6 +418,9 @@ public class AllenOntology implements AtlasOntology {
         });
         ontologyIdToChildrenIds = map_out;
 
+        this.keyModulo = keyModulo;
+
+        buildIndex();
     }
 
     HashSet<Float> occupiedIds = new HashSet<>();
@@ -242,102 +463,49 @@ public class AllenOntology implements AtlasOntology {
                 Integer.valueOf( colorStr.substring( 4, 6 ), 16 ) );
     }
 
-    void registerOntologyObject(JSONObject obj, int idOrigin) {
-        JSONArray structures = (JSONArray) obj.get("children");
+    void registerOntologyObject(Structure structure) {
         ArrayList<Integer> childrenIds = new ArrayList<>();
-        int id;
-        String name, acronym, colorhex;
-        for (int i=0;i<structures.length();i++) {
-            JSONObject jsonObject = (JSONObject) structures.get(i);
-            id = jsonObject.getInt("id");
-            childrenIds.add(id);
-            name = jsonObject.getString("name");
-            acronym = jsonObject.getString("acronym");
-            colorhex = jsonObject.getString("color_hex_triplet");
-            ontologyIdToAcronym.put(id, acronym);
-            ontologyIdToOriginalId.put(id,id);
-            ontologyIdToColor.put(id, hex2Rgb(colorhex));
-            ontologyAcronymToId.put(acronym.trim().toUpperCase(), id);
-            ontologyIdToName.put(id, name);
-            ontologyIdentifierToStructureId.put(name.trim().toUpperCase(), id);
-            ontologyIdentifierToStructureId.put(acronym.trim().toUpperCase(), id);
-            ontologyIdentifierToStructureId.put(Integer.toString(id), id);
-            ontologyNameToId.put(name.trim().toUpperCase(), id);
-            if (jsonObject.has("parent_structure_id")) {
-                ontologyIdToParentId.put(id, jsonObject.getInt("parent_structure_id"));
-            }
-            registerOntologyObject(jsonObject, id);
+        for (Structure child : structure.children) {
+            childrenIds.add(applyModulo(child.id));
+            registerStructure(child, false);
+            registerOntologyObject(child);
+        }
+        // Same duplicate check as registerStructure : only the structure registered first under this key
+        // gets its children. Children are put after their descendants, hence the check on the original id
+        int id = applyModulo(structure.id);
+        if ((Integer.valueOf(structure.id).equals(ontologyIdToOriginalId.get(id)))&&(!ontologyIdToChildrenIds.containsKey(id))) {
+            ontologyIdToChildrenIds.put(id, childrenIds);
+        } else {
+            System.err.println("Error: duplicate key k % "+keyModulo+" = "+id+" k= "+structure.id+", children ignored");
         }
-        ontologyIdToChildrenIds.put(idOrigin,childrenIds);
     }
 
     public ArrayList<Integer> getAllLeaves(int id) {
-        ArrayList<Integer> leavesId = new ArrayList<>();
-        addAllLeaves(leavesId,id);
-        return leavesId;
-    }
-
-    ArrayList<Integer> addAllLeaves(ArrayList<Integer> leavesId, int id) {
-        if (ontologyIdToChildrenIds.get(id).size()==0) {
-            leavesId.add(id);
-        } else {
-            ontologyIdToChildrenIds.get(id).forEach(idx -> addAllLeaves(leavesId,idx));
-        }
-        return leavesId;
+        return index.getAllLeaves(id);
     }
 
     public ArrayList<Integer> getAllChildren(int id) {
-        ArrayList<Integer> childsId = new ArrayList<>();
-        addAllChildren(childsId,id);
-        childsId.removeIf(index -> index==id); // removes the root id
-        return childsId;
+        return index.getAllChildren(id);
     }
 
-    ArrayList<Integer> addAllChildren(ArrayList<Integer> childsId, int id) {
-        childsId.add(id);
-        if (ontologyIdToChildrenIds.get(id).size()==0) {
-
-        } else {
-            ontologyIdToChildrenIds.get(id).forEach(idx -> {
-                    addAllChildren(childsId,idx);
-                }
-            );
-        }
-        return childsId;
-    }
-    
     public Integer getParent(int id) {
-    	return ontologyIdToParentId.get(id);
+        int parentId = index.getParent(id);
+        return parentId==OntologyIndex.NOT_FOUND ? null : parentId;
     }
 
     public ArrayList<Integer> getAllParents(int id) {
-        ArrayList<Integer> parentsId = new ArrayList<>();
-        addAllParents(parentsId,id);
-        parentsId.removeIf(index -> index==id); // removes the root id
-        return parentsId;
+        return index.getAllParents(id);
     }
 
-    ArrayList<Integer> addAllParents(ArrayList<Integer> parentsId, int id) {
-        parentsId.add(id);
-        if (ontologyIdToParentId.containsKey(id)) {
-            addAllParents(parentsId,ontologyIdToParentId.get(id));
-        }
-        return parentsId;
+    @Override
+    public boolean isAncestor(int ancestorId, int id) {
+        return index.isAncestor(ancestorId, id);
     }
 
 	@Override
 	public Integer getIdFromPooledProperties(String prop) {
-		int id = Integer.MIN_VALUE;
-		if (this.ontologyAcronymToId.containsKey(prop)) {
-			id = this.ontologyAcronymToId.get(prop);
-		}
-		if (this.ontologyNameToId.containsKey(prop)) {
-			id = this.ontologyNameToId.get(prop);
-		}
-		if (this.ontologyIdentifierToStructureId.containsKey(prop)) {
-			id = this.ontologyIdentifierToStructureId.get(prop);
-		}
-		return id;
+		// The pooled identifiers contain all names and acronyms, and take precedence
+		return index.getIdFromIdentifier(prop); // Integer.MIN_VALUE if not found
 	}
 
 	URL dataSource;
@@ -1,8 +1,8 @@
 package ch.epfl.biop.atlas.allen.adultmousebrain;
 
+import ch.epfl.biop.StartupProfiler;
 import ch.epfl.biop.atlas.BiopAtlas;
 import ch.epfl.biop.atlas.allen.AllenAtlas;
-import ch.epfl.biop.atlas.allen.AllenOntology;
 import ij.Prefs;
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
@@ -12,6 +12,7 @@ import org.scijava.plugin.Plugin;
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.concurrent.CompletableFuture;
 
 // Take ply files from : http://download.alleninstitute.org/informatics-archive/current-release/mouse_ccf/annotation/ccf_2017/structure_meshes/ply/
 
@@ -38,13 +39,25 @@ public class AllenBrainAdultMouseAtlasCCF2017 extends AllenAtlas implements Comm
 	@Parameter(type= ItemIO.OUTPUT)
 	BiopAtlas ba;
 
+	@Override
+	protected int getOntologyKeyModulo() {
+		return 65000; // Solves issue of very big indexes in allen brain ontology. The map has also been moduloed.
+	}
+
 	@Override
 	public void run() {
         try {
         	URL mapURL, ontologyURL;
         	if ((mapUrl == null)||(mapUrl.equals(""))||(ontologyUrl == null)||(ontologyUrl.equals(""))) {
+				long start = StartupProfiler.now();
+				if (!AllenBrainCCFv3Downloader.cachedSampleDir.exists()) {
+					AllenBrainCCFv3Downloader.cachedSampleDir.mkdir();
+				}
+				// Independent files : the ontology is checked (or downloaded) while the map is checked
+				CompletableFuture<URL> ontologyURLFuture = CompletableFuture.supplyAsync(AllenBrainCCFv3Downloader::getOntologyURL);
 				mapURL = AllenBrainCCFv3Downloader.getMapUrl();
-				ontologyURL = AllenBrainCCFv3Downloader.getOntologyURL();
+				ontologyURL = ontologyURLFuture.join();
+				StartupProfiler.record("Atlas files check", start);
 			} else {
 				mapURL = new URL(mapUrl);
 				ontologyURL = new URL(ontologyUrl);
@@ -52,8 +65,6 @@ public class AllenBrainAdultMouseAtlasCCF2017 extends AllenAtlas implements Comm
 
 			this.initialize(mapURL, ontologyURL);
 
-			((AllenOntology)this.ontology).mutateToModulo(65000); // Solves issue of very big indexes in allen brain ontology. The map has also been moduloed.
-
 	        Prefs.set(keyPrefix + "mapUrl", mapURL.toString());
 	        Prefs.set(keyPrefix + "ontologyUrl", ontologyURL.toString());
 
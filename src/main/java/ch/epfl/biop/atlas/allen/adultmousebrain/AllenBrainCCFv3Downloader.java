@@ -1,9 +1,41 @@
 package ch.epfl.biop.atlas.allen.adultmousebrain;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+
+/**
+ * Downloads the files of the Allen Brain CCFv3 atlas into {@link AllenBrainCCFv3Downloader#cachedSampleDir}.
+ *
+ * Each file is described by a {@link ManifestEntry} : url, expected size, and expected SHA-256 if known.
+ * When no SHA-256 is pinned, the file is checked against the MD5 published by Zenodo for the record
+ * ({@link AllenBrainCCFv3Downloader#zenodoRecordApi}). A file which cannot be checked is not downloaded.
+ * Downloads are done with a {@link ResumableDownloader} : an interrupted download is resumed at the next
+ * startup instead of being restarted, and the file only appears in the cache folder once complete and verified.
+ *
+ * The checksums of each verified file are stored, with its size and modification date, in a local manifest
+ * ('download-manifest.properties') in the cache folder. Cached files are thus checked once, and only
+ * hashed again if they are modified. A cached file which cannot be checked (no network) is used, but not
+ * recorded as verified.
+ */
 
 public class AllenBrainCCFv3Downloader {
 
@@ -11,38 +43,51 @@ public class AllenBrainCCFv3Downloader {
     final public static String allen_mouse_brain_CCFv3_xml_v1 = "https://zenodo.org/record/4486659/files/ccf2017-mod65000-border-centered-mm-bc.xml?download=1";
     final public static String allen_mouse_brain_CCFv3_ontology_v1 = "https://zenodo.org/record/4486659/files/1.json?download=1";
 
+    final public static String zenodoRecordApi = "https://zenodo.org/api/records/4486659";
+
     public static File cachedSampleDir = new File(System.getProperty("user.home"),"cached_atlas");
 
-    static public URL getMapUrl() {
-        if (!cachedSampleDir.exists()) {
-            cachedSampleDir.mkdir();
-        }
+    final static String LOCAL_MANIFEST = "download-manifest.properties";
 
-        File fileXml = new File(cachedSampleDir, "mouse_brain_ccfv3.xml");
-        File fileHdf5 = new File(cachedSampleDir, "ccf2017-mod65000-border-centered-mm-bc.h5");
+    // File name to MD5, as published by Zenodo - null until successfully fetched
+    static Map<String, String> publishedMd5s = null;
 
-        boolean dlH5 = true;
-        boolean dlXml = true;
+    public static class ManifestEntry {
 
-        if (fileHdf5.exists()) {
-            if (fileHdf5.length() != 3_089_344_351L) {
-                System.err.println("hdf5 file wrong size ... downloading again");
-            } else {
-                System.out.println("hdf5 file already downloaded - skipping");
-                dlH5 = false;
-            }
+        public final String fileName;
+
+        public final String url;
+
+        // -1 if unknown
+        public final long size;
+
+        // null if unknown
+        public final String sha256;
+
+        public ManifestEntry(String fileName, String url, long size, String sha256) {
+            this.fileName = fileName;
+            this.url = url;
+            this.size = size;
+            this.sha256 = sha256;
         }
+    }
+
+    final public static ManifestEntry xml_v1 = new ManifestEntry("mouse_brain_ccfv3.xml", allen_mouse_brain_CCFv3_xml_v1, -1, null);
+    final public static ManifestEntry hdf5_v1 = new ManifestEntry("ccf2017-mod65000-border-centered-mm-bc.h5", allen_mouse_brain_CCFv3_hdf5_v1, 3_089_344_351L, null);
+    final public static ManifestEntry ontology_v1 = new ManifestEntry("1.json", allen_mouse_brain_CCFv3_ontology_v1, -1, null);
 
-        if (fileXml.exists()) {
-            System.out.println("xml file already downloaded - skipping");
-            dlXml = false;
+    static public URL getMapUrl() {
+        if (!cachedSampleDir.exists()) {
+            cachedSampleDir.mkdir();
         }
 
+        File fileXml = new File(cachedSampleDir, xml_v1.fileName);
+
         URL returned = null;
 
         try {
-            if (dlXml) DownloadProgressBar.urlToFile(new URL(allen_mouse_brain_CCFv3_xml_v1), new File(cachedSampleDir, "mouse_brain_ccfv3.xml"), "Downloading mouse_brain_ccfv3.xml", -1);
-            if (dlH5) DownloadProgressBar.urlToFile(new URL(allen_mouse_brain_CCFv3_hdf5_v1), new File(cachedSampleDir, "ccf2017-mod65000-border-centered-mm-bc.h5"), "Downloading mouse_brain_ccfv3.h5", 3_089_344_351L);
+            fetch(xml_v1, "Downloading mouse_brain_ccfv3.xml");
+            fetch(hdf5_v1, "Downloading mouse_brain_ccfv3.h5");
 
             returned = fileXml.toURI().toURL();
         } catch (Exception e) {
@@ -53,16 +98,11 @@ public class AllenBrainCCFv3Downloader {
     }
 
     public static URL getOntologyURL() {
-        File ontologyFile = new File(cachedSampleDir, "1.json");
-        boolean dlOntology = true;
-        if (ontologyFile.exists()) {
-            dlOntology = false;
-            System.out.println("ontology file already downloaded - skipping");
-        }
+        File ontologyFile = new File(cachedSampleDir, ontology_v1.fileName);
         URL returned = null;
 
         try {
-            if (dlOntology) DownloadProgressBar.urlToFile(new URL(allen_mouse_brain_CCFv3_ontology_v1), new File(cachedSampleDir, "1.json"), "Downloading ontology", -1);
+            fetch(ontology_v1, "Downloading ontology");
 
             returned = ontologyFile.toURI().toURL();
         } catch (Exception e) {
@@ -73,4 +113,152 @@ public class AllenBrainCCFv3Downloader {
 
     }
 
+    /**
+     * Downloads the file of the manifest entry into the cache folder, unless a valid copy is already present
+     * @param entry file to download
+     * @param frameTitle title of the download progress window
+     * @throws Exception if the download failed, or if the downloaded file cannot be verified
+     */
+    public static void fetch(ManifestEntry entry, String frameTitle) throws Exception {
+        File file = new File(cachedSampleDir, entry.fileName);
+        if (isCached(entry)) {
+            System.out.println(entry.fileName+" already downloaded - skipping");
+            return;
+        }
+        String md5 = null;
+        if (entry.sha256==null) {
+            md5 = getPublishedMd5(entry);
+            if (md5==null) {
+                throw new IOException("No checksum available for "+entry.fileName+" : the download cannot be verified");
+            }
+        }
+        ResumableDownloader downloader = new ResumableDownloader(new URL(entry.url), file, entry.size, entry.sha256)
+                .setExpectedMd5(md5);
+        if (downloader.getPartialFile().exists()) {
+            System.out.println("Resuming download of "+entry.fileName);
+        }
+        String sha256 = DownloadProgressBar.resumableUrlToFile(downloader, frameTitle, entry.size);
+        if (md5==null) md5 = ResumableDownloader.hash(file, "MD5")[0];
+        record(entry, file, sha256, md5);
+    }
+
+    /**
+     * @param entry file to check
+     * @return true if the file is in the cache folder, with the correct size and checksum
+     * @throws IOException if the file or the local manifest cannot be read
+     */
+    public static boolean isCached(ManifestEntry entry) throws IOException {
+        File file = new File(cachedSampleDir, entry.fileName);
+        if (!file.exists()) return false;
+        if ((entry.size>0)&&(file.length()!=entry.size)) {
+            System.err.println(entry.fileName+" has a wrong size ... downloading again");
+            return false;
+        }
+
+        synchronized (AllenBrainCCFv3Downloader.class) {
+            Properties manifest = readLocalManifest();
+            if ((Long.toString(file.length()).equals(manifest.getProperty(entry.fileName+".size")))
+                    &&(Long.toString(file.lastModified()).equals(manifest.getProperty(entry.fileName+".lastModified")))
+                    &&("true".equals(manifest.getProperty(entry.fileName+".verified")))
+                    &&((entry.sha256==null)||(entry.sha256.equalsIgnoreCase(manifest.getProperty(entry.fileName+".sha256"))))) {
+                return true;
+            }
+        }
+
+        // Unknown, unverified or modified file, for instance downloaded by a previous version
+        String md5 = entry.sha256==null ? getPublishedMd5(entry) : null;
+        if ((entry.sha256==null)&&(md5==null)) {
+            System.err.println("Warning : "+entry.fileName+" cannot be verified, using the cached file as is");
+            return true;
+        }
+
+        System.out.println("Verifying "+entry.fileName+"...");
+        String[] hashes = ResumableDownloader.hash(file, "SHA-256", "MD5");
+        if (((entry.sha256!=null)&&(!entry.sha256.equalsIgnoreCase(hashes[0])))
+                ||((md5!=null)&&(!md5.equalsIgnoreCase(hashes[1])))) {
+            System.err.println(entry.fileName+" has a wrong checksum ... downloading again");
+            return false;
+        }
+        record(entry, file, hashes[0], hashes[1]);
+        return true;
+    }
+
+    /**
+     * @param entry file published in the Zenodo record
+     * @return the MD5 published by Zenodo for this file, or null if it cannot be fetched
+     */
+    static synchronized String getPublishedMd5(ManifestEntry entry) {
+        if (publishedMd5s==null) {
+            try {
+                publishedMd5s = fetchPublishedMd5s();
+            } catch (Exception e) {
+                System.err.println("Could not fetch the checksums published on "+zenodoRecordApi+" : "+e.getMessage());
+                return null;
+            }
+        }
+        String path = entry.url.split("\\?")[0];
+        return publishedMd5s.get(path.substring(path.lastIndexOf('/')+1));
+    }
+
+    static Map<String, String> fetchPublishedMd5s() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(zenodoRecordApi).openConnection();
+        connection.setRequestProperty("Accept", "application/json");
+        connection.setConnectTimeout(10000);
+        connection.setReadTimeout(10000);
+        Map<String, String> md5s = new HashMap<>();
+        try (Reader reader = new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+            JsonElement files = new JsonParser().parse(reader).getAsJsonObject().get("files");
+            if (files==null) throw new IOException("No files listed in the Zenodo record");
+            if (files.isJsonArray()) {
+                for (JsonElement file : files.getAsJsonArray()) {
+                    putMd5(md5s, file.getAsJsonObject());
+                }
+            } else if (files.getAsJsonObject().has("entries")) {
+                for (Entry<String, JsonElement> file : files.getAsJsonObject().getAsJsonObject("entries").entrySet()) {
+                    putMd5(md5s, file.getValue().getAsJsonObject());
+                }
+            }
+        } finally {
+            connection.disconnect();
+        }
+        return md5s;
+    }
+
+    static void putMd5(Map<String, String> md5s, JsonObject file) {
+        // Zenodo checksums are formatted as 'md5:<hex>'
+        if ((!file.has("key"))||(!file.has("checksum"))) return;
+        String checksum = file.get("checksum").getAsString();
+        if (checksum.startsWith("md5:")) {
+            md5s.put(file.get("key").getAsString(), checksum.substring(4));
+        }
+    }
+
+    static synchronized void record(ManifestEntry entry, File file, String sha256, String md5) throws IOException {
+        Properties manifest = readLocalManifest();
+        manifest.setProperty(entry.fileName+".url", entry.url);
+        manifest.setProperty(entry.fileName+".size", Long.toString(file.length()));
+        manifest.setProperty(entry.fileName+".lastModified", Long.toString(file.lastModified()));
+        manifest.setProperty(entry.fileName+".sha256", sha256);
+        manifest.setProperty(entry.fileName+".md5", md5);
+        manifest.setProperty(entry.fileName+".verified", "true");
+
+        File manifestFile = new File(cachedSampleDir, LOCAL_MANIFEST);
+        File tmp = File.createTempFile(LOCAL_MANIFEST, ".tmp", cachedSampleDir);
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            manifest.store(out, "Verified files of the cached atlases");
+        }
+        Files.move(tmp.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static Properties readLocalManifest() throws IOException {
+        Properties manifest = new Properties();
+        File manifestFile = new File(cachedSampleDir, LOCAL_MANIFEST);
+        if (manifestFile.exists()) {
+            try (InputStream in = new FileInputStream(manifestFile)) {
+                manifest.load(in);
+            }
+        }
+        return manifest;
+    }
+
 }
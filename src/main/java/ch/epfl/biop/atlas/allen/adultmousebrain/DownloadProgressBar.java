@@ -71,6 +71,41 @@ public class DownloadProgressBar {
         frame.dispose();
     }
 
+    /**
+     * Downloads a file with a {@link ResumableDownloader}, while showing its progress
+     * @param downloader downloader of the file
+     * @param frameTitle title of the progress window
+     * @param fileSize size of the file, used to display the progress
+     * @return the SHA-256 of the downloaded file
+     * @throws Exception if the download failed, it can be resumed with a new downloader
+     */
+    public static String resumableUrlToFile(ResumableDownloader downloader, String frameTitle, long fileSize) throws Exception {
+
+        final JProgressBar jProgressBar = new JProgressBar();
+        jProgressBar.setMaximum(10000);
+        JFrame frame = new JFrame(frameTitle);
+        frame.setContentPane(jProgressBar);
+        frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+        frame.setSize(600, 250);
+        frame.setVisible(true);
+
+        if (fileSize>0) {
+            downloader.setProgressListener(downloadedFileSize -> {
+                final int currentProgress = (int) ((((double) downloadedFileSize) / ((double) fileSize)) * 10000);
+                SwingUtilities.invokeLater(() -> jProgressBar.setValue(currentProgress));
+            });
+        } else {
+            jProgressBar.setIndeterminate(true);
+        }
+
+        try {
+            return downloader.download();
+        } finally {
+            frame.setVisible(false);
+            frame.dispose();
+        }
+    }
+
     public interface RunnableWithException {
         void run() throws Exception;
     }
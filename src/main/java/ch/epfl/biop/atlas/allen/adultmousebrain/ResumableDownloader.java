@@ -0,0 +1,380 @@
+package ch.epfl.biop.atlas.allen.adultmousebrain;
+
+import ij.Prefs;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongConsumer;
+
+/**
+ * Downloads a file with parallel HTTP range requests, and can resume an interrupted download.
+ *
+ * The file is split into chunks, downloaded concurrently into a partial file ('name.part') next to
+ * the target file. The number of bytes received for each chunk is regularly saved into a state file
+ * ('name.part.state'), so that a new download of the same url continues where the previous one stopped.
+ * Once all chunks are received, the SHA-256 of the file is computed and checked against the expected
+ * one (if any), as well as its MD5 (if an expected one is given), then the partial file is renamed into the target file.
+ *
+ * If the server does not accept range requests or does not give the file size, the file is downloaded
+ * with a single request, and cannot be resumed.
+ *
+ * The number of parallel requests and the chunk size are stored in the IJ preferences.
+ */
+
+public class ResumableDownloader {
+
+    public static String keyPrefix = ResumableDownloader.class.getName()+".";
+
+    // Increment if the state file format changes : previous partial downloads will be restarted
+    final static int STATE_VERSION = 1;
+
+    final static int MAX_ATTEMPTS_PER_CHUNK = 3;
+
+    // The state is saved after this number of bytes is received
+    final static long SAVE_STATE_EVERY_BYTES = 16*1024*1024;
+
+    final URL url;
+
+    final File target;
+
+    final long expectedSize;
+
+    final String expectedSha256;
+
+    String expectedMd5 = null;
+
+    int nParallelRequests = getDefaultParallelRequests();
+
+    long chunkSize = getDefaultChunkSize();
+
+    LongConsumer progress = bytes -> {};
+
+    /**
+     * @param url url of the file
+     * @param target downloaded file
+     * @param expectedSize size of the file, used if the server does not give it, -1 if unknown
+     * @param expectedSha256 expected SHA-256 of the file, as an hex string, or null if unknown
+     */
+    public ResumableDownloader(URL url, File target, long expectedSize, String expectedSha256) {
+        this.url = url;
+        this.target = target;
+        this.expectedSize = expectedSize;
+        this.expectedSha256 = expectedSha256;
+    }
+
+    /**
+     * @param expectedMd5 expected MD5 of the file, as an hex string, or null if unknown
+     * @return this downloader
+     */
+    public ResumableDownloader setExpectedMd5(String expectedMd5) {
+        this.expectedMd5 = expectedMd5;
+        return this;
+    }
+
+    public ResumableDownloader setParallelRequests(int nParallelRequests) {
+        this.nParallelRequests = Math.max(1, nParallelRequests);
+        return this;
+    }
+
+    public ResumableDownloader setChunkSize(long chunkSize) {
+        this.chunkSize = Math.max(1, chunkSize);
+        return this;
+    }
+
+    /**
+     * @param progress called with the number of bytes received so far, from the download threads
+     * @return this downloader
+     */
+    public ResumableDownloader setProgressListener(LongConsumer progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    public File getPartialFile() {
+        return new File(target.getParentFile(), target.getName()+".part");
+    }
+
+    public File getStateFile() {
+        return new File(target.getParentFile(), target.getName()+".part.state");
+    }
+
+    /**
+     * Blocking : downloads the file, resuming a previous partial download if possible
+     * @return the SHA-256 of the downloaded file, as an hex string
+     * @throws IOException if the download failed (it can then be resumed) or if the checksum does not match
+     */
+    public String download() throws IOException {
+        long size = expectedSize;
+        boolean acceptRanges = false;
+        try {
+            HttpURLConnection head = (HttpURLConnection) url.openConnection();
+            head.setRequestMethod("HEAD");
+            if (head.getResponseCode()/100==2) {
+                if (head.getContentLengthLong()>0) size = head.getContentLengthLong();
+                acceptRanges = "bytes".equalsIgnoreCase(head.getHeaderField("Accept-Ranges"));
+            }
+            head.disconnect();
+        } catch (IOException e) {
+            System.err.println("Could not get download information from "+url+" : "+e.getMessage());
+        }
+
+        File partial = getPartialFile();
+        if ((size>0)&&(acceptRanges)) {
+            downloadRanges(partial, size);
+        } else {
+            downloadSingleRequest(partial);
+        }
+
+        String[] hashes = hash(partial, "SHA-256", "MD5");
+        String sha256 = hashes[0];
+        String md5 = hashes[1];
+        if ((expectedSha256!=null)&&(!expectedSha256.equalsIgnoreCase(sha256))) {
+            partial.delete();
+            getStateFile().delete();
+            throw new IOException("Checksum mismatch for "+url+" : expected "+expectedSha256+", got "+sha256);
+        }
+        if ((expectedMd5!=null)&&(!expectedMd5.equalsIgnoreCase(md5))) {
+            partial.delete();
+            getStateFile().delete();
+            throw new IOException("Checksum mismatch for "+url+" : expected md5 "+expectedMd5+", got "+md5);
+        }
+
+        try {
+            Files.move(partial.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        getStateFile().delete();
+        return sha256;
+    }
+
+    private void downloadSingleRequest(File partial) throws IOException {
+        getStateFile().delete();
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try (InputStream in = new BufferedInputStream(connection.getInputStream());
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(partial), 1024*1024)) {
+            byte[] data = new byte[1024*1024];
+            long received = 0;
+            int n;
+            while ((n = in.read(data))>=0) {
+                out.write(data, 0, n);
+                received += n;
+                progress.accept(received);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void downloadRanges(File partial, long size) throws IOException {
+        int nChunks = (int) ((size+chunkSize-1)/chunkSize);
+
+        long[] previouslyReceived = null;
+        if (partial.exists()&&(partial.length()==size)) {
+            previouslyReceived = readState(size, nChunks);
+        }
+        if (previouslyReceived==null) {
+            previouslyReceived = new long[nChunks];
+            try (RandomAccessFile raf = new RandomAccessFile(partial, "rw")) {
+                raf.setLength(size);
+            }
+        }
+
+        AtomicLongArray received = new AtomicLongArray(previouslyReceived);
+        AtomicLong totalReceived = new AtomicLong();
+        for (long r : previouslyReceived) totalReceived.addAndGet(r);
+        progress.accept(totalReceived.get());
+
+        ExecutorService executor = Executors.newFixedThreadPool(nParallelRequests, r -> {
+            Thread thread = new Thread(r, "ABBA-download");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try (FileChannel channel = FileChannel.open(partial.toPath(), StandardOpenOption.WRITE)) {
+            AtomicLong receivedSinceSave = new AtomicLong();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int chunk = 0; chunk<nChunks; chunk++) {
+                final int iChunk = chunk;
+                final long chunkStart = chunk*chunkSize;
+                final long chunkLength = Math.min(chunkSize, size-chunkStart);
+                if (received.get(chunk)>=chunkLength) continue;
+                futures.add(executor.submit(() -> {
+                    IOException lastError = null;
+                    for (int attempt = 0; attempt<MAX_ATTEMPTS_PER_CHUNK; attempt++) {
+                        try {
+                            downloadChunk(channel, iChunk, chunkStart, chunkLength, received, totalReceived, receivedSinceSave, size, nChunks);
+                            return null;
+                        } catch (IOException e) {
+                            lastError = e;
+                        }
+                    }
+                    throw lastError;
+                }));
+            }
+
+            IOException error = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    error = (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    error = new InterruptedIOException("Download interrupted");
+                }
+            }
+            if (error!=null) {
+                // Keeps what has been received for the next attempt
+                channel.force(false);
+                writeState(size, nChunks, received);
+                throw error;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void downloadChunk(FileChannel channel, int chunk, long chunkStart, long chunkLength,
+                               AtomicLongArray received, AtomicLong totalReceived, AtomicLong receivedSinceSave,
+                               long size, int nChunks) throws IOException {
+        long from = chunkStart+received.get(chunk);
+        long to = chunkStart+chunkLength-1;
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestProperty("Range", "bytes="+from+"-"+to);
+        try {
+            if (connection.getResponseCode()!=HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("Range request not honored by "+url+" (response "+connection.getResponseCode()+")");
+            }
+            try (InputStream in = connection.getInputStream()) {
+                byte[] data = new byte[256*1024];
+                long position = from;
+                int n;
+                while ((position<=to)&&((n = in.read(data, 0, (int) Math.min(data.length, to-position+1)))>=0)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(data, 0, n);
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    received.addAndGet(chunk, n);
+                    progress.accept(totalReceived.addAndGet(n));
+                    if (receivedSinceSave.addAndGet(n)>=SAVE_STATE_EVERY_BYTES) {
+                        receivedSinceSave.set(0);
+                        channel.force(false);
+                        writeState(size, nChunks, received);
+                    }
+                }
+                if (position<=to) throw new EOFException("Connection closed before the end of the range "+from+"-"+to);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private long[] readState(long size, int nChunks) {
+        File stateFile = getStateFile();
+        if (!stateFile.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+            if (in.readInt()!=STATE_VERSION) return null;
+            if (!in.readUTF().equals(url.toString())) return null;
+            if (in.readLong()!=size) return null;
+            if (in.readLong()!=chunkSize) return null;
+            if (in.readInt()!=nChunks) return null;
+            long[] received = new long[nChunks];
+            for (int i = 0; i<nChunks; i++) received[i] = in.readLong();
+            return received;
+        } catch (IOException e) {
+            System.err.println("Could not read download state "+stateFile.getAbsolutePath()+" : "+e.getMessage());
+            return null;
+        }
+    }
+
+    private synchronized void writeState(long size, int nChunks, AtomicLongArray received) {
+        File stateFile = getStateFile();
+        try {
+            File tmp = File.createTempFile(stateFile.getName(), ".tmp", stateFile.getParentFile());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(STATE_VERSION);
+                out.writeUTF(url.toString());
+                out.writeLong(size);
+                out.writeLong(chunkSize);
+                out.writeInt(nChunks);
+                for (int i = 0; i<nChunks; i++) out.writeLong(received.get(i));
+            }
+            Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Could not write download state "+stateFile.getAbsolutePath()+" : "+e.getMessage());
+        }
+    }
+
+    /**
+     * @param file file to hash
+     * @return the SHA-256 of the file, as an hex string
+     * @throws IOException if the file cannot be read
+     */
+    public static String sha256(File file) throws IOException {
+        return hash(file, "SHA-256")[0];
+    }
+
+    /**
+     * Reads the file once, whatever the number of algorithms
+     * @param file file to hash
+     * @param algorithms digest algorithms, see {@link MessageDigest#getInstance(String)}
+     * @return the hash of the file for each algorithm, as hex strings
+     * @throws IOException if the file cannot be read
+     */
+    public static String[] hash(File file, String... algorithms) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1024*1024)) {
+            MessageDigest[] digests = new MessageDigest[algorithms.length];
+            for (int i = 0; i<algorithms.length; i++) {
+                digests[i] = MessageDigest.getInstance(algorithms[i]);
+            }
+            byte[] data = new byte[1024*1024];
+            int n;
+            while ((n = in.read(data))>=0) {
+                for (MessageDigest digest : digests) {
+                    digest.update(data, 0, n);
+                }
+            }
+            String[] hashes = new String[algorithms.length];
+            for (int i = 0; i<algorithms.length; i++) {
+                StringBuilder sb = new StringBuilder();
+                for (byte b : digests[i].digest()) {
+                    sb.append(String.format("%02x", b));
+                }
+                hashes[i] = sb.toString();
+            }
+            return hashes;
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public static int getDefaultParallelRequests() {
+        return (int) Prefs.get(keyPrefix+"parallelRequests", 4);
+    }
+
+    public static void setDefaultParallelRequests(int nParallelRequests) {
+        Prefs.set(keyPrefix+"parallelRequests", nParallelRequests);
+    }
+
+    public static long getDefaultChunkSize() {
+        return (long) Prefs.get(keyPrefix+"chunkSizeInMB", 64)*1024*1024;
+    }
+
+    public static void setDefaultChunkSize(long chunkSizeInMB) {
+        Prefs.set(keyPrefix+"chunkSizeInMB", chunkSizeInMB);
+    }
+}
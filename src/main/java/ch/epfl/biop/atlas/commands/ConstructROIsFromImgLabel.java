@@ -1,6 +1,9 @@
 package ch.epfl.biop.atlas.commands;
 
+import java.awt.Rectangle;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -44,19 +47,27 @@ public class ConstructROIsFromImgLabel implements Command {
 
 	@Override
 	public void run() {
-		// Gets pixel array and convert them to Float -> no loss of precision for int 16 or
+		// Gets pixels in a single int buffer -> no loss of precision for int 16 or
 		// even RGB 24
 		ArrayList<Roi> roiArray = new ArrayList<>();
 		ImageProcessor ip = labelImg.getProcessor();
-		float[][] pixels = ip.getFloatArray();
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		int[] labels = new int[width*height];
+		for (int i=0;i<labels.length;i++) {
+			labels[i] = (int) ip.getf(i);
+		}
+
+		// Gets all existing values in the image, with their bounding box, in a single pass
+		Map<Integer, LabelBounds> labelsBounds = getLabelsBounds(labels, width, height);
 
-		// Gets all existing values in the image
+		// Values inserted in the order in which they are first met column by column, like the
+		// previous pixel by pixel scan. The iteration order of a HashSet depends on the hash buckets
+		// and, within a bucket, on the insertion order : it is thus unchanged, and so is the order of the regions
 		HashSet<Float> existingPixelValues = new HashSet<>();
-		for (int x=0;x<ip.getWidth();x++) {
-			for (int y=0;y<ip.getHeight();y++) {
-				existingPixelValues.add((pixels[x][y]));
-			}
-		}
+		labelsBounds.values().stream()
+				.sorted(Comparator.comparingLong(bounds -> bounds.firstIndexColumnMajor))
+				.forEach(bounds -> existingPixelValues.add((float) bounds.label));
 
 		// All the parents of the existing label will be met at some point
 		// keep a list of possible values encountered in the tree
@@ -83,53 +94,9 @@ public class ConstructROIsFromImgLabel implements Command {
 			}
 		});
 
-		FloatProcessor fp = new FloatProcessor(ip.getWidth(), ip.getHeight());	
-		fp.setFloatArray(pixels);
-		ImagePlus imgFloatCopy = new ImagePlus("FloatLabel",fp);
+		boolean[][] movablePx = getMovablePixels(labels, width, height);
 
-		boolean[][] movablePx = new boolean[ip.getWidth()+1][ip.getHeight()+1];
-		for (int x=1;x<ip.getWidth();x++) {
-			for (int y=1;y<ip.getHeight();y++) {
-				boolean is3Colored = false;
-				boolean isCrossed = false;
-				float p1p1 = pixels[x][y];
-				float p1m1 = pixels[x][y-1];
-				float m1p1 = pixels[x-1][y];
-				float m1m1 = pixels[x-1][y-1];
-				float min = p1p1;
-				if (p1m1<min) min = p1m1;
-				if (m1p1<min) min = m1p1;
-				if (m1m1<min) min = m1m1;
-				float max = p1p1;
-				if (p1m1>max) max = p1m1;
-				if (m1p1>max) max = m1p1;
-				if (m1m1>max) max = m1m1;
-				if (min!=max) {
-					if ((p1p1!=min)&&(p1p1!=max)) is3Colored=true; 
-					if ((m1p1!=min)&&(m1p1!=max)) is3Colored=true; 
-					if ((p1m1!=min)&&(p1m1!=max)) is3Colored=true; 
-					if ((m1m1!=min)&&(m1m1!=max)) is3Colored=true;
-					
-					if (!is3Colored) {
-						if ((p1p1==m1m1)&&(p1m1==m1p1)) {
-							isCrossed=true;
-						}
-					}
-				} // if not it's monocolored
-				movablePx[x][y]=(!is3Colored)&&(!isCrossed);
-			}
-		}
 		boolean containsLeaf=true;
-		HashSet<Float> monitored = new HashSet<>();
-		/*monitored.add(945f);
-		monitored.add(369f);
-		monitored.add(322f);*/
-
-		/*roiManager = RoiManager.getRoiManager();
-		if (roiManager==null) {
-			roiManager = new RoiManager();
-		}
-		roiManager.reset();*/
 
 		while (containsLeaf) {
 			List<Float> leavesValues = existingPixelValues
@@ -137,42 +104,31 @@ public class ConstructROIsFromImgLabel implements Command {
 				.filter(v -> isLeaf.contains((int) (float) v))
 				.collect(Collectors.toList());
 			leavesValues.forEach(v -> {
-					fp.setThreshold( v,v,ImageProcessor.NO_LUT_UPDATE);
-					Roi roi = SelectToROIKeepLines.run(imgFloatCopy, movablePx, true);//ThresholdToSelection.run(imgFloatCopy);
+					int label = (int) (float) v;
+					LabelBounds bounds = labelsBounds.get(label);
+
+					// Thresholds only the region containing the label, not the whole image
+					Roi roi = labelToRoi(labels, width, height, label, bounds, movablePx);
 
 					roi.setName(Integer.toString((int) (double) v));
 					roiArray.add(roi);
 
-					//roiManager.addRoi(roi);
-
-					/*if (monitored.contains(v)) {
-						System.out.println("id="+v+" step 0");
-						roiManager.addRoi(roi);
-					}*/
-
-					if (atlas.ontology.getParentToParentMap().containsKey((int) (double)v)) {
-
-						int parentId = atlas.ontology.getParentToParentMap().get((int) (double)v);
-						if (monitored.contains(v)) {
-							System.out.println("id="+v+" has a parent : "+parentId);
-						}
-						fp.setColor(parentId);
-						fp.fill(roi);
+					if (atlas.ontology.getParentToParentMap().containsKey(label)) {
+						int parentId = atlas.ontology.getParentToParentMap().get(label);
+						// The region of the child becomes part of its parent
+						fill(labels, width, height, roi, parentId);
+						labelsBounds.computeIfAbsent(parentId, LabelBounds::new).add(bounds);
 						if (childrenContained.get(parentId)!=null) {
-							if (childrenContained.get(new Integer((int) (float)v)).size()==0) {
-								childrenContained.get(parentId).remove(new Integer((int) (float) v));
+							if (childrenContained.get(label).size()==0) {
+								childrenContained.get(parentId).remove(Integer.valueOf(label));
 							}
 							existingPixelValues.add((float)parentId);
 						}
-					} else {
-						if (monitored.contains(v)) {
-							System.out.println("id="+v+" has no parent!");
-						}
 					}
 				}
 			);
 			existingPixelValues.removeAll(leavesValues);
-			leavesValues.stream().map(v -> new Integer((int)(float)v)).forEach(e -> childrenContained.remove(e));
+			leavesValues.stream().map(v -> Integer.valueOf((int)(float)v)).forEach(e -> childrenContained.remove(e));
 			isLeaf.clear();
 			childrenContained.forEach((k,v) -> {
 					if (v.size()==0) {
@@ -200,6 +156,140 @@ public class ConstructROIsFromImgLabel implements Command {
 		}
 	}
 
+	/**
+	 * Single pass over the label buffer, row by row
+	 * @return for each label present in the image, its bounding box
+	 */
+	static Map<Integer, LabelBounds> getLabelsBounds(int[] labels, int width, int height) {
+		Map<Integer, LabelBounds> labelsBounds = new HashMap<>();
+		for (int y=0;y<height;y++) {
+			int offset = y*width;
+			int x = 0;
+			while (x<width) {
+				// Processes runs of identical values at once
+				int label = labels[offset+x];
+				int xStart = x;
+				while ((x<width)&&(labels[offset+x]==label)) x++;
+				LabelBounds bounds = labelsBounds.get(label);
+				if (bounds == null) {
+					bounds = new LabelBounds(label);
+					labelsBounds.put(label, bounds);
+				}
+				bounds.add(xStart, y, x-1, y, (long) xStart*height+y);
+			}
+		}
+		return labelsBounds;
+	}
+
+	/**
+	 * A vertex (pixel corner) can be moved during smoothing only if it's
+	 * not a junction between 3 regions or more, and not at a crossing
+	 */
+	static boolean[][] getMovablePixels(int[] labels, int width, int height) {
+		boolean[][] movablePx = new boolean[width+1][height+1];
+		for (int y=1;y<height;y++) {
+			int offset = y*width;
+			for (int x=1;x<width;x++) {
+				boolean is3Colored = false;
+				boolean isCrossed = false;
+				int p1p1 = labels[offset+x];
+				int p1m1 = labels[offset-width+x];
+				int m1p1 = labels[offset+x-1];
+				int m1m1 = labels[offset-width+x-1];
+				int min = Math.min(Math.min(p1p1, p1m1), Math.min(m1p1, m1m1));
+				int max = Math.max(Math.max(p1p1, p1m1), Math.max(m1p1, m1m1));
+				if (min!=max) {
+					if ((p1p1!=min)&&(p1p1!=max)) is3Colored=true;
+					if ((m1p1!=min)&&(m1p1!=max)) is3Colored=true;
+					if ((p1m1!=min)&&(p1m1!=max)) is3Colored=true;
+					if ((m1m1!=min)&&(m1m1!=max)) is3Colored=true;
+
+					if (!is3Colored) {
+						if ((p1p1==m1m1)&&(p1m1==m1p1)) {
+							isCrossed=true;
+						}
+					}
+				} // if not it's monocolored
+				movablePx[x][y]=(!is3Colored)&&(!isCrossed);
+			}
+		}
+		return movablePx;
+	}
+
+	/**
+	 * Traces the outline of a label, within its bounding box enlarged by one pixel
+	 * @return the roi of the label, in image coordinates
+	 */
+	static Roi labelToRoi(int[] labels, int width, int height, int label, LabelBounds bounds, boolean[][] movablePx) {
+		int x0 = Math.max(0, bounds.xMin-1);
+		int y0 = Math.max(0, bounds.yMin-1);
+		int x1 = Math.min(width-1, bounds.xMax+1);
+		int y1 = Math.min(height-1, bounds.yMax+1);
+		int w = x1-x0+1;
+		int h = y1-y0+1;
+
+		float[] cropPixels = new float[w*h];
+		for (int y=0;y<h;y++) {
+			int offsetIn = (y+y0)*width+x0;
+			int offsetOut = y*w;
+			for (int x=0;x<w;x++) {
+				cropPixels[offsetOut+x] = labels[offsetIn+x];
+			}
+		}
+		FloatProcessor fp = new FloatProcessor(w, h, cropPixels);
+		fp.setThreshold(label, label, ImageProcessor.NO_LUT_UPDATE);
+
+		boolean[][] cropMovablePx = new boolean[w+1][];
+		for (int x=0;x<=w;x++) {
+			cropMovablePx[x] = Arrays.copyOfRange(movablePx[x+x0], y0, y0+h+1);
+		}
+
+		Roi roi = SelectToROIKeepLines.run(new ImagePlus("FloatLabel", fp), cropMovablePx, true);
+		roi.setLocation(roi.getXBase()+x0, roi.getYBase()+y0);
+		return roi;
+	}
+
+	/**
+	 * Same as {@link ImageProcessor#fill(Roi)}, on the label buffer
+	 */
+	static void fill(int[] labels, int width, int height, Roi roi, int value) {
+		Rectangle r = roi.getBounds();
+		ImageProcessor mask = roi.getMask();
+		for (int y=Math.max(0, r.y);y<Math.min(height, r.y+r.height);y++) {
+			for (int x=Math.max(0, r.x);x<Math.min(width, r.x+r.width);x++) {
+				if ((mask==null)||(mask.get(x-r.x, y-r.y)!=0)) {
+					labels[y*width+x] = value;
+				}
+			}
+		}
+	}
+
+	static class LabelBounds {
+
+		final int label;
+
+		int xMin = Integer.MAX_VALUE, yMin = Integer.MAX_VALUE, xMax = -1, yMax = -1;
+
+		// Position of the first pixel met when the image is read column by column
+		long firstIndexColumnMajor = Long.MAX_VALUE;
+
+		LabelBounds(int label) {
+			this.label = label;
+		}
+
+		void add(int xMin, int yMin, int xMax, int yMax, long firstIndexColumnMajor) {
+			if (xMin<this.xMin) this.xMin = xMin;
+			if (yMin<this.yMin) this.yMin = yMin;
+			if (xMax>this.xMax) this.xMax = xMax;
+			if (yMax>this.yMax) this.yMax = yMax;
+			if (firstIndexColumnMajor<this.firstIndexColumnMajor) this.firstIndexColumnMajor = firstIndexColumnMajor;
+		}
+
+		void add(LabelBounds bounds) {
+			add(bounds.xMin, bounds.yMin, bounds.xMax, bounds.yMax, bounds.firstIndexColumnMajor);
+		}
+	}
+
 	private void putOriginalId(Roi roi, String name) {
 		int idRoi = Integer.valueOf(name);
 		roi.setName(Integer.toString(atlas.ontology.getOriginalId(idRoi)));
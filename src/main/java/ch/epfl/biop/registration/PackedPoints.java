@@ -0,0 +1,156 @@
+package ch.epfl.biop.registration;
+
+import bdv.viewer.Source;
+import ch.epfl.biop.java.utilities.roi.types.RealPointList;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helper functions for 2D points packed in a single double array : x0, y0, x1, y1, ...
+ *
+ * Used to transform the many vertices of the atlas regions without allocating
+ * objects for each point, see {@link Registration#transformPtsFixedToMoving(double[])}
+ */
+
+public class PackedPoints {
+
+    /**
+     * @param pts list of 2D points
+     * @return packed coordinates of the points
+     */
+    public static double[] pack(RealPointList pts) {
+        List<RealPoint> ptList = pts.ptList;
+        double[] xy = new double[2*ptList.size()];
+        int i = 0;
+        for (RealPoint p : ptList) {
+            xy[i++] = p.getDoublePosition(0);
+            xy[i++] = p.getDoublePosition(1);
+        }
+        return xy;
+    }
+
+    /**
+     * @param xy packed coordinates
+     * @return a new list of 2D points
+     */
+    public static RealPointList unpack(double[] xy) {
+        ArrayList<RealPoint> ptList = new ArrayList<>(xy.length/2);
+        for (int i = 0; i<xy.length; i+=2) {
+            ptList.add(new RealPoint(xy[i], xy[i+1]));
+        }
+        return new RealPointList(ptList);
+    }
+
+    /**
+     * Applies an affine transform, in place, to 2D points located at z = 0.
+     * Only the xy part of the transform is used since the z coordinate of the
+     * transformed points is dropped
+     * @param xy packed coordinates, modified
+     * @param at3d transform to apply
+     */
+    public static void apply(double[] xy, AffineTransform3D at3d) {
+        final double m00 = at3d.get(0,0), m01 = at3d.get(0,1), m03 = at3d.get(0,3);
+        final double m10 = at3d.get(1,0), m11 = at3d.get(1,1), m13 = at3d.get(1,3);
+        for (int i = 0; i<xy.length; i+=2) {
+            final double x = xy[i];
+            final double y = xy[i+1];
+            xy[i] = m00*x + m01*y + m03;
+            xy[i+1] = m10*x + m11*y + m13;
+        }
+    }
+
+    /**
+     * Applies a 3D transform, in place, to 2D points located at z = 0.
+     * The same buffers are used for all points
+     * @param xy packed coordinates, modified
+     * @param rt transform to apply, should accept 3D points
+     */
+    public static void apply(double[] xy, RealTransform rt) {
+        final double[] source = new double[3];
+        final double[] target = new double[3];
+        for (int i = 0; i<xy.length; i+=2) {
+            source[0] = xy[i];
+            source[1] = xy[i+1];
+            source[2] = 0;
+            rt.apply(source, target);
+            xy[i] = target[0];
+            xy[i+1] = target[1];
+        }
+    }
+
+    /**
+     * Samples a mask, nearest neighbor, at 2D points located at z = 0.
+     * All points are converted to voxel coordinates with the same inverse transform, then read from
+     * the highest resolution level of the mask with a single random access : nothing is allocated per point.
+     * Any pixel type is accepted : a voxel is inside the mask if it is not zero.
+     * @param xy packed coordinates, in physical units
+     * @param mask mask source
+     * @param timePoint timepoint of the mask
+     * @return for each point, true if the mask is not zero at its location. Points outside of the mask
+     * source are outside.
+     */
+    public static boolean[] insideMask(double[] xy, Source<?> mask, int timePoint) {
+        AffineTransform3D sourceTransform = new AffineTransform3D();
+        mask.getSourceTransform(timePoint, 0, sourceTransform);
+        AffineTransform3D toVoxel = sourceTransform.inverse();
+        final double m00 = toVoxel.get(0,0), m01 = toVoxel.get(0,1), m03 = toVoxel.get(0,3);
+        final double m10 = toVoxel.get(1,0), m11 = toVoxel.get(1,1), m13 = toVoxel.get(1,3);
+        final double m20 = toVoxel.get(2,0), m21 = toVoxel.get(2,1), m23 = toVoxel.get(2,3);
+
+        RandomAccessibleInterval<?> voxels = mask.getSource(timePoint, 0);
+        int nDimensions = Math.min(3, voxels.numDimensions());
+        long[] min = new long[nDimensions];
+        long[] max = new long[nDimensions];
+        voxels.min(min);
+        voxels.max(max);
+        RandomAccess<?> access = voxels.randomAccess();
+        long[] position = new long[voxels.numDimensions()];
+
+        boolean[] inside = new boolean[xy.length/2];
+        Object zero = null;
+        for (int i = 0; i<xy.length; i+=2) {
+            final double x = xy[i];
+            final double y = xy[i+1];
+            // Nearest voxel
+            position[0] = (long) Math.floor(m00*x + m01*y + m03 + 0.5);
+            if (nDimensions>1) position[1] = (long) Math.floor(m10*x + m11*y + m13 + 0.5);
+            if (nDimensions>2) position[2] = (long) Math.floor(m20*x + m21*y + m23 + 0.5);
+            boolean inBounds = true;
+            for (int d = 0; d<nDimensions; d++) {
+                if ((position[d]<min[d])||(position[d]>max[d])) {
+                    inBounds = false;
+                    break;
+                }
+            }
+            if (!inBounds) continue;
+            access.setPosition(position);
+            Object value = access.get();
+            if (value instanceof RealType) {
+                inside[i/2] = ((RealType<?>) value).getRealDouble()!=0;
+            } else {
+                if (zero == null) zero = getZero(value);
+                inside[i/2] = !value.equals(zero);
+            }
+        }
+        return inside;
+    }
+
+    private static Object getZero(Object value) {
+        if (value instanceof NumericType) {
+            NumericType<?> zero = ((NumericType<?>) value).createVariable();
+            zero.setZero();
+            return zero;
+        }
+        // Unknown type : a voxel is inside if it has a value
+        return new Object();
+    }
+
+}
@@ -0,0 +1,26 @@
+package ch.epfl.biop.registration;
+
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Optional interface for registrations which can publish an intermediate result
+ * (for instance from a coarse resolution) before the end of the registration.
+ *
+ * The intermediate result is only meant to be displayed : the user can judge a bad
+ * registration early and cancel it. It is replaced by the final result once
+ * {@link Registration#register()} returns.
+ *
+ * @param <T> Type of the image to register
+ */
+
+public interface ProgressiveRegistration<T> {
+
+    /**
+     * @param listener called from the registration thread, with a function which transforms
+     *                 a moving image according to an intermediate result. Can be called
+     *                 several times, with more and more accurate results. Null to remove the listener.
+     */
+    void setPreviewListener(Consumer<UnaryOperator<T>> listener);
+
+}
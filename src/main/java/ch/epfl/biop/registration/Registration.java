@@ -120,6 +120,23 @@ public interface Registration<T> {
      */
     RealPointList getTransformedPtsFixedToMoving(RealPointList pts);
 
+    /**
+     * Reverse transforms 2D points packed in a single array (x0, y0, x1, y1, ...),
+     * in place. Same as {@link Registration#getTransformedPtsFixedToMoving(RealPointList)},
+     * but without creating objects for each point.
+     *
+     * Registrations should override this function if they can : the default implementation
+     * goes through {@link Registration#getTransformedPtsFixedToMoving(RealPointList)}
+     * @param xy coordinates of the points to transform from fixed to moving system coordinates,
+     *           modified by this function
+     */
+    default void transformPtsFixedToMoving(double[] xy) {
+        RealPointList transformed = getTransformedPtsFixedToMoving(PackedPoints.unpack(xy));
+        if (transformed == null) return; // Not supported by this registration : points are left unchanged
+        double[] xyTransformed = PackedPoints.pack(transformed);
+        System.arraycopy(xyTransformed, 0, xy, 0, xy.length);
+    }
+
     /**
      * Function called when a registration is cancelled while being processed
      */
@@ -1,6 +1,7 @@
 package ch.epfl.biop.registration.sourceandconverter;
 
 import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.atlas.aligner.AtlasPlaneCache;
 import ch.epfl.biop.atlas.aligner.MultiSlicePositioner;
 import ch.epfl.biop.atlas.plugin.IABBARegistrationPlugin;
 import org.scijava.Context;
@@ -10,6 +11,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
@@ -106,6 +108,80 @@ abstract public class SourceAndConverterRegistration implements IABBARegistratio
         this.sliceInfo = sliceInfo;
     };
 
+    protected AtlasPlaneCache.PlaneLocation fixedPlaneLocation;
+
+    /**
+     * Tells where the fixed image is located in the atlas. If set, the fixed image
+     * can be rasterized once and shared through {@link MultiSlicePositioner#atlasPlaneCache}
+     * @param location location of the fixed image in the atlas
+     */
+    public void setFixedPlaneLocation(AtlasPlaneCache.PlaneLocation location) {
+        this.fixedPlaneLocation = location;
+    }
+
+    protected Object movingPlaneLocation;
+
+    /**
+     * Tells where the moving image comes from (slice, previous registrations and processing).
+     * If set, the moving image can be rasterized once and shared through {@link MultiSlicePositioner#atlasPlaneCache}
+     * @param location location of the moving image, should implement equals and hashCode
+     */
+    public void setMovingPlaneLocation(Object location) {
+        this.movingPlaneLocation = location;
+    }
+
+    /**
+     * Gets the fixed image rasterized within the user region of interest (parameters px, py, sx, sy)
+     * A one pixel margin is added around the region of interest.
+     * @param pixelSize pixel size of the raster
+     * @param interpolate linear interpolation if true, nearest neighbor otherwise
+     * @return the cached fixed image, or null if it can't be cached
+     */
+    protected SourceAndConverter getCachedFixedPlane(double pixelSize, boolean interpolate) {
+        return getCachedPlane(fixedPlaneLocation, fimg, pixelSize, interpolate);
+    }
+
+    /**
+     * Gets the moving image rasterized within the user region of interest (parameters px, py, sx, sy)
+     * A one pixel margin is added around the region of interest.
+     * @param pixelSize pixel size of the raster
+     * @param interpolate linear interpolation if true, nearest neighbor otherwise
+     * @return the cached moving image, or null if it can't be cached
+     */
+    protected SourceAndConverter getCachedMovingPlane(double pixelSize, boolean interpolate) {
+        return getCachedPlane(movingPlaneLocation, mimg, pixelSize, interpolate);
+    }
+
+    private SourceAndConverter getCachedPlane(Object location, SourceAndConverter[] sacs, double pixelSize, boolean interpolate) {
+        if ((location==null)||(sacs==null)||(sacs.length!=1)) return null;
+        if (!(parameters.containsKey("px")&&parameters.containsKey("py")&&parameters.containsKey("sx")&&parameters.containsKey("sy"))) return null;
+        try {
+            double px = Double.parseDouble(parameters.get("px"));
+            double py = Double.parseDouble(parameters.get("py"));
+            double sx = Double.parseDouble(parameters.get("sx"));
+            double sy = Double.parseDouble(parameters.get("sy"));
+            return MultiSlicePositioner.atlasPlaneCache.getPlane(location, sacs[0], pixelSize, interpolate,
+                    px-pixelSize, py-pixelSize, sx+2*pixelSize, sy+2*pixelSize);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Identifies the result of a remote registration, see {@link ch.epfl.biop.atlas.aligner.RegistrationWorkerPool}
+     * : same command, same parameters, same fixed and moving images give the same result.
+     * The server and the task information sent to the server are not part of the key.
+     * @param commandClass registration command
+     * @return the key of the result, or null if the fixed or moving image location is unknown
+     */
+    protected Object getResultKey(Class<?> commandClass) {
+        if ((fixedPlaneLocation==null)||(movingPlaneLocation==null)) return null;
+        Map<String, String> keyParameters = new TreeMap<>(parameters);
+        keyParameters.remove("serverURL");
+        keyParameters.remove("taskInfo");
+        return Arrays.asList(commandClass.getName(), keyParameters, fixedPlaneLocation, movingPlaneLocation, timePoint);
+    }
+
     protected static void addToFlatParameters(List<Object> flatParameters, Object... args) {
         flatParameters.addAll(Arrays.asList(args));
     }
@@ -3,15 +3,13 @@ package ch.epfl.biop.registration.sourceandconverter.affine;
 import bdv.util.RealTransformHelper;
 import bdv.viewer.SourceAndConverter;
 import ch.epfl.biop.java.utilities.roi.types.RealPointList;
+import ch.epfl.biop.registration.PackedPoints;
 import ch.epfl.biop.registration.sourceandconverter.SourceAndConverterRegistration;
-import net.imglib2.RealPoint;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealTransform;
 import sc.fiji.bdvpg.sourceandconverter.SourceAndConverterAndTimeRange;
 import sc.fiji.bdvpg.sourceandconverter.transform.SourceTransformHelper;
 
-import java.util.ArrayList;
-
 abstract public class AffineTransformSourceAndConverterRegistration extends SourceAndConverterRegistration {
 
     protected AffineTransform3D at3d = new AffineTransform3D();
@@ -29,15 +27,14 @@ abstract public class AffineTransformSourceAndConverterRegistration extends Sour
 
     @Override
     public RealPointList getTransformedPtsFixedToMoving(RealPointList pts) {
-        ArrayList<RealPoint> cvtList = new ArrayList<>();
-        for (RealPoint p : pts.ptList) {
-            RealPoint pt3d = new RealPoint(3);
-            pt3d.setPosition(new double[]{p.getDoublePosition(0), p.getDoublePosition(1),0});
-            at3d.inverse().apply(pt3d, pt3d);
-            RealPoint cpt = new RealPoint(pt3d.getDoublePosition(0), pt3d.getDoublePosition(1));
-            cvtList.add(cpt);
-        }
-        return new RealPointList(cvtList);
+        double[] xy = PackedPoints.pack(pts);
+        transformPtsFixedToMoving(xy);
+        return PackedPoints.unpack(xy);
+    }
+
+    @Override
+    public void transformPtsFixedToMoving(double[] xy) {
+        PackedPoints.apply(xy, at3d.inverse());
     }
 
     @Override
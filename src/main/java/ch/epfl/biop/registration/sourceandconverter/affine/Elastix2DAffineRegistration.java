@@ -3,6 +3,7 @@ package ch.epfl.biop.registration.sourceandconverter.affine;
 import bdv.viewer.SourceAndConverter;
 import ch.epfl.biop.atlas.aligner.commands.RegistrationElastixAffineCommand;
 import ch.epfl.biop.atlas.aligner.commands.RegistrationElastixAffineRemoteCommand;
+import ch.epfl.biop.atlas.aligner.RegistrationWorkerPool;
 import ch.epfl.biop.atlas.plugin.IABBARegistrationPlugin;
 import ch.epfl.biop.atlas.plugin.RegistrationTypeProperties;
 import ch.epfl.biop.bdv.command.register.Elastix2DAffineRegisterCommand;
@@ -32,7 +33,7 @@ import java.util.concurrent.Future;
                 RegistrationElastixAffineRemoteCommand.class
         })
 
-public class Elastix2DAffineRegistration extends AffineTransformSourceAndConverterRegistration{
+public class Elastix2DAffineRegistration extends AffineTransformSourceAndConverterRegistration {
 
     @Override
     public void setFixedImage(SourceAndConverter[] fimg) {
@@ -60,6 +61,14 @@ public class Elastix2DAffineRegistration extends AffineTransformSourceAndConvert
 
     @Override
     public boolean register() {
+        return startRegistration() && endRegistration();
+    }
+
+    /**
+     * Non blocking : sends the registration command
+     * @return true if the registration command could be started
+     */
+    protected boolean startRegistration() {
         try {
             Class<? extends Command> registrationCommandClass;
             // Is it supposed to be done on a server ?
@@ -75,9 +84,6 @@ public class Elastix2DAffineRegistration extends AffineTransformSourceAndConvert
                 registrationCommandClass = Elastix2DAffineRegisterCommand.class;
             }
 
-            // Registration success flag
-            boolean success = true;
-
             // Transforms map into flat String : key1, value1, key2, value2, etc.
             // Necessary for CommandService
             List<Object> flatParameters = new ArrayList<>(parameters.size()*2+4);
@@ -87,11 +93,15 @@ public class Elastix2DAffineRegistration extends AffineTransformSourceAndConvert
                 flatParameters.add(parameters.get(k));
             });
 
+            // Atlas plane and slice rasterized once and kept in cache, if possible
+            SourceAndConverter fixedPlane = getCachedFixedPlane(0.04, false);
+            SourceAndConverter movingPlane = getCachedMovingPlane(0.04, false);
+
             addToFlatParameters(flatParameters,
                 // Fixed image
-          "sac_fixed",fimg[0],
+          "sac_fixed", (fixedPlane!=null)?fixedPlane:fimg[0],
                 // Moving image
-                "sac_moving", mimg[0],
+                "sac_moving", (movingPlane!=null)?movingPlane:mimg[0],
                 // No interpolation in resampling
                 "interpolate", false,
                 // Start registration with a 4x4 pixel image
@@ -104,21 +114,41 @@ public class Elastix2DAffineRegistration extends AffineTransformSourceAndConvert
                  "automaticTransformInitialization", true,
                  // Atlas image : a single timepoint
                  "tpFixed", 0,
-                 // Level 2 for the atlas
-                 "levelFixedSource", 2,
+                 // Level 2 for the atlas, single level if the plane is cached
+                 "levelFixedSource", (fixedPlane!=null)?0:2,
                  // Timepoint moving source (normally 0)
                  "tpMoving", timePoint,
                  // Tries to be clever for the moving source sampling
-                 "levelMovingSource", SourceAndConverterHelper.bestLevel(fimg[0], timePoint, 0.04),
+                 "levelMovingSource", (movingPlane!=null)?0:SourceAndConverterHelper.bestLevel(fimg[0], timePoint, 0.04),
                  // 40 microns per pixel for the initial registration
                  "pxSizeInCurrentUnit", "0.04"
             );
 
-            task = context
-                    .getService(CommandService.class)
-                    .run(registrationCommandClass, false,
-                            flatParameters.toArray(new Object[0])
-                    );
+            if (parameters.containsKey("serverURL")) {
+                // Spread over the registration servers, result kept for identical registrations
+                task = RegistrationWorkerPool.runOnServers(context, registrationCommandClass, flatParameters,
+                        getResultKey(registrationCommandClass));
+            } else {
+                task = context
+                        .getService(CommandService.class)
+                        .run(registrationCommandClass, false,
+                                flatParameters.toArray(new Object[0]));
+            }
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Blocking : waits for the result of the registration command
+     * @return true if the registration was run successfully
+     */
+    protected boolean endRegistration() {
+        try {
+             // Registration success flag
+             boolean success = true;
 
              CommandModule module = task.get();
 
@@ -126,7 +156,8 @@ public class Elastix2DAffineRegistration extends AffineTransformSourceAndConvert
                  success = (boolean) module.getOutput("success");
              }
              if (success) {
-                at3d = (AffineTransform3D) module.getOutput("at3D");
+                // Copied : the module may be shared by identical remote registrations
+                at3d = ((AffineTransform3D) module.getOutput("at3D")).copy();
              }
 
              isDone = true;
@@ -3,22 +3,23 @@ package ch.epfl.biop.registration.sourceandconverter.spline;
 import bdv.tools.brightness.ConverterSetup;
 import bdv.util.BdvHandle;
 import bdv.viewer.DisplayMode;
-import bdv.viewer.Interpolation;
 import bdv.viewer.SourceAndConverter;
 import ch.epfl.biop.atlas.aligner.commands.RegistrationElastixSplineCommand;
 import ch.epfl.biop.atlas.aligner.commands.RegistrationElastixSplineRemoteCommand;
+import ch.epfl.biop.atlas.aligner.MultiSlicePositioner;
+import ch.epfl.biop.atlas.aligner.RegistrationWorkerPool;
 import ch.epfl.biop.atlas.plugin.IABBARegistrationPlugin;
 import ch.epfl.biop.atlas.plugin.RegistrationTypeProperties;
 import ch.epfl.biop.bdv.command.register.Elastix2DSplineRegisterCommand;
 import ch.epfl.biop.bdv.command.register.Elastix2DSplineRegisterServerCommand;
+import ch.epfl.biop.registration.PackedPoints;
+import ch.epfl.biop.registration.ProgressiveRegistration;
 import com.google.gson.Gson;
+import ij.Prefs;
 import ij.gui.WaitForUserDialog;
 import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
-import net.imglib2.RealPoint;
-import net.imglib2.RealRandomAccessible;
 import net.imglib2.realtransform.*;
 import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
-import net.imglib2.type.numeric.integer.UnsignedShortType;
 import org.scijava.command.Command;
 import org.scijava.command.CommandModule;
 import org.scijava.command.CommandService;
@@ -28,9 +29,12 @@ import sc.fiji.bdvpg.services.SourceAndConverterServices;
 import sc.fiji.bdvpg.services.serializers.plugins.ThinPlateSplineTransformAdapter;
 import sc.fiji.bdvpg.sourceandconverter.SourceAndConverterHelper;
 import sc.fiji.bdvpg.sourceandconverter.register.BigWarpLauncher;
+import sc.fiji.bdvpg.sourceandconverter.transform.SourceRealTransformer;
 
 import java.util.*;
 import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
 import static bdv.util.RealTransformHelper.BigWarpFileFromRealTransform;
@@ -45,10 +49,45 @@ import static bdv.util.RealTransformHelper.BigWarpFileFromRealTransform;
         }
 )
 
-public class Elastix2DSplineRegistration extends RealTransformSourceAndConverterRegistration {
+public class Elastix2DSplineRegistration extends RealTransformSourceAndConverterRegistration implements ProgressiveRegistration<SourceAndConverter<?>[]> {
+
+    public static String keyPrefix = Elastix2DSplineRegistration.class.getName()+".";
 
     Future<CommandModule> task;
 
+    // Coarse registration run together with the full one, see ProgressiveRegistration.
+    // Holds an extra permit of the registration scheduler while not null
+    volatile Future<CommandModule> previewTask;
+
+    Consumer<UnaryOperator<SourceAndConverter<?>[]>> previewListener;
+
+    /**
+     * @return true if a coarse registration is run and displayed before the end of the full registration
+     */
+    public static boolean isProgressive() {
+        return Prefs.get(keyPrefix+"progressive", true);
+    }
+
+    public static void setProgressive(boolean progressive) {
+        Prefs.set(keyPrefix+"progressive", progressive);
+    }
+
+    /**
+     * @return pixel size, in mm, of the coarse registration displayed before the end of the full registration
+     */
+    public static double getPreviewPixelSize() {
+        return Prefs.get(keyPrefix+"previewPixelSize", 0.08);
+    }
+
+    public static void setPreviewPixelSize(double pixelSize) {
+        Prefs.set(keyPrefix+"previewPixelSize", pixelSize);
+    }
+
+    @Override
+    public void setPreviewListener(Consumer<UnaryOperator<SourceAndConverter<?>[]>> listener) {
+        this.previewListener = listener;
+    }
+
     @Override
     public void setFixedImage(SourceAndConverter[] fimg) {
         if (fimg.length==0) {
@@ -73,8 +112,15 @@ public class Elastix2DSplineRegistration extends RealTransformSourceAndConverter
 
     @Override
     public boolean register() {
+        return startRegistration() && endRegistration();
+    }
+
+    /**
+     * Non blocking : sends the registration command
+     * @return true if the registration command could be started
+     */
+    protected boolean startRegistration() {
         try {
-            boolean success = true;
             Class<? extends Command> registrationCommandClass;
             // Is it supposed to be done on a server ?
             if (parameters.containsKey("serverURL")) {
@@ -98,11 +144,15 @@ public class Elastix2DSplineRegistration extends RealTransformSourceAndConverter
                 flatParameters.add(parameters.get(k));
             });
 
+            // Atlas plane and slice rasterized once and kept in cache, if possible
+            SourceAndConverter fixedPlane = getCachedFixedPlane(0.02, true);
+            SourceAndConverter movingPlane = getCachedMovingPlane(0.02, true);
+
             addToFlatParameters(flatParameters,
                     // Fixed image
-                    "sac_fixed",fimg[0],
+                    "sac_fixed", (fixedPlane!=null)?fixedPlane:fimg[0],
                     // Moving image
-                    "sac_moving", mimg[0],
+                    "sac_moving", (movingPlane!=null)?movingPlane:mimg[0],
                     // Interpolation in resampling
                     "interpolate", true,
                     // Start registration with a 32x32 pixel image
@@ -115,20 +165,61 @@ public class Elastix2DSplineRegistration extends RealTransformSourceAndConverter
                     "automaticTransformInitialization", false,
                     // Atlas image : a single timepoint
                     "tpFixed", 0,
-                    // Level 2 for the atlas
-                    "levelFixedSource", 1,
+                    // Level 1 for the atlas, single level if the plane is cached
+                    "levelFixedSource", (fixedPlane!=null)?0:1,
                     // Timepoint moving source (normally 0)
                     "tpMoving", timePoint,
                     // Tries to be clever for the moving source sampling
-                    "levelMovingSource", SourceAndConverterHelper.bestLevel(fimg[0], timePoint, 0.02),
+                    "levelMovingSource", (movingPlane!=null)?0:SourceAndConverterHelper.bestLevel(fimg[0], timePoint, 0.02),
                     // 40 microns per pixel for the initial registration
                     "pxSizeInCurrentUnit", 0.02
                     );
 
-             task = context
-                   .getService(CommandService.class)
-                   .run(registrationCommandClass, false,
-                           flatParameters.toArray(new Object[0]));
+            if (parameters.containsKey("serverURL")) {
+                // Spread over the registration servers, result kept for identical registrations
+                task = RegistrationWorkerPool.runOnServers(context, registrationCommandClass, flatParameters,
+                        getResultKey(registrationCommandClass));
+            } else {
+                task = context
+                        .getService(CommandService.class)
+                        .run(registrationCommandClass, false,
+                                flatParameters.toArray(new Object[0]));
+                // Only if a registration permit is free : a preview should not delay other registrations
+                if ((previewListener!=null)&&(isProgressive())
+                        &&(MultiSlicePositioner.registrationScheduler.tryAcquireExtraPermit(this))) {
+                    try {
+                        // Coarse pixel size, fewer iterations : a result long before the full registration
+                        Map<String, Object> previewParameters = new LinkedHashMap<>();
+                        for (int i = 0; i<flatParameters.size(); i += 2) {
+                            previewParameters.put((String) flatParameters.get(i), flatParameters.get(i+1));
+                        }
+                        previewParameters.put("pxSizeInCurrentUnit", getPreviewPixelSize());
+                        previewParameters.put("maxIterationNumberPerScale", 50);
+                        previewTask = context
+                                .getService(CommandService.class)
+                                .run(registrationCommandClass, false, previewParameters);
+                    } catch (Exception e) {
+                        MultiSlicePositioner.registrationScheduler.releaseExtraPermit(this);
+                        log.accept("Registration preview failed : "+e.getMessage());
+                    }
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Blocking : waits for the result of the registration command
+     * @return true if the registration was run successfully
+     */
+    protected boolean endRegistration() {
+        try {
+            boolean success = true;
+
+            publishPreview();
 
             CommandModule module = task.get();
 
@@ -194,45 +285,23 @@ public class Elastix2DSplineRegistration extends RealTransformSourceAndConverter
                 int nbLandmarks = kernel.getNumLandmarks();
                 int nbDimensions = kernel.getNumDims();
 
-                List<RealPoint> ptsSource = new ArrayList<>();
-                List<RealPoint> ptsTarget = new ArrayList<>();
-
+                // Landmarks packed as 2D points at z = 0
+                double[] srcXY = new double[2*nbLandmarks];
+                double[] tgtXY = new double[2*nbLandmarks];
                 for (int i = 0; i < nbLandmarks; ++i) {
-                    RealPoint ptSource = new RealPoint(3);
-                    RealPoint ptTarget = new RealPoint(3);
-                    int d;
-                    for (d = 0; d < nbDimensions; ++d) {
-                        ptTarget.setPosition(tgtPts[d][i], d);
+                    for (int d = 0; d < Math.min(2, nbDimensions); ++d) {
+                        srcXY[2*i+d] = srcPts[d][i];
+                        tgtXY[2*i+d] = tgtPts[d][i];
                     }
-                    ptTarget.setPosition(0,2); // 0 position in z
-
-                    for (d = 0; d < nbDimensions; ++d) {
-                        ptSource.setPosition(srcPts[d][i], d);
-                    }
-                    ptSource.setPosition(0,2); // 0 position in z
-
-                    ptsSource.add(ptSource);
-                    ptsTarget.add(ptTarget);
                 }
 
-                // Beurk - Unsigned short type : TODO removes this type specificity
-                RealRandomAccessible<UnsignedShortType> mask = fimg_mask[0].getSpimSource().getInterpolatedSource(timePoint,0, Interpolation.NEARESTNEIGHBOR);
-
-                AffineTransform3D at3D = new AffineTransform3D();
-                fimg_mask[0].getSpimSource().getSourceTransform(timePoint,0,at3D);
+                // All landmarks sampled at once, with any mask pixel type
+                boolean[] srcInside = PackedPoints.insideMask(srcXY, fimg_mask[0].getSpimSource(), timePoint);
+                boolean[] tgtInside = PackedPoints.insideMask(tgtXY, fimg_mask[0].getSpimSource(), timePoint);
 
                 List<Integer> landMarksToKeep = new ArrayList<>();
                 for (int i = 0; i < nbLandmarks; ++i) {
-                    at3D.inverse().apply(ptsTarget.get(i), ptsTarget.get(i));
-                    at3D.inverse().apply(ptsSource.get(i), ptsSource.get(i));
-
-                    //System.out.println("Landmark "+i+" ["+mask.getAt(ptsSource.get(i)).get()+", "+mask.getAt(ptsTarget.get(i)).get()+"]");
-                    //System.out.println("Source:"+ptsSource.get(i));
-                    //System.out.println("Target:"+ptsTarget.get(i));
-
-                    if ((mask.getAt(ptsSource.get(i)).get() == 0) && (mask.getAt(ptsTarget.get(i)).get() == 0)) {
-
-                    } else {
+                    if (srcInside[i] || tgtInside[i]) {
                         landMarksToKeep.add(i);
                     }
                 }
@@ -329,9 +398,43 @@ public class Elastix2DSplineRegistration extends RealTransformSourceAndConverter
 
     @Override
     public void abort() {
+        Future<CommandModule> preview = previewTask;
+        if (preview!=null) {
+            preview.cancel(true);
+        }
         if (task!=null) {
            task.cancel(true);
         }
     }
 
+    /**
+     * Blocking : waits for the coarse registration, if any, and sends its result to the
+     * preview listener, unless the full registration is already done
+     */
+    private void publishPreview() {
+        Future<CommandModule> preview = previewTask;
+        if (preview==null) return;
+        try {
+            CommandModule module = preview.get();
+            boolean success = (!module.getOutputs().containsKey("success"))||((boolean) module.getOutput("success"));
+            Consumer<UnaryOperator<SourceAndConverter<?>[]>> listener = previewListener;
+            if (success && (listener!=null) && (!task.isDone())) {
+                SourceRealTransformer srt = new SourceRealTransformer((RealTransform) module.getOutput("rt"));
+                listener.accept(img -> {
+                    SourceAndConverter<?>[] out = new SourceAndConverter[img.length];
+                    for (int idx = 0; idx<img.length; idx++) {
+                        out[idx] = srt.apply(img[idx]);
+                    }
+                    return out;
+                });
+            }
+        } catch (Exception e) {
+            // No preview, the full registration goes on
+            log.accept("Registration preview failed : "+e.getMessage());
+        } finally {
+            previewTask = null;
+            MultiSlicePositioner.registrationScheduler.releaseExtraPermit(this);
+        }
+    }
+
 }
@@ -4,13 +4,11 @@ import bdv.util.BoundedRealTransform;
 import bdv.util.RealTransformHelper;
 import bdv.viewer.SourceAndConverter;
 import ch.epfl.biop.java.utilities.roi.types.RealPointList;
+import ch.epfl.biop.registration.PackedPoints;
 import ch.epfl.biop.registration.sourceandconverter.SourceAndConverterRegistration;
-import net.imglib2.RealPoint;
 import net.imglib2.realtransform.RealTransform;
 import sc.fiji.bdvpg.sourceandconverter.transform.SourceRealTransformer;
 
-import java.util.ArrayList;
-
 abstract public class RealTransformSourceAndConverterRegistration extends SourceAndConverterRegistration {
 
     protected RealTransform rt;
@@ -27,6 +25,13 @@ abstract public class RealTransformSourceAndConverterRegistration extends Source
 
     @Override
     public RealPointList getTransformedPtsFixedToMoving(RealPointList pts) {
+        double[] xy = PackedPoints.pack(pts);
+        transformPtsFixedToMoving(xy);
+        return PackedPoints.unpack(xy);
+    }
+
+    @Override
+    public void transformPtsFixedToMoving(double[] xy) {
         RealTransform innerRT = rt;
 
         // Unbox bounded transform
@@ -34,17 +39,7 @@ abstract public class RealTransformSourceAndConverterRegistration extends Source
             innerRT = ((BoundedRealTransform)rt).getTransform();
         }
 
-        ArrayList<RealPoint> cvtList = new ArrayList<>();
-
-        for (RealPoint p : pts.ptList) {
-            RealPoint pt3d = new RealPoint(3);
-            pt3d.setPosition(new double[]{p.getDoublePosition(0), p.getDoublePosition(1),0});
-            innerRT.apply(pt3d, pt3d);
-            RealPoint cpt = new RealPoint(pt3d.getDoublePosition(0), pt3d.getDoublePosition(1));
-            cvtList.add(cpt);
-        }
-
-        return new RealPointList(cvtList);
+        PackedPoints.apply(xy, innerRT);
     }
 
     public RealTransform getRealTransform() {
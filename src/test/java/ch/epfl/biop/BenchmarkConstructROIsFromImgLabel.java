@@ -0,0 +1,193 @@
+package ch.epfl.biop;
+
+import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.atlas.BiopAtlas;
+import ch.epfl.biop.atlas.allen.adultmousebrain.AllenBrainAdultMouseAtlasCCF2017;
+import ch.epfl.biop.atlas.commands.ConstructROIsFromImgLabel;
+import ch.epfl.biop.java.utilities.roi.ConvertibleRois;
+import ch.epfl.biop.java.utilities.roi.SelectToROIKeepLines;
+import ch.epfl.biop.java.utilities.roi.types.IJShapeRoiArray;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.process.FloatPolygon;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import net.imagej.ImageJ;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Compares the speed and the output of {@link ConstructROIsFromImgLabel}
+ * with the previous implementation, which thresholded the whole image for each label.
+ *
+ * Uses a coronal plane of the Allen Brain atlas label image.
+ */
+
+public class BenchmarkConstructROIsFromImgLabel {
+
+    public static void main(String[] args) throws Exception {
+        final ImageJ ij = new ImageJ();
+
+        BiopAtlas atlas = (BiopAtlas) ij.command().run(AllenBrainAdultMouseAtlasCCF2017.class, true).get().getOutput("ba");
+
+        // Coronal plane in the middle of the atlas, at full resolution
+        SourceAndConverter labelSource = atlas.map.getLabelImage();
+        RandomAccessibleInterval rai = labelSource.getSpimSource().getSource(0,0);
+        long zMiddle = rai.dimension(2)/2;
+        ImagePlus labelImg = ImageJFunctions.wrap(Views.hyperSlice(rai, 2, zMiddle), "Label").duplicate();
+
+        int nRepetitions = 5;
+
+        ConvertibleRois crNew = null;
+        long startNew = System.currentTimeMillis();
+        for (int i = 0; i<nRepetitions; i++) {
+            ConstructROIsFromImgLabel labelToROIs = new ConstructROIsFromImgLabel();
+            labelToROIs.atlas = atlas;
+            labelToROIs.labelImg = labelImg;
+            labelToROIs.smoothen = false;
+            labelToROIs.run();
+            crNew = labelToROIs.cr_out;
+        }
+        long timeNew = (System.currentTimeMillis()-startNew)/nRepetitions;
+
+        IJShapeRoiArray roisLegacy = null;
+        long startLegacy = System.currentTimeMillis();
+        for (int i = 0; i<nRepetitions; i++) {
+            roisLegacy = legacyRun(atlas, labelImg);
+        }
+        long timeLegacy = (System.currentTimeMillis()-startLegacy)/nRepetitions;
+
+        IJShapeRoiArray roisNew = (IJShapeRoiArray) crNew.to(IJShapeRoiArray.class);
+
+        System.out.println("Image size : "+labelImg.getWidth()+" x "+labelImg.getHeight());
+        System.out.println("Number of regions : "+roisNew.rois.size());
+        System.out.println("Legacy : "+timeLegacy+" ms per plane");
+        System.out.println("Single pass : "+timeNew+" ms per plane");
+        System.out.println("Speedup : "+((double) timeLegacy/(double) Math.max(1, timeNew)));
+        System.out.println("Identical output : "+isIdentical(roisLegacy, roisNew));
+
+        System.exit(0);
+    }
+
+    static boolean isIdentical(IJShapeRoiArray a, IJShapeRoiArray b) {
+        if (a.rois.size()!=b.rois.size()) return false;
+        for (int i = 0; i<a.rois.size(); i++) {
+            Roi roiA = a.rois.get(i).getRoi();
+            Roi roiB = b.rois.get(i).getRoi();
+            if (!roiA.getName().equals(roiB.getName())) return false;
+            FloatPolygon pA = roiA.getFloatPolygon();
+            FloatPolygon pB = roiB.getFloatPolygon();
+            if (!Arrays.equals(Arrays.copyOf(pA.xpoints, pA.npoints), Arrays.copyOf(pB.xpoints, pB.npoints))) return false;
+            if (!Arrays.equals(Arrays.copyOf(pA.ypoints, pA.npoints), Arrays.copyOf(pB.ypoints, pB.npoints))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Previous implementation : the whole image is thresholded for each label
+     */
+    static IJShapeRoiArray legacyRun(BiopAtlas atlas, ImagePlus labelImg) {
+        ArrayList<Roi> roiArray = new ArrayList<>();
+        ImageProcessor ip = labelImg.getProcessor();
+        float[][] pixels = ip.getFloatArray();
+
+        HashSet<Float> existingPixelValues = new HashSet<>();
+        for (int x=0;x<ip.getWidth();x++) {
+            for (int y=0;y<ip.getHeight();y++) {
+                existingPixelValues.add((pixels[x][y]));
+            }
+        }
+
+        HashSet<Integer> possibleValues = new HashSet<>();
+        existingPixelValues.forEach(id -> {
+            possibleValues.addAll(atlas.ontology.getAllParents((int)(float)id));
+            possibleValues.add((int)(float)id);
+        });
+
+        Map<Integer, List<Integer>> childrenContained = new HashMap<>();
+        atlas.ontology.getParentToChildrenMap().forEach((k,v) -> {
+            ArrayList<Integer> filtered = new ArrayList<>(v.stream().filter(possibleValues::contains).collect(Collectors.toList()));
+            childrenContained.put(k, filtered);
+        });
+
+        HashSet<Integer> isLeaf = new HashSet<>();
+        childrenContained.forEach((k,v) -> {
+            if (v.size()==0) isLeaf.add(k);
+        });
+
+        FloatProcessor fp = new FloatProcessor(ip.getWidth(), ip.getHeight());
+        fp.setFloatArray(pixels);
+        ImagePlus imgFloatCopy = new ImagePlus("FloatLabel",fp);
+
+        boolean[][] movablePx = new boolean[ip.getWidth()+1][ip.getHeight()+1];
+        for (int x=1;x<ip.getWidth();x++) {
+            for (int y=1;y<ip.getHeight();y++) {
+                boolean is3Colored = false;
+                boolean isCrossed = false;
+                float p1p1 = pixels[x][y];
+                float p1m1 = pixels[x][y-1];
+                float m1p1 = pixels[x-1][y];
+                float m1m1 = pixels[x-1][y-1];
+                float min = Math.min(Math.min(p1p1, p1m1), Math.min(m1p1, m1m1));
+                float max = Math.max(Math.max(p1p1, p1m1), Math.max(m1p1, m1m1));
+                if (min!=max) {
+                    if ((p1p1!=min)&&(p1p1!=max)) is3Colored=true;
+                    if ((m1p1!=min)&&(m1p1!=max)) is3Colored=true;
+                    if ((p1m1!=min)&&(p1m1!=max)) is3Colored=true;
+                    if ((m1m1!=min)&&(m1m1!=max)) is3Colored=true;
+                    if ((!is3Colored)&&(p1p1==m1m1)&&(p1m1==m1p1)) isCrossed=true;
+                }
+                movablePx[x][y]=(!is3Colored)&&(!isCrossed);
+            }
+        }
+
+        boolean containsLeaf=true;
+        while (containsLeaf) {
+            List<Float> leavesValues = existingPixelValues
+                    .stream()
+                    .filter(v -> isLeaf.contains((int) (float) v))
+                    .collect(Collectors.toList());
+            leavesValues.forEach(v -> {
+                fp.setThreshold( v,v,ImageProcessor.NO_LUT_UPDATE);
+                Roi roi = SelectToROIKeepLines.run(imgFloatCopy, movablePx, true);
+                roi.setName(Integer.toString((int) (double) v));
+                roiArray.add(roi);
+                if (atlas.ontology.getParentToParentMap().containsKey((int) (double)v)) {
+                    int parentId = atlas.ontology.getParentToParentMap().get((int) (double)v);
+                    fp.setColor(parentId);
+                    fp.fill(roi);
+                    if (childrenContained.get(parentId)!=null) {
+                        if (childrenContained.get((int) (float)v).size()==0) {
+                            childrenContained.get(parentId).remove(Integer.valueOf((int) (float) v));
+                        }
+                        existingPixelValues.add((float)parentId);
+                    }
+                }
+            });
+            existingPixelValues.removeAll(leavesValues);
+            leavesValues.stream().map(v -> (int)(float)v).forEach(childrenContained::remove);
+            isLeaf.clear();
+            childrenContained.forEach((k,v) -> {
+                if (v.size()==0) isLeaf.add(k);
+            });
+            containsLeaf = existingPixelValues.stream().anyMatch(v -> isLeaf.contains((int) (float) v));
+        }
+
+        roiArray.forEach(roi -> roi.setName(Integer.toString(atlas.ontology.getOriginalId(Integer.parseInt(roi.getName())))));
+
+        IJShapeRoiArray output = new IJShapeRoiArray(roiArray);
+        output.smoothenWithConstrains(movablePx);
+        output.smoothenWithConstrains(movablePx);
+        return output;
+    }
+
+}
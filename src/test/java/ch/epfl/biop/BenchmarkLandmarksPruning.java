@@ -0,0 +1,100 @@
+package ch.epfl.biop;
+
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import ch.epfl.biop.registration.PackedPoints;
+import net.imglib2.Cursor;
+import net.imglib2.RealPoint;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Compares the pruning of the landmarks of a spline registration point by point,
+ * as previously done in Elastix2DSplineRegistration, with the bulk mask sampling
+ * {@link PackedPoints#insideMask(double[], Source, int)}
+ *
+ * Uses an elliptic mask of 456 x 320 x 3 voxels and regular grids of 10x10 up to 80x80 landmarks
+ */
+
+public class BenchmarkLandmarksPruning {
+
+    public static void main(String[] args) {
+        int nRepetitions = 20;
+
+        // Elliptic mask, 25 microns voxels, centered on the slice
+        ArrayImg<UnsignedShortType, ShortArray> img = ArrayImgs.unsignedShorts(456, 320, 3);
+        Cursor<UnsignedShortType> cursor = img.localizingCursor();
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            double dx = (cursor.getDoublePosition(0)-228)/200.0;
+            double dy = (cursor.getDoublePosition(1)-160)/140.0;
+            if (dx*dx+dy*dy<1) cursor.get().set(1);
+        }
+        AffineTransform3D voxelToPhysical = new AffineTransform3D();
+        voxelToPhysical.scale(0.025);
+        voxelToPhysical.translate(0, 0, -0.025);
+        Source<UnsignedShortType> mask = new RandomAccessibleIntervalSource<>(img, new UnsignedShortType(), voxelToPhysical, "mask");
+
+        for (int gridSize : new int[]{10, 20, 40, 80}) {
+            int nLandmarks = gridSize*gridSize;
+            // The grid extends beyond the mask : some landmarks are outside
+            double[] xy = new double[2*nLandmarks];
+            for (int i = 0; i<gridSize; i++) {
+                for (int j = 0; j<gridSize; j++) {
+                    xy[2*(i*gridSize+j)] = -1+13.4*i/(gridSize-1);
+                    xy[2*(i*gridSize+j)+1] = -1+10*j/(gridSize-1);
+                }
+            }
+
+            long start = System.nanoTime();
+            boolean[] insideLegacy = null;
+            for (int r = 0; r<nRepetitions; r++) {
+                insideLegacy = legacyInsideMask(xy, mask, 0);
+            }
+            double timeLegacy = (System.nanoTime()-start)/1e6/nRepetitions;
+
+            start = System.nanoTime();
+            boolean[] inside = null;
+            for (int r = 0; r<nRepetitions; r++) {
+                inside = PackedPoints.insideMask(xy, mask, 0);
+            }
+            double timePacked = (System.nanoTime()-start)/1e6/nRepetitions;
+
+            int nDifferences = 0, nInside = 0;
+            for (int i = 0; i<nLandmarks; i++) {
+                if (inside[i]!=insideLegacy[i]) nDifferences++;
+                if (inside[i]) nInside++;
+            }
+
+            System.out.println(nLandmarks+" landmarks ("+nInside+" inside the mask)");
+            System.out.println("Per point : "+String.format("%.3f", timeLegacy)+" ms");
+            System.out.println("Packed : "+String.format("%.3f", timePacked)+" ms");
+            System.out.println("Differences : "+nDifferences);
+        }
+    }
+
+    /**
+     * Previous implementation, per point
+     */
+    static boolean[] legacyInsideMask(double[] xy, Source<UnsignedShortType> source, int timePoint) {
+        RealRandomAccessible<UnsignedShortType> mask = source.getInterpolatedSource(timePoint,0, Interpolation.NEARESTNEIGHBOR);
+        AffineTransform3D at3D = new AffineTransform3D();
+        source.getSourceTransform(timePoint,0,at3D);
+        boolean[] inside = new boolean[xy.length/2];
+        for (int i = 0; i<inside.length; i++) {
+            RealPoint pt = new RealPoint(3);
+            pt.setPosition(xy[2*i], 0);
+            pt.setPosition(xy[2*i+1], 1);
+            pt.setPosition(0, 2); // 0 position in z
+            at3D.inverse().apply(pt, pt);
+            inside[i] = mask.getAt(pt).get()!=0;
+        }
+        return inside;
+    }
+
+}
@@ -0,0 +1,155 @@
+package ch.epfl.biop;
+
+import ch.epfl.biop.atlas.BiopAtlas;
+import ch.epfl.biop.atlas.OntologyIndex;
+import ch.epfl.biop.atlas.allen.AllenOntology;
+import ch.epfl.biop.atlas.allen.adultmousebrain.AllenBrainAdultMouseAtlasCCF2017;
+import net.imagej.ImageJ;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Compares the ontology queries of {@link AllenOntology}, now answered by {@link OntologyIndex},
+ * with the previous implementation, which walked the boxed hash maps recursively.
+ *
+ * Every query is run for all the structures of the Allen Brain atlas ontology.
+ *
+ * This is a rough timing demo, not a JMH benchmark : it needs the atlas of an ImageJ context,
+ * and JMH is not part of the dependencies of this project. Each query is warmed up before
+ * being timed with {@link System#nanoTime()} and the results are summed into a checksum so
+ * that they are not optimized away, but the numbers should only be read as orders of magnitude.
+ */
+
+public class BenchmarkOntologyIndex {
+
+    public static void main(String[] args) throws Exception {
+        final ImageJ ij = new ImageJ();
+
+        BiopAtlas atlas = (BiopAtlas) ij.command().run(AllenBrainAdultMouseAtlasCCF2017.class, true).get().getOutput("ba");
+        AllenOntology ontology = (AllenOntology) atlas.ontology;
+
+        List<Integer> ids = ontology.getAllIds();
+        List<String> identifiers = new ArrayList<>(ontology.ontologyIdentifierToStructureId.keySet());
+
+        int nRepetitions = 20;
+        int nWarmUps = 5;
+
+        compare("All parents", ids, nWarmUps, nRepetitions, id -> legacyAllParents(ontology, id), ontology::getAllParents);
+        compare("All children", ids, nWarmUps, nRepetitions, id -> legacyAllChildren(ontology, id), ontology::getAllChildren);
+        compare("All leaves", ids, nWarmUps, nRepetitions, id -> legacyAllLeaves(ontology, id), ontology::getAllLeaves);
+
+        // Identifier lookup
+        for (int r = 0; r<nWarmUps; r++) {
+            for (String identifier : identifiers) {
+                legacyIdFromPooledProperties(ontology, identifier);
+                ontology.getIdFromPooledProperties(identifier);
+            }
+        }
+        long start = System.nanoTime();
+        long checksumLegacy = 0;
+        for (int r = 0; r<nRepetitions; r++) {
+            for (String identifier : identifiers) checksumLegacy += legacyIdFromPooledProperties(ontology, identifier);
+        }
+        long timeLegacy = System.nanoTime()-start;
+        start = System.nanoTime();
+        long checksumIndex = 0;
+        for (int r = 0; r<nRepetitions; r++) {
+            for (String identifier : identifiers) checksumIndex += ontology.getIdFromPooledProperties(identifier);
+        }
+        long timeIndex = System.nanoTime()-start;
+        report("Identifier lookup", identifiers.size()*nRepetitions, timeLegacy, timeIndex, checksumLegacy==checksumIndex);
+
+        System.exit(0);
+    }
+
+    static void compare(String name, List<Integer> ids, int nWarmUps, int nRepetitions,
+                        IntFunction<List<Integer>> legacy, IntFunction<List<Integer>> indexed) {
+        boolean identical = true;
+        for (int id : ids) {
+            identical &= legacy.apply(id).equals(indexed.apply(id));
+        }
+        for (int r = 0; r<nWarmUps; r++) {
+            for (int id : ids) {
+                legacy.apply(id);
+                indexed.apply(id);
+            }
+        }
+        long start = System.nanoTime();
+        long checksumLegacy = 0;
+        for (int r = 0; r<nRepetitions; r++) {
+            for (int id : ids) checksumLegacy += legacy.apply(id).size();
+        }
+        long timeLegacy = System.nanoTime()-start;
+        start = System.nanoTime();
+        long checksumIndex = 0;
+        for (int r = 0; r<nRepetitions; r++) {
+            for (int id : ids) checksumIndex += indexed.apply(id).size();
+        }
+        long timeIndex = System.nanoTime()-start;
+        report(name, ids.size()*nRepetitions, timeLegacy, timeIndex, identical && (checksumLegacy==checksumIndex));
+    }
+
+    static void report(String name, int nQueries, long timeLegacy, long timeIndex, boolean identical) {
+        System.out.println(name+" ("+nQueries+" queries)");
+        System.out.println("\tLegacy maps : "+(timeLegacy/nQueries)+" ns per query");
+        System.out.println("\tIndex : "+(timeIndex/nQueries)+" ns per query");
+        System.out.println("\tSpeedup : "+((double) timeLegacy/(double) Math.max(1, timeIndex)));
+        System.out.println("\tIdentical output : "+identical);
+    }
+
+    // ------------------- Previous implementation, on the maps
+
+    static List<Integer> legacyAllParents(AllenOntology ontology, int id) {
+        ArrayList<Integer> parentsId = new ArrayList<>();
+        int current = id;
+        parentsId.add(current);
+        while (ontology.ontologyIdToParentId.containsKey(current)) {
+            current = ontology.ontologyIdToParentId.get(current);
+            parentsId.add(current);
+        }
+        parentsId.removeIf(index -> index==id);
+        return parentsId;
+    }
+
+    static List<Integer> legacyAllChildren(AllenOntology ontology, int id) {
+        ArrayList<Integer> childsId = new ArrayList<>();
+        addAllChildren(ontology, childsId, id);
+        childsId.removeIf(index -> index==id);
+        return childsId;
+    }
+
+    static void addAllChildren(AllenOntology ontology, List<Integer> childsId, int id) {
+        childsId.add(id);
+        ontology.ontologyIdToChildrenIds.get(id).forEach(idx -> addAllChildren(ontology, childsId, idx));
+    }
+
+    static List<Integer> legacyAllLeaves(AllenOntology ontology, int id) {
+        ArrayList<Integer> leavesId = new ArrayList<>();
+        addAllLeaves(ontology, leavesId, id);
+        return leavesId;
+    }
+
+    static void addAllLeaves(AllenOntology ontology, List<Integer> leavesId, int id) {
+        if (ontology.ontologyIdToChildrenIds.get(id).size()==0) {
+            leavesId.add(id);
+        } else {
+            ontology.ontologyIdToChildrenIds.get(id).forEach(idx -> addAllLeaves(ontology, leavesId, idx));
+        }
+    }
+
+    static int legacyIdFromPooledProperties(AllenOntology ontology, String prop) {
+        int id = Integer.MIN_VALUE;
+        if (ontology.ontologyAcronymToId.containsKey(prop)) {
+            id = ontology.ontologyAcronymToId.get(prop);
+        }
+        if (ontology.ontologyNameToId.containsKey(prop)) {
+            id = ontology.ontologyNameToId.get(prop);
+        }
+        if (ontology.ontologyIdentifierToStructureId.containsKey(prop)) {
+            id = ontology.ontologyIdentifierToStructureId.get(prop);
+        }
+        return id;
+    }
+}
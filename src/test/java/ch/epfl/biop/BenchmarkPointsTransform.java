@@ -0,0 +1,137 @@
+package ch.epfl.biop;
+
+import ch.epfl.biop.java.utilities.roi.types.RealPointList;
+import ch.epfl.biop.registration.PackedPoints;
+import ch.epfl.biop.registration.Registration;
+import ch.epfl.biop.registration.sourceandconverter.spline.Elastix2DSplineRegistration;
+import net.imglib2.RealPoint;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+import net.imglib2.realtransform.Wrapped2DTransformAs3D;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Compares the transformation of the vertices of the atlas regions point by point,
+ * as previously done when exporting regions, with the packed points api
+ * {@link Registration#transformPtsFixedToMoving(double[])}
+ *
+ * Uses 500 000 random points, an affine transform and a thin plate spline with 100 landmarks
+ */
+
+public class BenchmarkPointsTransform {
+
+    public static void main(String[] args) {
+        int nPoints = 500_000;
+        int nRepetitions = 5;
+
+        Random random = new Random(0);
+        ArrayList<RealPoint> pts = new ArrayList<>();
+        for (int i = 0; i<nPoints; i++) {
+            pts.add(new RealPoint(random.nextDouble()*10, random.nextDouble()*8));
+        }
+        RealPointList list = new RealPointList(pts);
+
+        // Affine transform
+        AffineTransform3D at3d = new AffineTransform3D();
+        at3d.rotate(2, 0.1);
+        at3d.scale(1.1, 0.9, 1);
+        at3d.translate(0.5, -0.3, 0);
+
+        long start = System.currentTimeMillis();
+        RealPointList outLegacy = null;
+        for (int i = 0; i<nRepetitions; i++) {
+            outLegacy = legacyTransform(list, at3d.inverse());
+        }
+        long timeLegacy = (System.currentTimeMillis()-start)/nRepetitions;
+
+        start = System.currentTimeMillis();
+        double[] xy = null;
+        for (int i = 0; i<nRepetitions; i++) {
+            xy = PackedPoints.pack(list);
+            PackedPoints.apply(xy, at3d);
+        }
+        long timePacked = (System.currentTimeMillis()-start)/nRepetitions;
+
+        System.out.println("Affine - "+nPoints+" points");
+        System.out.println("Per point : "+timeLegacy+" ms");
+        System.out.println("Packed : "+timePacked+" ms");
+        System.out.println("Max difference : "+maxDifference(outLegacy, xy));
+
+        // Thin plate spline
+        int nLandmarks = 100;
+        double[][] srcLandmarks = new double[2][nLandmarks];
+        double[][] tgtLandmarks = new double[2][nLandmarks];
+        for (int i = 0; i<nLandmarks; i++) {
+            srcLandmarks[0][i] = random.nextDouble()*10;
+            srcLandmarks[1][i] = random.nextDouble()*8;
+            tgtLandmarks[0][i] = srcLandmarks[0][i]+random.nextGaussian()*0.1;
+            tgtLandmarks[1][i] = srcLandmarks[1][i]+random.nextGaussian()*0.1;
+        }
+        RealTransform tps = new Wrapped2DTransformAs3D(new ThinplateSplineTransform(srcLandmarks, tgtLandmarks));
+
+        Elastix2DSplineRegistration reg = new Elastix2DSplineRegistration();
+        reg.setRealTransform(tps);
+
+        start = System.currentTimeMillis();
+        for (int i = 0; i<nRepetitions; i++) {
+            outLegacy = legacyTransform(list, tps);
+        }
+        timeLegacy = (System.currentTimeMillis()-start)/nRepetitions;
+
+        start = System.currentTimeMillis();
+        for (int i = 0; i<nRepetitions; i++) {
+            xy = PackedPoints.pack(list);
+            reg.transformPtsFixedToMoving(xy);
+        }
+        timePacked = (System.currentTimeMillis()-start)/nRepetitions;
+
+        System.out.println("Thin plate spline - "+nPoints+" points, "+nLandmarks+" landmarks");
+        System.out.println("Per point : "+timeLegacy+" ms");
+        System.out.println("Packed : "+timePacked+" ms");
+        System.out.println("Max difference : "+maxDifference(outLegacy, xy));
+    }
+
+    /**
+     * Previous implementation, per point
+     */
+    static RealPointList legacyTransform(RealPointList pts, AffineTransform3D at3d) {
+        ArrayList<RealPoint> cvtList = new ArrayList<>();
+        for (RealPoint p : pts.ptList) {
+            RealPoint pt3d = new RealPoint(3);
+            pt3d.setPosition(new double[]{p.getDoublePosition(0), p.getDoublePosition(1),0});
+            at3d.inverse().apply(pt3d, pt3d);
+            RealPoint cpt = new RealPoint(pt3d.getDoublePosition(0), pt3d.getDoublePosition(1));
+            cvtList.add(cpt);
+        }
+        return new RealPointList(cvtList);
+    }
+
+    /**
+     * Previous implementation, per point
+     */
+    static RealPointList legacyTransform(RealPointList pts, RealTransform rt) {
+        ArrayList<RealPoint> cvtList = new ArrayList<>();
+        for (RealPoint p : pts.ptList) {
+            RealPoint pt3d = new RealPoint(3);
+            pt3d.setPosition(new double[]{p.getDoublePosition(0), p.getDoublePosition(1),0});
+            rt.apply(pt3d, pt3d);
+            RealPoint cpt = new RealPoint(pt3d.getDoublePosition(0), pt3d.getDoublePosition(1));
+            cvtList.add(cpt);
+        }
+        return new RealPointList(cvtList);
+    }
+
+    static double maxDifference(RealPointList pts, double[] xy) {
+        double max = 0;
+        int i = 0;
+        for (RealPoint p : pts.ptList) {
+            max = Math.max(max, Math.abs(p.getDoublePosition(0)-xy[i++]));
+            max = Math.max(max, Math.abs(p.getDoublePosition(1)-xy[i++]));
+        }
+        return max;
+    }
+
+}
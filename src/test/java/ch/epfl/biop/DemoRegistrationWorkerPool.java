@@ -0,0 +1,134 @@
+package ch.epfl.biop;
+
+import ch.epfl.biop.atlas.aligner.RegistrationWorkerPool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs fake registration jobs on in-process stand-ins of registration servers, on a single machine:
+ * - a fast worker
+ * - a slow worker, whose queued jobs are taken by the other workers
+ * - a flaky worker, which fails one job out of three : the failed jobs are retried on another worker
+ * - a worker which goes down in the middle of the run : it is excluded after its health check fails
+ *
+ * All jobs should succeed. The same jobs are then submitted again : the results are kept and
+ * no job should be run.
+ *
+ * Last, a job which fails on every alive worker, while the last worker is down, should fail
+ * right away instead of waiting in the queue of the dead worker.
+ */
+
+public class DemoRegistrationWorkerPool {
+
+    static class StandInWorker implements RegistrationWorkerPool.Worker {
+
+        final String name;
+        final int capacity;
+        final long jobDurationInMs;
+        final int failEvery;
+        volatile boolean alive = true;
+        final AtomicInteger nJobs = new AtomicInteger();
+
+        StandInWorker(String name, int capacity, long jobDurationInMs, int failEvery) {
+            this.name = name;
+            this.capacity = capacity;
+            this.jobDurationInMs = jobDurationInMs;
+            this.failEvery = failEvery;
+        }
+
+        String register(int slice) throws Exception {
+            if (!alive) throw new IllegalStateException("Connection refused");
+            Thread.sleep(jobDurationInMs);
+            int n = nJobs.incrementAndGet();
+            if ((failEvery>0)&&(n%failEvery==0)) throw new IllegalStateException("Registration crashed");
+            return "transform of slice "+slice;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isAlive() {
+            return alive;
+        }
+
+        @Override
+        public int getCapacity() {
+            return capacity;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        RegistrationWorkerPool.setHealthCheckPeriodInMs(200);
+
+        StandInWorker fast = new StandInWorker("fast", 2, 20, 0);
+        StandInWorker slow = new StandInWorker("slow", 1, 400, 0);
+        StandInWorker flaky = new StandInWorker("flaky", 2, 30, 3);
+        StandInWorker dying = new StandInWorker("dying", 2, 30, 0);
+
+        RegistrationWorkerPool pool = new RegistrationWorkerPool(Arrays.asList(fast, slow, flaky, dying));
+
+        int nSlices = 100;
+        Map<Integer, AtomicInteger> runsPerSlice = new ConcurrentHashMap<>();
+        RegistrationWorkerPool.Job<String>[] jobs = new RegistrationWorkerPool.Job[nSlices];
+        for (int i = 0; i<nSlices; i++) {
+            int slice = i;
+            jobs[i] = worker -> {
+                runsPerSlice.computeIfAbsent(slice, s -> new AtomicInteger()).incrementAndGet();
+                return ((StandInWorker) worker).register(slice);
+            };
+        }
+
+        long start = System.currentTimeMillis();
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i<nSlices; i++) {
+            results.add(pool.submit("slice-"+i, jobs[i]));
+            if (i==nSlices/2) dying.alive = false;
+        }
+
+        int nSuccess = 0;
+        for (int i = 0; i<nSlices; i++) {
+            try {
+                if (results.get(i).get().equals("transform of slice "+i)) nSuccess++;
+            } catch (Exception e) {
+                System.err.println("Slice "+i+" failed : "+e.getMessage());
+            }
+        }
+        System.out.println(nSuccess+"/"+nSlices+" registrations done in "+(System.currentTimeMillis()-start)+" ms");
+        System.out.println("Retried registrations : "+runsPerSlice.values().stream().filter(n -> n.get()>1).count());
+        System.out.println(pool);
+
+        int nRunsBefore = runsPerSlice.values().stream().mapToInt(AtomicInteger::get).sum();
+        start = System.currentTimeMillis();
+        for (int i = 0; i<nSlices; i++) {
+            pool.submit("slice-"+i, jobs[i]).get();
+        }
+        int nRunsAfter = runsPerSlice.values().stream().mapToInt(AtomicInteger::get).sum();
+        System.out.println("Same registrations again : "+(nRunsAfter-nRunsBefore)+" job(s) run, "+(System.currentTimeMillis()-start)+" ms");
+
+        pool.close();
+
+        StandInWorker first = new StandInWorker("first", 1, 20, 1);
+        StandInWorker second = new StandInWorker("second", 1, 20, 1);
+        StandInWorker down = new StandInWorker("down", 1, 20, 0);
+        down.alive = false;
+        RegistrationWorkerPool smallPool = new RegistrationWorkerPool(Arrays.asList(first, second, down));
+        Thread.sleep(100); // First health check
+        start = System.currentTimeMillis();
+        try {
+            smallPool.submit(null, worker -> ((StandInWorker) worker).register(0)).get();
+            System.err.println("Job should have failed");
+        } catch (Exception e) {
+            System.out.println("Job failing on all alive workers : "+e.getCause().getMessage()+", "+(System.currentTimeMillis()-start)+" ms");
+        }
+        smallPool.close();
+    }
+}
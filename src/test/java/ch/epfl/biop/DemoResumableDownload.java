@@ -0,0 +1,112 @@
+package ch.epfl.biop;
+
+import ch.epfl.biop.atlas.allen.adultmousebrain.ResumableDownloader;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads a file from a local http server, which mimics the atlas server (HEAD and range requests),
+ * but drops some connections in the middle of a response.
+ *
+ * The first download fails and leaves a partial file ; the second one resumes it. The downloaded
+ * file is then compared to the served one, and downloads with a wrong expected SHA-256 or MD5 are rejected.
+ */
+
+public class DemoResumableDownload {
+
+    public static void main(String[] args) throws Exception {
+        byte[] content = new byte[50*1024*1024+123];
+        new Random(42).nextBytes(content);
+
+        File served = File.createTempFile("served", ".bin");
+        Files.write(served.toPath(), content);
+        String sha256 = ResumableDownloader.sha256(served);
+        String md5 = ResumableDownloader.hash(served, "MD5")[0];
+        served.delete();
+
+        // The first responses are truncated
+        AtomicInteger nFailuresLeft = new AtomicInteger(12);
+        AtomicInteger nRequests = new AtomicInteger();
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/atlas.bin", exchange -> {
+            nRequests.incrementAndGet();
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().add("Content-Length", Integer.toString(content.length));
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+            int from = 0, to = content.length-1;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range!=null) {
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                from = Integer.parseInt(bounds[0]);
+                to = Integer.parseInt(bounds[1]);
+            }
+            int length = to-from+1;
+            exchange.sendResponseHeaders(range==null ? 200 : 206, length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                if (nFailuresLeft.getAndDecrement()>0) {
+                    out.write(content, from, length/2);
+                    out.flush();
+                    throw new IOException("Connection dropped on purpose");
+                }
+                out.write(content, from, length);
+            }
+        });
+        server.start();
+
+        URL url = new URL("http://localhost:"+server.getAddress().getPort()+"/atlas.bin");
+        File target = new File(Files.createTempDirectory("download").toFile(), "atlas.bin");
+
+        try {
+            new ResumableDownloader(url, target, -1, sha256).setChunkSize(4*1024*1024).setParallelRequests(4).download();
+            System.out.println("First download should have failed");
+        } catch (IOException e) {
+            System.out.println("First download failed as expected : "+e.getMessage());
+        }
+
+        ResumableDownloader downloader = new ResumableDownloader(url, target, -1, sha256).setChunkSize(4*1024*1024).setParallelRequests(4);
+        System.out.println("Partial file present : "+downloader.getPartialFile().exists());
+        nRequests.set(0);
+        downloader.download();
+        System.out.println("Second download done in "+nRequests.get()+" requests");
+        System.out.println("Identical file : "+java.util.Arrays.equals(content, Files.readAllBytes(target.toPath())));
+        System.out.println("Partial files removed : "+(!downloader.getPartialFile().exists()&&!downloader.getStateFile().exists()));
+
+        target.delete();
+        try {
+            new ResumableDownloader(url, target, -1, "00").download();
+            System.out.println("Wrong checksum should have been rejected");
+        } catch (IOException e) {
+            System.out.println("Wrong checksum rejected : "+e.getMessage());
+        }
+        System.out.println("Target absent after rejection : "+!target.exists());
+
+        try {
+            new ResumableDownloader(url, target, -1, null).setExpectedMd5("00").download();
+            System.out.println("Wrong md5 should have been rejected");
+        } catch (IOException e) {
+            System.out.println("Wrong md5 rejected : "+e.getMessage());
+        }
+        System.out.println("Target absent after rejection : "+!target.exists());
+
+        new ResumableDownloader(url, target, -1, null).setExpectedMd5(md5).download();
+        System.out.println("Correct md5 accepted : "+target.exists());
+
+        server.stop(0);
+        System.exit(0);
+    }
+}